@@ -0,0 +1,146 @@
+package jpiccoli.uwml.bench;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Minimal micro benchmark harness. A benchmark runs its operation in
+ * batches for a fixed time per iteration; the warmup iterations let the JIT
+ * settle and are not reported. Besides the throughput, every run reports
+ * the bytes allocated per operation by the benchmark thread, as read from
+ * the JVM's per-thread allocation counter.
+ */
+public abstract class Benchmark {
+
+    private static final int BATCH = 256;
+
+    private String name;
+
+    protected Benchmark(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Prepares the state the operation runs on. Called once, before the
+     * warmup.
+     */
+    protected void setUp() throws Exception {
+    }
+
+    protected void tearDown() throws Exception {
+    }
+
+    /**
+     * The measured operation. It must leave the state ready for the next
+     * call.
+     */
+    protected abstract void operation() throws Exception;
+
+    /**
+     * Value derived from the benchmark state, printed after the run so the
+     * work done by the operations cannot be optimized away
+     */
+    protected long checksum() {
+        return 0;
+    }
+
+    public Result run(int warmupIterations, int iterations, long iterationTime) throws Exception {
+        setUp();
+        try {
+            for (int i = 0; i < warmupIterations; i++) {
+                iteration(iterationTime);
+            }
+            double[] throughputs = new double[iterations];
+            long operations = 0;
+            long allocated = 0;
+            for (int i = 0; i < iterations; i++) {
+                long allocatedBefore = allocatedBytes();
+                long start = System.nanoTime();
+                long count = iteration(iterationTime);
+                long elapsed = System.nanoTime() - start;
+                allocated += allocatedBytes() - allocatedBefore;
+                operations += count;
+                throughputs[i] = count * 1e9 / elapsed;
+            }
+            return new Result(name, throughputs, operations == 0 ? 0 : (double) allocated / operations, checksum());
+        } finally {
+            tearDown();
+        }
+    }
+
+    private long iteration(long iterationTime) throws Exception {
+        long deadline = System.nanoTime() + iterationTime * 1000000;
+        long count = 0;
+        do {
+            for (int i = 0; i < BATCH; i++) {
+                operation();
+            }
+            count += BATCH;
+        } while (System.nanoTime() < deadline);
+        return count;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    public static class Result {
+
+        private String name;
+        private double throughput;
+        private double error;
+        private double allocatedPerOperation;
+        private long checksum;
+
+        private Result(String name, double[] throughputs, double allocatedPerOperation, long checksum) {
+            this.name = name;
+            this.allocatedPerOperation = allocatedPerOperation;
+            this.checksum = checksum;
+            double sum = 0;
+            for (int i = 0; i < throughputs.length; i++) {
+                sum += throughputs[i];
+            }
+            throughput = sum / throughputs.length;
+            double squares = 0;
+            for (int i = 0; i < throughputs.length; i++) {
+                squares += (throughputs[i] - throughput) * (throughputs[i] - throughput);
+            }
+            error = throughputs.length > 1 ? Math.sqrt(squares / (throughputs.length - 1)) : 0;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Mean throughput of the measured iterations, in operations per second
+         */
+        public double getThroughput() {
+            return throughput;
+        }
+
+        /**
+         * Standard deviation of the throughput between iterations
+         */
+        public double getError() {
+            return error;
+        }
+
+        public double getAllocatedPerOperation() {
+            return allocatedPerOperation;
+        }
+
+        public String toString() {
+            return String.format("%-40s %14.0f +- %10.0f ops/s %10.1f B/op  (checksum %d)", name, throughput, error, allocatedPerOperation, checksum);
+        }
+
+    }
+
+}
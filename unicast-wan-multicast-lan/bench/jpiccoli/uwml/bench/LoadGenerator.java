@@ -0,0 +1,311 @@
+package jpiccoli.uwml.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import jpiccoli.uwml.relay.RelayEngine;
+import jpiccoli.uwml.relay.TrafficStats;
+import jpiccoli.uwml.remote.RemoteCommunicator;
+import jpiccoli.uwml.remote.RemoteCommunicatorCallback;
+import jpiccoli.uwml.remote.RemoteConnection;
+import jpiccoli.uwml.remote.TCPRemoteConnection;
+import jpiccoli.uwml.remote.UDPRemoteConnection;
+import jpiccoli.uwml.util.ConnectionDescriptor;
+import jpiccoli.uwml.util.LatencyHistogram;
+import jpiccoli.uwml.util.ProtocolType;
+
+/**
+ * Synthetic load for a relay running on the same machine. Opens clients
+ * sessions x clients, each a RemoteCommunicator over UDP or TCP, and has
+ * every client send timestamped packets at the given rate. Since senders
+ * and receivers share the clock, the latency measured is one way.
+ * <p>
+ * Usage: LoadGenerator [sessions=&lt;count&gt;] [clients=&lt;per session&gt;]
+ * [tcp=&lt;fraction of TCP clients&gt;] [rate=&lt;packets/s per client&gt;]
+ * [size=&lt;payload bytes&gt;] [warmup=&lt;s&gt;] [duration=&lt;s&gt;]
+ * [senders=&lt;threads&gt;] [relay=&lt;host&gt;:&lt;port&gt;] [reactors=&lt;count&gt;]
+ * [port=&lt;port&gt;]
+ * <p>
+ * Without relay=, a RelayEngine is started in this process on the loopback
+ * interface. Every client has a socket and a receive thread, so thousands
+ * of clients need a raised open files limit (ulimit -n).
+ */
+public class LoadGenerator {
+
+    /**
+     * Send time (System.nanoTime) followed by the index of the sender
+     */
+    private static final int HEADER_SIZE = 12;
+
+    private int sessions = 10;
+    private int clientsPerSession = 10;
+    private double tcpFraction = 0;
+    private double rate = 50;
+    private int size = 200;
+    private long warmup = 2;
+    private long duration = 10;
+    private int senders = 4;
+    private InetSocketAddress relayAddress;
+    private int reactors = Runtime.getRuntime().availableProcessors();
+    private int port = 3333;
+
+    private RelayEngine engine;
+    private Client[] clients;
+    private SessionStats[] stats;
+    private volatile long measureStart = Long.MAX_VALUE;
+    private volatile long measureEnd = Long.MAX_VALUE;
+    private volatile boolean stop;
+
+    public static void main(String args[]) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (int i = 0; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            generator.setOption(args[i].substring(0, equals), args[i].substring(equals + 1));
+        }
+        generator.run();
+        System.exit(0);
+    }
+
+    private void setOption(String name, String value) {
+        if (name.equals("sessions")) {
+            sessions = Integer.parseInt(value);
+        } else if (name.equals("clients")) {
+            clientsPerSession = Integer.parseInt(value);
+        } else if (name.equals("tcp")) {
+            tcpFraction = Double.parseDouble(value);
+        } else if (name.equals("rate")) {
+            rate = Double.parseDouble(value);
+        } else if (name.equals("size")) {
+            size = Math.max(Integer.parseInt(value), HEADER_SIZE);
+        } else if (name.equals("warmup")) {
+            warmup = Long.parseLong(value);
+        } else if (name.equals("duration")) {
+            duration = Long.parseLong(value);
+        } else if (name.equals("senders")) {
+            senders = Integer.parseInt(value);
+        } else if (name.equals("relay")) {
+            int colon = value.lastIndexOf(':');
+            relayAddress = new InetSocketAddress(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1)));
+        } else if (name.equals("reactors")) {
+            reactors = Integer.parseInt(value);
+        } else if (name.equals("port")) {
+            port = Integer.parseInt(value);
+        } else {
+            throw new IllegalArgumentException("Unknown option: " + name);
+        }
+    }
+
+    private void run() throws Exception {
+        int bufferSize = Math.max(1024, size + 16);
+        if (relayAddress == null) {
+            relayAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+            engine = new RelayEngine();
+            ConnectionDescriptor[] descriptors = {
+                    new ConnectionDescriptor(ProtocolType.UDP, null, relayAddress),
+                    new ConnectionDescriptor(ProtocolType.TCP, null, relayAddress) };
+            engine.newIOThreads(descriptors, reactors, bufferSize, bufferSize);
+        }
+        stats = new SessionStats[sessions];
+        for (int i = 0; i < sessions; i++) {
+            stats[i] = new SessionStats(i + 1, clientsPerSession);
+        }
+        clients = new Client[sessions * clientsPerSession];
+        int tcpClients = (int) Math.round(clientsPerSession * tcpFraction);
+        for (int i = 0; i < clients.length; i++) {
+            // Sessions get the same share of TCP clients
+            clients[i] = new Client(i, stats[i % sessions], i / sessions < tcpClients, bufferSize);
+        }
+        long start = System.currentTimeMillis();
+        int opened = open();
+        System.out.println("Opened " + opened + "/" + clients.length + " clients in " + (System.currentTimeMillis() - start) + " ms");
+
+        SenderThread[] threads = new SenderThread[senders];
+        for (int i = 0; i < senders; i++) {
+            threads[i] = new SenderThread(i);
+            threads[i].start();
+        }
+        long now = System.nanoTime();
+        measureStart = now + warmup * 1000000000L;
+        measureEnd = measureStart + duration * 1000000000L;
+        Thread.sleep((warmup + duration) * 1000);
+        stop = true;
+        for (int i = 0; i < senders; i++) {
+            threads[i].join();
+        }
+        // Packets still in flight when the senders stopped
+        Thread.sleep(1000);
+        report();
+    }
+
+    /**
+     * Initializes the clients from a few threads at a time: with UDP, each
+     * initialization waits for the relay's ACK
+     */
+    private int open() throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger opened = new AtomicInteger();
+        Thread[] openers = new Thread[Math.min(16, clients.length)];
+        for (int i = 0; i < openers.length; i++) {
+            openers[i] = new Thread() {
+                public void run() {
+                    int index;
+                    while ((index = next.getAndIncrement()) < clients.length) {
+                        if (clients[index].open()) opened.incrementAndGet();
+                    }
+                }
+            };
+            openers[i].start();
+        }
+        for (int i = 0; i < openers.length; i++) {
+            openers[i].join();
+        }
+        return opened.get();
+    }
+
+    private void report() {
+        double seconds = duration;
+        System.out.println(String.format("%8s %7s %10s %10s %10s %7s %10s %8s %8s %8s %8s",
+                "session", "members", "sent", "expected", "delivered", "loss%", "pkt/s", "Mbit/s", "p50us", "p99us", "p99.9us"));
+        SessionStats total = new SessionStats(0, 0);
+        for (int i = 0; i < stats.length; i++) {
+            print(stats[i], seconds);
+            total.add(stats[i]);
+        }
+        print(total, seconds);
+        if (engine != null) {
+            TrafficStats relay = engine.getStatsSnapshot().getTotal();
+            System.out.println("Relay: in=" + relay.getPacketsIn() + " out=" + relay.getPacketsOut() + " dropped=" + relay.getDroppedPackets()
+                    + " fan-out p50=" + relay.getFanoutLatencyP50() + "us p99=" + relay.getFanoutLatencyP99() + "us p99.9=" + relay.getFanoutLatencyP999() + "us");
+        }
+    }
+
+    private void print(SessionStats stats, double seconds) {
+        long sent = stats.sent.get();
+        long expected = stats.expected.get();
+        long delivered = stats.latency.getCount();
+        double loss = expected == 0 ? 0 : 100.0 * (expected - delivered) / expected;
+        System.out.println(String.format("%8s %7d %10d %10d %10d %7.2f %10.0f %8.2f %8d %8d %8d",
+                stats.sessionIdentifier == 0 ? "total" : String.valueOf(stats.sessionIdentifier), stats.members, sent, expected, delivered, loss,
+                delivered / seconds, stats.bytes.get() * 8 / seconds / 1e6,
+                stats.latency.getValueAtQuantile(0.5) / 1000, stats.latency.getValueAtQuantile(0.99) / 1000,
+                stats.latency.getValueAtQuantile(0.999) / 1000));
+    }
+
+    private static class SessionStats {
+        private int sessionIdentifier;
+        private int members;
+        private AtomicInteger open;
+        private AtomicLong sent;
+        private AtomicLong expected;
+        private AtomicLong bytes;
+        private LatencyHistogram latency;
+        private SessionStats(int sessionIdentifier, int members) {
+            this.sessionIdentifier = sessionIdentifier;
+            this.members = members;
+            open = new AtomicInteger();
+            sent = new AtomicLong();
+            expected = new AtomicLong();
+            bytes = new AtomicLong();
+            latency = new LatencyHistogram();
+        }
+        private void add(SessionStats stats) {
+            members += stats.members;
+            sent.addAndGet(stats.sent.get());
+            expected.addAndGet(stats.expected.get());
+            bytes.addAndGet(stats.bytes.get());
+            latency.add(stats.latency);
+        }
+    }
+
+    private class Client implements RemoteCommunicatorCallback {
+        private int index;
+        private SessionStats session;
+        private RemoteCommunicator communicator;
+        private Client(int index, SessionStats session, boolean tcp, int bufferSize) {
+            this.index = index;
+            this.session = session;
+            communicator = new RemoteCommunicator(this);
+            communicator.setSessionIdentifier(session.sessionIdentifier);
+            communicator.setEnabled(true);
+            RemoteConnection connection;
+            if (tcp) {
+                connection = new TCPRemoteConnection(communicator, relayAddress, bufferSize);
+            } else {
+                connection = new UDPRemoteConnection(communicator, relayAddress, bufferSize, bufferSize);
+            }
+            communicator.setConnection(connection);
+        }
+        private boolean open() {
+            communicator.initialize();
+            if (!communicator.isOpen()) return false;
+            session.open.incrementAndGet();
+            return true;
+        }
+        private void send(ByteBuffer data, long now) throws IOException {
+            if (!communicator.isOpen()) return;
+            data.clear();
+            data.putLong(0, now);
+            data.putInt(8, index);
+            communicator.sendAppMessage(data);
+            if (now >= measureStart && now < measureEnd) {
+                session.sent.incrementAndGet();
+                // Every other open member of the session should receive it
+                session.expected.addAndGet(session.open.get() - 1);
+            }
+        }
+        public void packetReceived(RemoteCommunicator source, ByteBuffer data) {
+            if (data.remaining() < HEADER_SIZE) return;
+            long received = System.nanoTime();
+            long sent = data.getLong(data.position());
+            if (sent < measureStart || sent >= measureEnd) return;
+            session.latency.record(received - sent);
+            session.bytes.addAndGet(data.remaining());
+        }
+        public void connectionLost(RemoteCommunicator source) {
+        }
+        public void connectionInitialized(RemoteCommunicator source) {
+        }
+        public void connectionStatusChanged(RemoteCommunicator source) {
+        }
+    }
+
+    /**
+     * Sends one packet from each of its clients every 1/rate seconds. When
+     * it falls behind, the next round starts right away instead of sending
+     * a burst to catch up.
+     */
+    private class SenderThread extends Thread {
+        private int first;
+        private ByteBuffer data;
+        private SenderThread(int first) {
+            this.first = first;
+            data = ByteBuffer.allocate(size);
+            setName("Load Sender Thread " + first);
+        }
+        public void run() {
+            long interval = (long) (1000000000L / rate);
+            long next = System.nanoTime() + (long) (Math.random() * interval);
+            while (!stop) {
+                long delay = next - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                    continue;
+                }
+                for (int i = first; i < clients.length && !stop; i += senders) {
+                    try {
+                        clients[i].send(data, System.nanoTime());
+                    } catch (IOException e) {
+                        // The client's connection was lost
+                    }
+                }
+                next = Math.max(next + interval, System.nanoTime());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+package jpiccoli.uwml.relay;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import jpiccoli.uwml.remote.RemoteCommunicator;
+
+/**
+ * Relay connection that sends nowhere: frames are only counted, so a
+ * fan-out to these recipients measures the relay and not the network.
+ */
+public class MemoryRelayConnection extends RelayRemoteConnection {
+
+    private long frames;
+    private long bytes;
+
+    public MemoryRelayConnection(IOThread ioThread, RemoteCommunicator callback) {
+        super(ioThread, callback);
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public void sendFrame(ByteBuffer frame, int offset) throws IOException {
+        frames++;
+        bytes += frame.limit() - offset;
+        countSent(frame.limit() - offset);
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return null;
+    }
+
+    @Override
+    public void receiveData() throws IOException {
+    }
+
+    @Override
+    public void openCommunication() {
+    }
+
+    @Override
+    public void closeCommunication() {
+        stopLiveness();
+    }
+
+    @Override
+    public void sendMessage(ByteBuffer data) throws IOException {
+        data.position(data.limit());
+    }
+
+    @Override
+    public void sendAggregatedMessage(ByteBuffer data) throws IOException {
+        data.position(data.limit());
+    }
+
+    @Override
+    public void sendReliableMessage(ByteBuffer data) throws IOException {
+        data.position(data.limit());
+    }
+
+    @Override
+    public void sendCtrlMessage(ByteBuffer data) throws IOException {
+        data.position(data.limit());
+    }
+
+    @Override
+    public void sendHeartBeat() throws IOException {
+    }
+
+}
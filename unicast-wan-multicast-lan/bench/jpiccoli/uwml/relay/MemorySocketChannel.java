@@ -0,0 +1,149 @@
+package jpiccoli.uwml.relay;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Socket channel stand-in that reads the same bytes over and over and
+ * discards what is written, so a TCP connection can be benchmarked without
+ * a network. Reads return at most readSize bytes, to exercise the partial
+ * frame handling the way a real socket does.
+ */
+public class MemorySocketChannel extends SocketChannel {
+
+    private ByteBuffer stream;
+    private int readSize;
+    private long written;
+
+    /**
+     * @param stream Bytes served by read, from the position to the limit,
+     * starting over once they are exhausted
+     */
+    public MemorySocketChannel(ByteBuffer stream, int readSize) {
+        super(SelectorProvider.provider());
+        this.stream = stream.duplicate();
+        this.readSize = readSize;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!stream.hasRemaining()) stream.rewind();
+        int count = Math.min(Math.min(dst.remaining(), stream.remaining()), readSize);
+        int limit = stream.limit();
+        stream.limit(stream.position() + count);
+        dst.put(stream);
+        stream.limit(limit);
+        return count;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long count = 0;
+        for (int i = offset; i < offset + length; i++) {
+            count += read(dsts[i]);
+        }
+        return count;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int count = src.remaining();
+        src.position(src.limit());
+        written += count;
+        return count;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long count = 0;
+        for (int i = offset; i < offset + length; i++) {
+            count += write(srcs[i]);
+        }
+        return count;
+    }
+
+    @Override
+    public SocketChannel bind(SocketAddress local) throws IOException {
+        return this;
+    }
+
+    @Override
+    public <T> SocketChannel setOption(SocketOption<T> name, T value) throws IOException {
+        return this;
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name) throws IOException {
+        return null;
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public SocketChannel shutdownInput() throws IOException {
+        return this;
+    }
+
+    @Override
+    public SocketChannel shutdownOutput() throws IOException {
+        return this;
+    }
+
+    @Override
+    public Socket socket() {
+        return null;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isConnectionPending() {
+        return false;
+    }
+
+    @Override
+    public boolean connect(SocketAddress remote) throws IOException {
+        return true;
+    }
+
+    @Override
+    public boolean finishConnect() throws IOException {
+        return true;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() throws IOException {
+        return null;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() throws IOException {
+        return null;
+    }
+
+    @Override
+    protected void implCloseSelectableChannel() throws IOException {
+    }
+
+    @Override
+    protected void implConfigureBlocking(boolean block) throws IOException {
+    }
+
+}
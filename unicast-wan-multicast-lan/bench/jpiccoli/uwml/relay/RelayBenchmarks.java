@@ -0,0 +1,285 @@
+package jpiccoli.uwml.relay;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Random;
+
+import jpiccoli.uwml.bench.Benchmark;
+import jpiccoli.uwml.remote.RemoteCommunicator;
+import jpiccoli.uwml.remote.RemoteCommunicatorCallback;
+import jpiccoli.uwml.remote.RemoteConnection;
+import jpiccoli.uwml.util.PeerTable;
+
+/**
+ * Benchmarks of the relay hot paths. Nothing touches the network: fan-out
+ * recipients are MemoryRelayConnections, TCP frames are read from a
+ * MemorySocketChannel and the IOThreads are never started, so the runs are
+ * deterministic.
+ * <p>
+ * Usage: RelayBenchmarks [warmup=&lt;iterations&gt;] [iterations=&lt;count&gt;]
+ * [time=&lt;ms per iteration&gt;] [filter=&lt;name prefix&gt;]
+ */
+public class RelayBenchmarks {
+
+    private static final int PAYLOAD_SIZE = 200;
+
+    public static void main(String args[]) throws Exception {
+        int warmup = 5;
+        int iterations = 5;
+        long time = 1000;
+        String filter = "";
+        for (int i = 0; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            String name = args[i].substring(0, equals);
+            String value = args[i].substring(equals + 1);
+            if (name.equals("warmup")) {
+                warmup = Integer.parseInt(value);
+            } else if (name.equals("iterations")) {
+                iterations = Integer.parseInt(value);
+            } else if (name.equals("time")) {
+                time = Long.parseLong(value);
+            } else if (name.equals("filter")) {
+                filter = value;
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        int[] recipients = { 2, 10, 100, 1000 };
+        for (int i = 0; i < recipients.length; i++) {
+            benchmarks.add(new FanoutBenchmark(recipients[i]));
+        }
+        benchmarks.add(new TCPReceiveBenchmark(Integer.MAX_VALUE));
+        benchmarks.add(new TCPReceiveBenchmark(64));
+        benchmarks.add(new UDPReceiveBenchmark());
+        int[] peers = { 1000, 100000, 1000000 };
+        for (int i = 0; i < peers.length; i++) {
+            benchmarks.add(new PeerLookupBenchmark(peers[i]));
+            benchmarks.add(new HashtableLookupBenchmark(peers[i]));
+        }
+        for (int i = 0; i < benchmarks.size(); i++) {
+            Benchmark benchmark = benchmarks.get(i);
+            if (benchmark.getName().startsWith(filter)) {
+                System.out.println(benchmark.run(warmup, iterations, time));
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * IOThread that is never started, only lending its buffers and stats to
+     * the connections of a benchmark
+     */
+    private static IOThread newIOThread() throws Exception {
+        return new IOThread(new RelayEngine(), 1024, 1024);
+    }
+
+    /**
+     * Callback that consumes the packets it is handed
+     */
+    private static class Sink implements RemoteCommunicatorCallback {
+        private long bytes;
+        public void packetReceived(RemoteCommunicator source, ByteBuffer data) {
+            bytes += data.remaining();
+        }
+        public void connectionLost(RemoteCommunicator source) {
+        }
+        public void connectionInitialized(RemoteCommunicator source) {
+        }
+        public void connectionStatusChanged(RemoteCommunicator source) {
+        }
+    }
+
+    /**
+     * RelaySession.packetReceived forwarding a datagram-sized packet, with
+     * the headroom UDP receives leave, to every other member
+     */
+    private static class FanoutBenchmark extends Benchmark {
+        private int recipients;
+        private RelaySession session;
+        private RemoteCommunicator source;
+        private MemoryRelayConnection recipient;
+        private ByteBuffer data;
+        private FanoutBenchmark(int recipients) {
+            super("fanout.recipients=" + recipients);
+            this.recipients = recipients;
+        }
+        protected void setUp() throws Exception {
+            IOThread ioThread = newIOThread();
+            session = new RelaySession(ioThread.getEngine(), 1, ioThread);
+            for (int i = 0; i <= recipients; i++) {
+                RemoteCommunicator communicator = new RemoteCommunicator(session);
+                MemoryRelayConnection connection = new MemoryRelayConnection(ioThread, communicator);
+                communicator.setConnection(connection);
+                communicator.setEnabled(true);
+                session.addCommunicator(communicator);
+                if (i == 0) {
+                    source = communicator;
+                } else {
+                    recipient = connection;
+                }
+            }
+            int position = RelayRemoteConnection.FRAME_HEADROOM + 2;
+            data = ByteBuffer.allocateDirect(position + PAYLOAD_SIZE);
+            data.position(position);
+        }
+        protected void operation() throws Exception {
+            session.packetReceived(source, data);
+        }
+        protected long checksum() {
+            return recipient.getBytes();
+        }
+    }
+
+    /**
+     * TCPRelayConnection.receiveData parsing NORMAL_MSG frames. With reads
+     * smaller than a frame, an operation handles only part of one.
+     */
+    private static class TCPReceiveBenchmark extends Benchmark {
+        private int readSize;
+        private TCPRelayConnection connection;
+        private Sink sink;
+        private TCPReceiveBenchmark(int readSize) {
+            super(readSize == Integer.MAX_VALUE ? "tcp.receive" : "tcp.receive.read=" + readSize);
+            this.readSize = readSize;
+        }
+        protected void setUp() throws Exception {
+            ByteBuffer stream = ByteBuffer.allocate(16 * (PAYLOAD_SIZE + RelayRemoteConnection.FRAME_HEADER_SIZE));
+            while (stream.hasRemaining()) {
+                stream.putInt(PAYLOAD_SIZE + 2);
+                stream.putShort(RemoteConnection.NORMAL_MSG);
+                stream.position(stream.position() + PAYLOAD_SIZE);
+            }
+            stream.flip();
+            sink = new Sink();
+            RemoteCommunicator communicator = new RemoteCommunicator(sink);
+            connection = new TCPRelayConnection(newIOThread(), communicator, new MemorySocketChannel(stream, readSize));
+            communicator.setConnection(connection);
+        }
+        protected void operation() throws Exception {
+            connection.receiveData();
+        }
+        protected long checksum() {
+            return sink.bytes;
+        }
+    }
+
+    /**
+     * UDPRelayConnection.receiveData dispatching a NORMAL_MSG datagram
+     * already received into the IOThread's input buffer
+     */
+    private static class UDPReceiveBenchmark extends Benchmark {
+        private UDPRelayConnection connection;
+        private ByteBuffer inputBuffer;
+        private int limit;
+        private Sink sink;
+        private DatagramChannel channel;
+        private UDPReceiveBenchmark() {
+            super("udp.receive");
+        }
+        protected void setUp() throws Exception {
+            IOThread ioThread = newIOThread();
+            sink = new Sink();
+            RemoteCommunicator communicator = new RemoteCommunicator(sink);
+            channel = DatagramChannel.open();
+            connection = new UDPRelayConnection(ioThread, communicator, channel, new InetSocketAddress(InetAddress.getLoopbackAddress(), 9));
+            communicator.setConnection(connection);
+            inputBuffer = ioThread.getUDPInputBuffer();
+            inputBuffer.clear().position(RelayRemoteConnection.FRAME_HEADROOM);
+            inputBuffer.putShort(RemoteConnection.NORMAL_MSG);
+            inputBuffer.position(inputBuffer.position() + PAYLOAD_SIZE);
+            limit = inputBuffer.position();
+        }
+        protected void operation() throws Exception {
+            inputBuffer.limit(limit).position(RelayRemoteConnection.FRAME_HEADROOM);
+            connection.receiveData();
+        }
+        protected void tearDown() throws Exception {
+            channel.close();
+        }
+        protected long checksum() {
+            return sink.bytes;
+        }
+    }
+
+    /**
+     * The peer lookup IOThread.handleUDPConnection makes for every
+     * datagram, in random order over all peers; the receive itself is left
+     * out
+     */
+    private static class PeerLookupBenchmark extends Benchmark {
+        private int peers;
+        private PeerTable<InetSocketAddress> table;
+        private InetSocketAddress[] addresses;
+        private int[] order;
+        private int next;
+        private long hits;
+        private PeerLookupBenchmark(int peers) {
+            super("udp.lookup.peers=" + peers);
+            this.peers = peers;
+        }
+        protected void setUp() throws Exception {
+            table = new PeerTable<InetSocketAddress>();
+            addresses = new InetSocketAddress[peers];
+            Random random = new Random(peers);
+            for (int i = 0; i < peers; i++) {
+                byte[] address = { 10, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+                addresses[i] = new InetSocketAddress(InetAddress.getByAddress(address), 1024 + random.nextInt(60000));
+                table.put(addresses[i], addresses[i]);
+            }
+            order = new int[1 << 16];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = random.nextInt(peers);
+            }
+        }
+        protected void operation() throws Exception {
+            if (table.get(addresses[order[next++ & (order.length - 1)]]) != null) hits++;
+        }
+        protected long checksum() {
+            return hits;
+        }
+    }
+
+    /**
+     * Baseline of PeerLookupBenchmark: the same lookups on the Hashtable
+     * IOThread used before PeerTable
+     */
+    private static class HashtableLookupBenchmark extends Benchmark {
+        private int peers;
+        private Hashtable<SocketAddress, InetSocketAddress> table;
+        private InetSocketAddress[] addresses;
+        private int[] order;
+        private int next;
+        private long hits;
+        private HashtableLookupBenchmark(int peers) {
+            super("udp.lookup.hashtable.peers=" + peers);
+            this.peers = peers;
+        }
+        protected void setUp() throws Exception {
+            table = new Hashtable<SocketAddress, InetSocketAddress>();
+            addresses = new InetSocketAddress[peers];
+            Random random = new Random(peers);
+            for (int i = 0; i < peers; i++) {
+                byte[] address = { 10, (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+                addresses[i] = new InetSocketAddress(InetAddress.getByAddress(address), 1024 + random.nextInt(60000));
+                table.put(addresses[i], addresses[i]);
+            }
+            order = new int[1 << 16];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = random.nextInt(peers);
+            }
+        }
+        protected void operation() throws Exception {
+            if (table.get(addresses[order[next++ & (order.length - 1)]]) != null) hits++;
+        }
+        protected long checksum() {
+            return hits;
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package jpiccoli.uwml.util;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Random;
+
+/**
+ * Randomized check of PeerTable against HashMap. Every put, remove and get
+ * is made on both maps and must return the same value; the sizes and the
+ * values of every key are compared at the end of each round. The rounds
+ * grow the table through several resizes while keys are removed and put
+ * again, so the operations run while entries are being migrated. The keys
+ * mix IPv4 and IPv6 addresses, and addresses that only differ in the port.
+ * <p>
+ * Usage: PeerTableCheck [rounds=&lt;count&gt;] [operations=&lt;per round&gt;]
+ * [seed=&lt;seed&gt;]
+ */
+public class PeerTableCheck {
+
+    public static void main(String args[]) throws Exception {
+        int rounds = 20;
+        int operations = 200000;
+        long seed = System.nanoTime();
+        for (int i = 0; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            String name = args[i].substring(0, equals);
+            String value = args[i].substring(equals + 1);
+            if (name.equals("rounds")) {
+                rounds = Integer.parseInt(value);
+            } else if (name.equals("operations")) {
+                operations = Integer.parseInt(value);
+            } else if (name.equals("seed")) {
+                seed = Long.parseLong(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        System.out.println("seed=" + seed);
+        Random random = new Random(seed);
+        long checked = 0;
+        for (int round = 0; round < rounds; round++) {
+            // Few keys keep the table small and resizing often; many keys make it large
+            int keys = 16 << random.nextInt(12);
+            String failure = churn(random, keys, operations);
+            if (failure == null) failure = sliding(random, keys, operations);
+            if (failure != null) {
+                System.out.println("round " + round + " keys=" + keys + ": " + failure);
+                System.exit(1);
+            }
+            checked += 2L * operations;
+        }
+        System.out.println("ok: " + checked + " operations");
+        System.exit(0);
+    }
+
+    /**
+     * Random operations on random keys of a fixed set
+     */
+    private static String churn(Random random, int keys, int operations) throws Exception {
+        InetSocketAddress[] addresses = addresses(random, keys);
+        PeerTable<Integer> table = new PeerTable<Integer>();
+        HashMap<InetSocketAddress, Integer> expected = new HashMap<InetSocketAddress, Integer>();
+        for (int i = 0; i < operations; i++) {
+            // A fresh instance, as DatagramChannel.receive returns
+            InetSocketAddress address = copy(addresses[random.nextInt(keys)]);
+            String failure = operation(random, table, expected, address, i);
+            if (failure != null) return failure;
+        }
+        return compare(table, expected, addresses);
+    }
+
+    /**
+     * Keys put in order while the oldest ones are removed, as peers come
+     * and go, so the table keeps resizing with removals in between
+     */
+    private static String sliding(Random random, int keys, int operations) throws Exception {
+        InetSocketAddress[] addresses = addresses(random, keys);
+        PeerTable<Integer> table = new PeerTable<Integer>();
+        HashMap<InetSocketAddress, Integer> expected = new HashMap<InetSocketAddress, Integer>();
+        int window = 1 + random.nextInt(keys);
+        for (int i = 0; i < operations; i++) {
+            InetSocketAddress added = addresses[i % keys];
+            String failure = check("put", added, table.put(copy(added), i), expected.put(added, i));
+            if (failure != null) return failure;
+            InetSocketAddress removed = addresses[(i + keys - window) % keys];
+            if (random.nextBoolean()) {
+                failure = check("remove", removed, table.remove(copy(removed)), expected.remove(removed));
+            } else {
+                failure = check("get", removed, table.get(copy(removed)), expected.get(removed));
+            }
+            if (failure != null) return failure;
+        }
+        return compare(table, expected, addresses);
+    }
+
+    private static String operation(Random random, PeerTable<Integer> table, HashMap<InetSocketAddress, Integer> expected, InetSocketAddress address, int value) {
+        int operation = random.nextInt(10);
+        if (operation < 4) {
+            return check("put", address, table.put(address, value), expected.put(address, value));
+        } else if (operation < 7) {
+            return check("remove", address, table.remove(address), expected.remove(address));
+        } else {
+            return check("get", address, table.get(address), expected.get(address));
+        }
+    }
+
+    private static String check(String operation, InetSocketAddress address, Integer actual, Integer expected) {
+        if (actual == null ? expected == null : actual.equals(expected)) return null;
+        return operation + " " + address + " returned " + actual + " instead of " + expected;
+    }
+
+    private static String compare(PeerTable<Integer> table, HashMap<InetSocketAddress, Integer> expected, InetSocketAddress[] addresses) {
+        if (table.size() != expected.size()) return "size " + table.size() + " instead of " + expected.size();
+        for (int i = 0; i < addresses.length; i++) {
+            String failure = check("get", addresses[i], table.get(addresses[i]), expected.get(addresses[i]));
+            if (failure != null) return failure;
+        }
+        return null;
+    }
+
+    private static InetSocketAddress[] addresses(Random random, int count) throws Exception {
+        LinkedHashSet<InetSocketAddress> addresses = new LinkedHashSet<InetSocketAddress>();
+        while (addresses.size() < count) {
+            byte[] address = new byte[random.nextInt(4) == 0 ? 16 : 4];
+            // Few distinct hosts, so many keys only differ in the port
+            random.nextBytes(address);
+            address[address.length - 1] &= 0x0F;
+            InetSocketAddress socketAddress = new InetSocketAddress(InetAddress.getByAddress(address), random.nextInt(65536));
+            addresses.add(socketAddress);
+        }
+        return addresses.toArray(new InetSocketAddress[count]);
+    }
+
+    private static InetSocketAddress copy(InetSocketAddress address) throws Exception {
+        return new InetSocketAddress(InetAddress.getByAddress(address.getAddress().getAddress()), address.getPort());
+    }
+
+}
@@ -1,15 +1,15 @@
-package jpiccoli.uwml.client;
-
-public enum ClientTask {
-    
-    BECOME_MANAGER,
-    
-    LOST_MANAGER,
-    
-    NEW_MANAGER,
-    
-    CONNECTION_INITIALIZED,
-    
-    CONNECTION_LOST
-    
-}
+package jpiccoli.uwml.client;
+
+public enum ClientTask {
+    
+    BECOME_MANAGER,
+    
+    LOST_MANAGER,
+    
+    NEW_MANAGER,
+    
+    CONNECTION_INITIALIZED,
+    
+    CONNECTION_LOST
+    
+}
@@ -1,36 +1,46 @@
-package jpiccoli.uwml.media;
-
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.Hashtable;
-
-import jpiccoli.uwml.client.NetworkClient;
-import jpiccoli.uwml.util.ConnectionDescriptor;
-
-public class RTPDemux extends NetworkClient {
-
-    private Hashtable<Byte, RTPInput> inputs;
-    
-    public RTPDemux(ConnectionDescriptor descriptor, int sessionIdentifier) throws IOException {
-        super(descriptor, sessionIdentifier);
-        inputs = new Hashtable<Byte, RTPInput>();
-    }
-
-    protected void addInput(byte key, RTPInput input) { 
-        inputs.put(key, input);
-    }
-    
-    protected void removeInput(byte key) {
-        inputs.remove(key);
-    }
-    
-    @Override
-    protected void processReceivedData(ByteBuffer data) {
-        if (inputs != null) {
-            byte key = data.get();
-            RTPInput input = inputs.get(key);
-            if (input != null) input.transfer(data);
-        }
-    }
-    
-}
+package jpiccoli.uwml.media;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Hashtable;
+
+import jpiccoli.uwml.client.NetworkClient;
+import jpiccoli.uwml.util.ConnectionDescriptor;
+
+public class RTPDemux extends NetworkClient {
+
+    /**
+     * Chaves que identificam o fluxo de cada mensagem. São o primeiro byte de
+     * todas as mensagens da aplicação e também são utilizadas pelos relays para
+     * priorizar o áudio e o controle RTCP.
+     */
+    public static final byte AUDIO_DATA_KEY = 0;
+    public static final byte AUDIO_CTRL_KEY = 1;
+    public static final byte VIDEO_DATA_KEY = 2;
+    public static final byte VIDEO_CTRL_KEY = 3;
+    
+    private Hashtable<Byte, RTPInput> inputs;
+    
+    public RTPDemux(ConnectionDescriptor descriptor, int sessionIdentifier) throws IOException {
+        super(descriptor, sessionIdentifier);
+        inputs = new Hashtable<Byte, RTPInput>();
+    }
+
+    protected void addInput(byte key, RTPInput input) { 
+        inputs.put(key, input);
+    }
+    
+    protected void removeInput(byte key) {
+        inputs.remove(key);
+    }
+    
+    @Override
+    protected void processReceivedData(ByteBuffer data) {
+        if (inputs != null) {
+            byte key = data.get();
+            RTPInput input = inputs.get(key);
+            if (input != null) input.transfer(data);
+        }
+    }
+    
+}
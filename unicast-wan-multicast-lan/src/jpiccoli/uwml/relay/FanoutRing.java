@@ -0,0 +1,191 @@
+package jpiccoli.uwml.relay;
+
+import java.nio.ByteBuffer;
+
+import jpiccoli.uwml.remote.RemoteCommunicator;
+
+/**
+ * Preallocated ring of received packets waiting to be forwarded by a
+ * FanoutWorker. The session's IOThread is the only producer and the worker
+ * the only consumer, so the two cursors are the only shared state.
+ * <p>
+ * Every slot leaves room for the frame header in front of the payload, so
+ * the worker forwards it without copying again.
+ */
+public class FanoutRing {
+
+    private RelaySession session;
+    private FanoutWorker worker;
+    
+    private ByteBuffer[] slots;
+    private RemoteCommunicator[] sources;
+    private short[] types;
+    private long[] publishTimes;
+    private int mask;
+    
+    /**
+     * Occupancy from which video is shed, so that a backlog of video does
+     * not delay audio
+     */
+    private int sheddingOccupancy;
+    
+    /**
+     * Next slot to be published, written by the IOThread, and next slot to
+     * be forwarded, written by the worker
+     */
+    private volatile long head;
+    private volatile long tail;
+    
+    /**
+     * Set while the ring is waiting in the worker's queue
+     */
+    private volatile boolean scheduled;
+    
+    private volatile long overflows;
+    private volatile long shed;
+    private volatile long oversized;
+    private volatile int maxOccupancy;
+    private volatile long forwarded;
+    private volatile long totalLatency;
+    private volatile long maxLatency;
+    
+    /**
+     * @param size Number of slots, rounded up to a power of two
+     * @param slotSize Largest packet the ring holds; larger ones are forwarded
+     * by the IOThread itself
+     */
+    public FanoutRing(RelaySession session, FanoutWorker worker, int size, int slotSize) {
+        this.session = session;
+        this.worker = worker;
+        int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+        mask = capacity - 1;
+        sheddingOccupancy = capacity - capacity / 4;
+        slots = new ByteBuffer[capacity];
+        sources = new RemoteCommunicator[capacity];
+        types = new short[capacity];
+        publishTimes = new long[capacity];
+        int stride = slotSize + RelayRemoteConnection.FRAME_HEADER_SIZE;
+        ByteBuffer memory = ByteBuffer.allocateDirect(stride * capacity);
+        for (int i = 0; i < capacity; i++) {
+            memory.limit((i + 1) * stride).position(i * stride);
+            slots[i] = memory.slice();
+        }
+    }
+    
+    public int getCapacity() {
+        return slots.length;
+    }
+    
+    /**
+     * Packets waiting to be forwarded
+     */
+    public int getOccupancy() {
+        return (int) (head - tail);
+    }
+    
+    public int getMaxOccupancy() {
+        return maxOccupancy;
+    }
+    
+    /**
+     * Packets dropped because the ring was full
+     */
+    public long getOverflows() {
+        return overflows;
+    }
+    
+    /**
+     * Video packets dropped because the ring was filling up
+     */
+    public long getShed() {
+        return shed;
+    }
+    
+    /**
+     * Packets too large for a slot, forwarded by the IOThread instead
+     */
+    public long getOversized() {
+        return oversized;
+    }
+    
+    public long getForwarded() {
+        return forwarded;
+    }
+    
+    /**
+     * Average time, in nanoseconds, between publishing a packet and sending
+     * it to the last recipient
+     */
+    public long getAverageLatency() {
+        long forwarded = this.forwarded;
+        return forwarded == 0 ? 0 : totalLatency / forwarded;
+    }
+    
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+    
+    /**
+     * Copies the packet into the next free slot. Called on the session's
+     * IOThread only.
+     * @return False if the packet does not fit in a slot, or is a control
+     * packet and the ring is full, and must be forwarded by the caller
+     */
+    protected boolean publish(RemoteCommunicator source, ByteBuffer data, short type) {
+        long head = this.head;
+        ByteBuffer slot = slots[(int) head & mask];
+        if (data.remaining() > slot.capacity() - RelayRemoteConnection.FRAME_HEADER_SIZE) {
+            oversized++;
+            return false;
+        }
+        int occupancy = (int) (head - tail);
+        if (occupancy >= sheddingOccupancy) {
+            int priority = MediaPriority.of(type, data, data.position(), data.limit());
+            if (occupancy == slots.length) {
+                if (priority == MediaPriority.CONTROL) return false;
+                // Blocking would stall every other connection of the IOThread
+                overflows++;
+                session.ringOverflowed(data.remaining());
+                return true;
+            } else if (priority == MediaPriority.VIDEO) {
+                shed++;
+                session.ringOverflowed(data.remaining());
+                return true;
+            }
+        }
+        int position = data.position();
+        slot.clear().position(RelayRemoteConnection.FRAME_HEADER_SIZE);
+        slot.put(data).flip().position(RelayRemoteConnection.FRAME_HEADER_SIZE);
+        data.position(position);
+        sources[(int) head & mask] = source;
+        types[(int) head & mask] = type;
+        publishTimes[(int) head & mask] = System.nanoTime();
+        if (occupancy + 1 > maxOccupancy) maxOccupancy = occupancy + 1;
+        this.head = head + 1;
+        if (!scheduled) {
+            scheduled = true;
+            worker.schedule(this);
+        }
+        return true;
+    }
+    
+    /**
+     * Forwards every published packet. Called by the worker thread.
+     */
+    protected void drain() {
+        scheduled = false;
+        long tail = this.tail;
+        while (tail < head) {
+            int index = (int) tail & mask;
+            session.deliver(sources[index], slots[index], types[index]);
+            long latency = System.nanoTime() - publishTimes[index];
+            session.fannedOut(latency);
+            totalLatency += latency;
+            if (latency > maxLatency) maxLatency = latency;
+            forwarded++;
+            sources[index] = null;
+            this.tail = ++tail;
+        }
+    }
+    
+}
@@ -0,0 +1,62 @@
+package jpiccoli.uwml.relay;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread that forwards the packets published in the rings of its sessions,
+ * taking the fan-out off the IOThreads. A session is always served by the
+ * same worker, so its packets keep their order.
+ */
+public class FanoutWorker extends Thread {
+
+    private ConcurrentLinkedQueue<FanoutRing> ready;
+    private volatile boolean sleeping;
+    private volatile boolean stop;
+    
+    public FanoutWorker() {
+        ready = new ConcurrentLinkedQueue<FanoutRing>();
+        setDaemon(true);
+    }
+    
+    protected void schedule(FanoutRing ring) {
+        ready.add(ring);
+        if (sleeping) {
+            synchronized(this) {
+                notify();
+            }
+        }
+    }
+    
+    public void shutdown() {
+        stop = true;
+        synchronized(this) {
+            notify();
+        }
+    }
+    
+    public void run() {
+        while(!stop) {
+            FanoutRing ring = ready.poll();
+            if (ring != null) {
+                try {
+                    ring.drain();
+                } catch (Exception e) {
+                    // TODO Auto-generated catch block
+                    e.printStackTrace();
+                }
+                continue;
+            }
+            synchronized(this) {
+                sleeping = true;
+                try {
+                    if (ready.isEmpty() && !stop) wait();
+                } catch (InterruptedException e) {
+                    // TODO Auto-generated catch block
+                    e.printStackTrace();
+                }
+                sleeping = false;
+            }
+        }
+    }
+    
+}
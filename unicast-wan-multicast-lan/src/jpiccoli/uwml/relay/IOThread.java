@@ -1,202 +1,553 @@
-package jpiccoli.uwml.relay;
-
-import java.io.IOException;
-import java.net.SocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Iterator;
-
-import jpiccoli.uwml.remote.RemoteCommunicator;
-import jpiccoli.uwml.remote.RemoteConnection;
-import jpiccoli.uwml.util.ConnectionDescriptor;
-import jpiccoli.uwml.util.ProtocolType;
-
-public class IOThread implements Runnable {
-    
-    private RelayEngine engine;
-    private Selector selector;
-    private ByteBuffer inputBuffer;
-    private int inputBufferSize;
-    private int outputBufferSize;
-    private Hashtable<SocketAddress, UDPRelayConnection> udpConnections;
-    private Hashtable<RemoteConnection, RemoteCommunicator> closedConnections;
-    private boolean stop;
-    
-    private Thread thread;
-    
-    public IOThread(RelayEngine engine, ConnectionDescriptor[] descriptors, int inputBufferSize, int outputBufferSize) throws IOException {
-        this.engine = engine;
-        this.inputBufferSize = inputBufferSize;
-        this.outputBufferSize = outputBufferSize;
-        selector = Selector.open();
-        inputBuffer = ByteBuffer.allocateDirect(inputBufferSize + 10);
-        udpConnections = new Hashtable<SocketAddress, UDPRelayConnection>();
-        closedConnections = new Hashtable<RemoteConnection, RemoteCommunicator>();
-        stop = false;
-        openSockets(descriptors);
-    }
-
-    public IOThread(RelayEngine engine, ConnectionDescriptor[] descriptors) throws IOException {
-        this(engine, descriptors, 1024, 1024);
-    }
-    
-    public synchronized void start() {
-        if (thread == null && !stop) {
-            thread = new Thread(this);
-            thread.setName("Relay IOThread");
-            thread.start();
-        }
-    }
-    
-    public synchronized void stop() {
-        stop = true;
-        try {
-            selector.close();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-    }
-    
-    public void run() {
-        // TODO Substituir por uma varivel boolena
-        while(!stop) {
-            try {
-                if (selector.select() > 0) {
-                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
-                    while(iterator.hasNext()) {
-                        SelectionKey key = iterator.next();
-                        RelayRemoteConnection remoteConnection = null;
-                        try {
-                            if (key.isReadable()) {
-                                remoteConnection = null;
-                                if (key.channel() instanceof DatagramChannel) {
-                                    remoteConnection = handleUDPConnection(key);
-                                } else {
-                                    remoteConnection = handleTCPConnection(key);
-                                }
-                                if (remoteConnection != null) remoteConnection.receiveData();
-                            } else if (key.isAcceptable()) {
-                                ServerSocketChannel serverSocket = (ServerSocketChannel) key.channel();
-                                SocketChannel socket = serverSocket.accept();
-                                socket.configureBlocking(false);
-                                socket.register(selector, SelectionKey.OP_READ, createTCPConnection(socket));
-                            }
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            if (remoteConnection != null) {
-                                remoteConnection.closeCommunication();
-                            }
-                            key.cancel();
-                        } finally {
-                            iterator.remove();
-                        }
-                    }
-                }
-                notifyClosedConnections();
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-        }
-        stop();
-    }
-    
-    private void notifyClosedConnections() {
-        if (closedConnections.size() > 0) {
-            Enumeration<RemoteConnection> enumeration = closedConnections.keys();
-            while (enumeration.hasMoreElements()) {
-                RemoteConnection connection = enumeration.nextElement();
-                if (connection != null) {
-                    RemoteCommunicator communicator = closedConnections.remove(connection);
-                    if (communicator != null) {
-                        communicator.connectionLost(connection);
-                    }
-                }
-            }
-        }
-    }
-    
-    protected ByteBuffer getUDPInputBuffer() {
-        return inputBuffer;
-    }
-    
-    protected void changeUDPInputBufferSize(int bufferSize) {
-        if (bufferSize > inputBuffer.capacity()) {
-            inputBuffer = ByteBuffer.allocateDirect(bufferSize);
-        }
-    }
-
-    private UDPRelayConnection handleUDPConnection(SelectionKey key) throws IOException {
-        DatagramChannel datagramChannel = (DatagramChannel) key.channel();
-        inputBuffer.clear();
-        SocketAddress remoteAddress = datagramChannel.receive(inputBuffer);
-        inputBuffer.flip();
-        UDPRelayConnection udpConnection = null;
-        if (remoteAddress != null) {
-            udpConnection = udpConnections.get(remoteAddress);
-            // TODO Criar a conexo...
-            if (udpConnection == null) {
-                RemoteCommunicator communicator = new RemoteCommunicator(engine);
-                udpConnection = new UDPRelayConnection(this, communicator, datagramChannel, remoteAddress, inputBufferSize, outputBufferSize);
-                communicator.setConnection(udpConnection);
-                udpConnections.put(remoteAddress, (UDPRelayConnection) udpConnection);
-            }
-        }
-        return udpConnection;
-    }
-
-    private TCPRelayConnection handleTCPConnection(SelectionKey key) {
-        return (TCPRelayConnection) key.attachment();
-    }
-
-    private TCPRelayConnection createTCPConnection(SocketChannel socket) {
-        RemoteCommunicator communicator = new RemoteCommunicator(engine);
-        TCPRelayConnection tcpConnection = new TCPRelayConnection(this, communicator, socket, inputBufferSize, outputBufferSize);
-        communicator.setConnection(tcpConnection);
-        return tcpConnection;
-    }
-    
-    protected void udpConnectionClosed(RemoteCommunicator communicator, UDPRelayConnection connection) {
-        udpConnections.remove(connection.getRemoteAddress());
-        closedConnections.put(connection, communicator);
-        selector.wakeup();
-    }
-    
-    protected void tcpConnectionClosed(RemoteCommunicator communicator, TCPRelayConnection connection) {
-        if (connection.getChannel().keyFor(selector) != null) {
-            connection.getChannel().keyFor(selector).cancel();
-            closedConnections.put(connection, communicator);
-            selector.wakeup();
-        }
-    }
-
-    private void openSockets(ConnectionDescriptor[] descriptors) throws IOException {
-        for (int i = 0; i < descriptors.length; i++) {
-            if (descriptors[i].getProtocol() != null) {
-                if (descriptors[i].getProtocol() == ProtocolType.TCP) {
-                    if (descriptors[i].getLocalAddress() != null) {
-                        ServerSocketChannel serverSocket = ServerSocketChannel.open();
-                        serverSocket.configureBlocking(false);
-                        serverSocket.socket().bind(descriptors[i].getLocalAddress());
-                        serverSocket.register(selector, SelectionKey.OP_ACCEPT);
-                    }
-                } else if (descriptors[i].getProtocol() == ProtocolType.UDP) {
-                    if (descriptors[i].getLocalAddress() != null) {
-                        DatagramChannel datagramChannel = DatagramChannel.open();
-                        datagramChannel.socket().bind(descriptors[i].getLocalAddress());
-                        datagramChannel.configureBlocking(false);
-                        datagramChannel.register(selector, SelectionKey.OP_READ);
-                    }
-                }
-            }
-        }
-    }
-    
-}
+package jpiccoli.uwml.relay;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import jpiccoli.uwml.remote.RemoteCommunicator;
+import jpiccoli.uwml.remote.RemoteConnection;
+import jpiccoli.uwml.util.BufferPool;
+import jpiccoli.uwml.util.ConnectionDescriptor;
+import jpiccoli.uwml.util.PeerTable;
+import jpiccoli.uwml.util.TimingWheel;
+import jpiccoli.uwml.util.ProtocolType;
+
+public class IOThread implements Runnable {
+    
+    /**
+     * How long, in milliseconds, video keeps being shed after a UDP send
+     * found the socket buffer full
+     */
+    public static final long UDP_CONGESTION_HOLD = 100;
+    
+    private RelayEngine engine;
+    private Selector selector;
+    private ByteBuffer inputBuffer;
+    private ByteBuffer frameBuffer;
+    private int inputBufferSize;
+    private int outputBufferSize;
+    /**
+     * UDP peers whose datagrams arrive on this IOThread's sockets. Only
+     * accessed from this IOThread.
+     */
+    private PeerTable<UDPRelayConnection> udpConnections;
+    private Hashtable<RemoteConnection, RemoteCommunicator> closedConnections;
+    private ArrayList<DatagramChannel> datagramChannels;
+    private ConcurrentLinkedQueue<Runnable> tasks;
+    private BufferPool bufferPool;
+    private TimingWheel timeouts;
+    private long nextTick;
+    private TrafficStats stats;
+    
+    /**
+     * Time spent waiting in select and handling events, in nanoseconds.
+     * Written by this IOThread only.
+     */
+    private volatile long idleTime;
+    private volatile long busyTime;
+    
+    /**
+     * When a UDP send last found the socket buffer full, in nanoseconds
+     */
+    private volatile long udpCongestedSince;
+    private boolean stop;
+    
+    private Thread thread;
+    
+    public IOThread(RelayEngine engine, ConnectionDescriptor[] descriptors, int inputBufferSize, int outputBufferSize) throws IOException {
+        this(engine, inputBufferSize, outputBufferSize);
+        openSockets(descriptors);
+    }
+
+    public IOThread(RelayEngine engine, ConnectionDescriptor[] descriptors) throws IOException {
+        this(engine, descriptors, 1024, 1024);
+    }
+    
+    /**
+     * Creates an IOThread without any listening socket. Sockets are added
+     * later through openTCPServer and openUDPChannel, which is how the
+     * engine builds a group of reactors sharing the same ports.
+     */
+    protected IOThread(RelayEngine engine, int inputBufferSize, int outputBufferSize) throws IOException {
+        this.engine = engine;
+        this.inputBufferSize = inputBufferSize;
+        this.outputBufferSize = outputBufferSize;
+        selector = Selector.open();
+        inputBuffer = ByteBuffer.allocateDirect(inputBufferSize + 10 + RelayRemoteConnection.FRAME_HEADROOM);
+        udpConnections = new PeerTable<UDPRelayConnection>();
+        closedConnections = new Hashtable<RemoteConnection, RemoteCommunicator>();
+        datagramChannels = new ArrayList<DatagramChannel>();
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+        bufferPool = new BufferPool();
+        timeouts = new TimingWheel();
+        stats = new TrafficStats(true);
+        stop = false;
+    }
+    
+    public synchronized void start() {
+        if (thread == null && !stop) {
+            thread = new Thread(this);
+            thread.setName("Relay IOThread");
+            thread.start();
+        }
+    }
+    
+    public synchronized void start(String name) {
+        start();
+        if (thread != null) thread.setName(name);
+    }
+    
+    public synchronized void stop() {
+        stop = true;
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+    }
+    
+    public synchronized String getName() {
+        return thread != null ? thread.getName() : null;
+    }
+    
+    protected RelayEngine getEngine() {
+        return engine;
+    }
+    
+    public boolean isIOThread() {
+        return Thread.currentThread() == thread;
+    }
+    
+    /**
+     * Runs the task inside this IOThread's loop. Everything that touches the
+     * selector or the connections owned by this thread from another thread
+     * must go through here.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+    
+    /**
+     * Schedules a timeout on this IOThread's timing wheel. It expires on this
+     * thread.
+     */
+    public void schedule(TimingWheel.Timeout timeout, long delay) {
+        if (timeouts.schedule(timeout, delay) && !isIOThread()) selector.wakeup();
+    }
+    
+    public void run() {
+        // TODO Substituir por uma variável boolena
+        long busySince = System.nanoTime();
+        while(!stop) {
+            try {
+                long selectStart = System.nanoTime();
+                busyTime += selectStart - busySince;
+                int selected = nextTick > 0 ? selector.select(nextTick) : selector.select();
+                busySince = System.nanoTime();
+                idleTime += busySince - selectStart;
+                if (selected > 0) {
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while(iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        RelayRemoteConnection remoteConnection = null;
+                        try {
+                            if (key.isConnectable()) {
+                                remoteConnection = handleTCPConnection(key);
+                                ((TCPRelayConnection) remoteConnection).finishConnect();
+                                continue;
+                            }
+                            if (key.isWritable()) {
+                                remoteConnection = handleTCPConnection(key);
+                                ((TCPRelayConnection) remoteConnection).flush();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                remoteConnection = null;
+                                if (key.channel() instanceof DatagramChannel) {
+                                    remoteConnection = handleUDPConnection(key);
+                                } else {
+                                    remoteConnection = handleTCPConnection(key);
+                                }
+                                if (remoteConnection != null) remoteConnection.receiveData();
+                            } else if (key.isValid() && key.isAcceptable()) {
+                                ServerSocketChannel serverSocket = (ServerSocketChannel) key.channel();
+                                SocketChannel socket = serverSocket.accept();
+                                if (socket != null) {
+                                    socket.configureBlocking(false);
+                                    IOThread target = engine.nextIOThread();
+                                    (target != null ? target : this).adoptTCPConnection(socket);
+                                }
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            if (remoteConnection != null) {
+                                remoteConnection.closeCommunication();
+                            }
+                            key.cancel();
+                        } finally {
+                            iterator.remove();
+                        }
+                    }
+                }
+                runTasks();
+                notifyClosedConnections();
+                nextTick = timeouts.advance();
+            } catch (IOException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            }
+        }
+        stop();
+    }
+    
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    private void notifyClosedConnections() {
+        if (closedConnections.size() > 0) {
+            Enumeration<RemoteConnection> enumeration = closedConnections.keys();
+            while (enumeration.hasMoreElements()) {
+                RemoteConnection connection = enumeration.nextElement();
+                if (connection != null) {
+                    RemoteCommunicator communicator = closedConnections.remove(connection);
+                    engine.connectionClosed(connection);
+                    if (connection instanceof TCPRelayConnection) {
+                        ((TCPRelayConnection) connection).releaseBuffers();
+                    }
+                    if (communicator != null) {
+                        communicator.connectionLost(connection);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Traffic of every connection while it was owned by this IOThread, and
+     * fan-out times of the sessions pinned to it
+     */
+    public TrafficStats getStats() {
+        return stats;
+    }
+    
+    /**
+     * Time this IOThread spent handling events and tasks, in nanoseconds.
+     * The share of busy time over an interval is the loop utilization.
+     */
+    public long getBusyTime() {
+        return busyTime;
+    }
+    
+    /**
+     * Time this IOThread spent waiting for events, in nanoseconds
+     */
+    public long getIdleTime() {
+        return idleTime;
+    }
+    
+    /**
+     * Records that a datagram was dropped because the socket buffer of
+     * one of this IOThread's UDP channels was full
+     */
+    protected void udpSendFailed() {
+        udpCongestedSince = System.nanoTime();
+    }
+    
+    /**
+     * Whether a UDP send found the socket buffer full in the last
+     * UDP_CONGESTION_HOLD milliseconds, in which case video is shed
+     */
+    public boolean isUDPCongested() {
+        long since = udpCongestedSince;
+        return since != 0 && System.nanoTime() - since < UDP_CONGESTION_HOLD * 1000000L;
+    }
+    
+    /**
+     * Tasks waiting to run on this IOThread
+     */
+    public int getPendingTasks() {
+        return tasks.size();
+    }
+    
+    /**
+     * Pool the connections of this IOThread borrow their buffers from
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+    
+    protected ByteBuffer getUDPInputBuffer() {
+        return inputBuffer;
+    }
+    
+    protected void changeUDPInputBufferSize(int bufferSize) {
+        bufferSize += RelayRemoteConnection.FRAME_HEADROOM;
+        if (bufferSize > inputBuffer.capacity()) {
+            inputBuffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+    }
+    
+    /**
+     * Scratch buffer for frames whose message was not received with
+     * headroom in front of it. Only used from this IOThread.
+     */
+    protected ByteBuffer getFrameBuffer(int size) {
+        if (frameBuffer == null || frameBuffer.capacity() < size) {
+            frameBuffer = ByteBuffer.allocateDirect(size);
+        }
+        frameBuffer.clear();
+        return frameBuffer;
+    }
+
+    private UDPRelayConnection handleUDPConnection(SelectionKey key) throws IOException {
+        DatagramChannel datagramChannel = (DatagramChannel) key.channel();
+        // Datagrams are received after the headroom, see RelayRemoteConnection.FRAME_HEADROOM
+        inputBuffer.clear().position(RelayRemoteConnection.FRAME_HEADROOM);
+        SocketAddress remoteAddress = datagramChannel.receive(inputBuffer);
+        inputBuffer.flip().position(RelayRemoteConnection.FRAME_HEADROOM);
+        UDPRelayConnection udpConnection = null;
+        if (remoteAddress != null) {
+            udpConnection = udpConnections.get(remoteAddress);
+            // TODO Criar a conexão...
+            if (udpConnection == null) {
+                // Only an INITIALIZE opens a connection. Datagrams still in flight
+                // when a connection is closed, such as the ACK of a REDIRECT, would
+                // otherwise open one nobody uses until its liveness expires.
+                if (!isInitializeMessage(inputBuffer)) return null;
+                RemoteCommunicator communicator = new RemoteCommunicator(engine);
+                udpConnection = new UDPRelayConnection(this, communicator, datagramChannel, remoteAddress, inputBufferSize, outputBufferSize);
+                communicator.setConnection(udpConnection);
+                udpConnections.put(remoteAddress, (UDPRelayConnection) udpConnection);
+            } else if (udpConnection.getIoThread() != this) {
+                // The kernel delivers this peer to our socket, but its session is
+                // pinned to another IOThread: hand the datagram over to it.
+                udpConnection.getIoThread().dispatchDatagram(udpConnection, inputBuffer);
+                udpConnection = null;
+            }
+        }
+        return udpConnection;
+    }
+
+    private static boolean isInitializeMessage(ByteBuffer datagram) {
+        int position = datagram.position();
+        return datagram.remaining() >= 12
+            && datagram.getShort(position) == RemoteConnection.CTRL_MSG
+            && datagram.getShort(position + 10) == RemoteCommunicator.INITIALIZE_MSG;
+    }
+
+    private void dispatchDatagram(final UDPRelayConnection connection, ByteBuffer datagram) {
+        final ByteBuffer copy = bufferPool.acquire(datagram.remaining());
+        copy.put(datagram).flip();
+        execute(new Runnable() {
+            public void run() {
+                changeUDPInputBufferSize(copy.remaining());
+                inputBuffer.clear().position(RelayRemoteConnection.FRAME_HEADROOM);
+                inputBuffer.put(copy).flip().position(RelayRemoteConnection.FRAME_HEADROOM);
+                bufferPool.release(copy);
+                try {
+                    connection.receiveData();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    connection.closeCommunication();
+                }
+            }
+        });
+    }
+
+    private TCPRelayConnection handleTCPConnection(SelectionKey key) {
+        return (TCPRelayConnection) key.attachment();
+    }
+
+    private TCPRelayConnection createTCPConnection(SocketChannel socket) {
+        RemoteCommunicator communicator = new RemoteCommunicator(engine);
+        TCPRelayConnection tcpConnection = new TCPRelayConnection(this, communicator, socket, inputBufferSize, outputBufferSize);
+        engine.configure(tcpConnection);
+        communicator.setConnection(tcpConnection);
+        return tcpConnection;
+    }
+    
+    private void adoptTCPConnection(final SocketChannel socket) throws IOException {
+        if (isIOThread()) {
+            createTCPConnection(socket).register(selector);
+        } else {
+            execute(new Runnable() {
+                public void run() {
+                    try {
+                        createTCPConnection(socket).register(selector);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        try {
+                            socket.close();
+                        } catch (IOException ioe) {}
+                    }
+                }
+            });
+        }
+    }
+    
+    /**
+     * Opens a link to another relay for the communicator, which must already
+     * be set up as a peer of a session owned by this IOThread. Must be
+     * called from this IOThread.
+     */
+    protected void connectPeer(RemoteCommunicator link, SocketAddress address) {
+        TCPRelayConnection connection = null;
+        try {
+            SocketChannel socket = SocketChannel.open();
+            socket.configureBlocking(false);
+            connection = new TCPRelayConnection(this, link, socket, inputBufferSize, outputBufferSize);
+            engine.configure(connection);
+            link.setConnection(connection);
+            connection.registerConnect(selector);
+            if (socket.connect(address)) connection.finishConnect();
+        } catch (IOException e) {
+            e.printStackTrace();
+            link.getCommunicatorCallback().connectionLost(link);
+            if (connection != null) connection.closeCommunication();
+        }
+    }
+    
+    /**
+     * Moves the connection to the target IOThread and then runs the task
+     * there. Must be called from this IOThread, which owns the connection
+     * until the move is done.
+     */
+    protected void migrate(final RelayRemoteConnection connection, final IOThread target, final Runnable then) {
+        if (target == this) {
+            then.run();
+            return;
+        }
+        if (connection instanceof TCPRelayConnection) {
+            SelectionKey key = ((TCPRelayConnection) connection).getChannel().keyFor(selector);
+            if (key != null) key.cancel();
+        }
+        connection.setIoThread(target);
+        target.execute(new Runnable() {
+            public void run() {
+                try {
+                    target.attach(connection);
+                    then.run();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    connection.closeCommunication();
+                }
+            }
+        });
+    }
+    
+    private void attach(RelayRemoteConnection connection) throws IOException {
+        if (connection instanceof TCPRelayConnection) {
+            ((TCPRelayConnection) connection).register(selector);
+        } else if (connection instanceof UDPRelayConnection) {
+            UDPRelayConnection udpConnection = (UDPRelayConnection) connection;
+            DatagramChannel channel = getDatagramChannel(udpConnection.getChannel().getLocalAddress());
+            if (channel != null) udpConnection.setChannel(channel);
+        }
+    }
+    
+    private DatagramChannel getDatagramChannel(SocketAddress localAddress) throws IOException {
+        for (int i = 0; i < datagramChannels.size(); i++) {
+            DatagramChannel channel = datagramChannels.get(i);
+            if (channel.getLocalAddress().equals(localAddress)) {
+                return channel;
+            }
+        }
+        return null;
+    }
+    
+    protected void udpConnectionClosed(final RemoteCommunicator communicator, final UDPRelayConnection connection) {
+        if (!isIOThread()) {
+            execute(new Runnable() {
+                public void run() {
+                    udpConnectionClosed(communicator, connection);
+                }
+            });
+            return;
+        }
+        // The peer may already be using a new connection
+        if (udpConnections.get(connection.getRemoteAddress()) == connection) {
+            udpConnections.remove(connection.getRemoteAddress());
+        }
+        connection.getIoThread().connectionClosed(communicator, connection);
+    }
+    
+    private void connectionClosed(RemoteCommunicator communicator, RemoteConnection connection) {
+        closedConnections.put(connection, communicator);
+        selector.wakeup();
+    }
+    
+    protected void tcpConnectionClosed(RemoteCommunicator communicator, TCPRelayConnection connection) {
+        if (connection.getChannel().keyFor(selector) != null) {
+            connection.getChannel().keyFor(selector).cancel();
+            closedConnections.put(connection, communicator);
+            selector.wakeup();
+        }
+    }
+
+    private void openSockets(ConnectionDescriptor[] descriptors) throws IOException {
+        for (int i = 0; i < descriptors.length; i++) {
+            if (descriptors[i].getProtocol() != null) {
+                if (descriptors[i].getProtocol() == ProtocolType.TCP) {
+                    if (descriptors[i].getLocalAddress() != null) {
+                        openTCPServer(descriptors[i].getLocalAddress());
+                    }
+                } else if (descriptors[i].getProtocol() == ProtocolType.UDP) {
+                    if (descriptors[i].getLocalAddress() != null) {
+                        openUDPChannel(descriptors[i].getLocalAddress(), false);
+                    }
+                }
+            }
+        }
+    }
+    
+    protected void openTCPServer(SocketAddress localAddress) throws IOException {
+        ServerSocketChannel serverSocket = ServerSocketChannel.open();
+        serverSocket.configureBlocking(false);
+        serverSocket.socket().bind(localAddress);
+        serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+    }
+    
+    protected SocketAddress openUDPChannel(SocketAddress localAddress, boolean reusePort) throws IOException {
+        DatagramChannel datagramChannel = DatagramChannel.open();
+        if (reusePort) datagramChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        datagramChannel.socket().bind(localAddress);
+        datagramChannel.configureBlocking(false);
+        datagramChannel.register(selector, SelectionKey.OP_READ);
+        datagramChannels.add(datagramChannel);
+        return datagramChannel.getLocalAddress();
+    }
+    
+    protected static boolean isReusePortSupported() {
+        try {
+            DatagramChannel channel = DatagramChannel.open();
+            try {
+                return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+}
@@ -0,0 +1,66 @@
+package jpiccoli.uwml.relay;
+
+import java.nio.ByteBuffer;
+
+import jpiccoli.uwml.media.RTPDemux;
+import jpiccoli.uwml.remote.RemoteConnection;
+
+/**
+ * Priority of a forwarded message, used to decide what is shed when the
+ * relay or a receiver cannot keep up. Application messages start with the
+ * RTPDemux key of their stream: RTCP and the relay's own control messages
+ * are never shed, audio is shed only after video. Keys of other
+ * applications count as audio, so they are never shed before video.
+ * Reliable messages count as control: dropping them only causes
+ * retransmissions.
+ */
+public class MediaPriority {
+
+    public static final int CONTROL = 0;
+    public static final int AUDIO = 1;
+    public static final int VIDEO = 2;
+
+    public static final int LEVELS = 3;
+
+    private MediaPriority() {
+    }
+
+    public static int ofKey(byte key) {
+        switch (key) {
+        case RTPDemux.AUDIO_CTRL_KEY:
+        case RTPDemux.VIDEO_CTRL_KEY:
+            return CONTROL;
+        case RTPDemux.VIDEO_DATA_KEY:
+            return VIDEO;
+        default:
+            return AUDIO;
+        }
+    }
+
+    /**
+     * Priority of a message whose payload goes from offset to limit. A set
+     * of aggregated messages has the priority of the most important one.
+     */
+    public static int of(short type, ByteBuffer data, int offset, int limit) {
+        if (type == RemoteConnection.NORMAL_MSG) {
+            return offset < limit ? ofKey(data.get(offset)) : AUDIO;
+        } else if (type == RemoteConnection.AGGREGATED_MSG) {
+            int priority = VIDEO;
+            while (offset + 2 < limit && priority != CONTROL) {
+                int size = data.getShort(offset) & 0xFFFF;
+                if (size > 0) priority = Math.min(priority, ofKey(data.get(offset + 2)));
+                offset += 2 + size;
+            }
+            return priority;
+        }
+        return CONTROL;
+    }
+
+    /**
+     * Priority of an encoded frame, see RelayRemoteConnection.sendFrame
+     */
+    public static int ofFrame(ByteBuffer frame, int offset) {
+        return of(frame.getShort(offset + 4), frame, offset + RelayRemoteConnection.FRAME_HEADER_SIZE, frame.limit());
+    }
+
+}
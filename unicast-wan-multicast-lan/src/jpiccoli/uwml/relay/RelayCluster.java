@@ -0,0 +1,117 @@
+package jpiccoli.uwml.relay;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Hashtable;
+
+/**
+ * Places sessions on the nodes of a relay cluster with consistent hashing.
+ * Every node is mapped to several points of a ring; a session belongs to the
+ * first point after its own hash. Adding or removing a node only moves the
+ * sessions between its points and the previous ones, about 1/N of them.
+ * All the nodes of a cluster must be configured with the same members.
+ */
+public class RelayCluster {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+    
+    private int virtualNodes;
+    private Hashtable<Integer, SocketAddress> nodes;
+    
+    /**
+     * Ring points, sorted, and the identifier of the node owning each one.
+     * Replaced as a whole when the membership changes.
+     */
+    private volatile Ring ring;
+    
+    public RelayCluster() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+    
+    public RelayCluster(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+        nodes = new Hashtable<Integer, SocketAddress>();
+        ring = new Ring(new int[0], new int[0]);
+    }
+    
+    /**
+     * Adds a node. Its address is sent to the clients redirected to it, so
+     * it must be an IP address or a host name that resolves.
+     * @throws IllegalArgumentException If the address cannot be resolved
+     */
+    public synchronized void addNode(int relayIdentifier, SocketAddress address) {
+        if (!(address instanceof InetSocketAddress)) throw new IllegalArgumentException("Not an IP socket address: " + address);
+        InetSocketAddress inetAddress = (InetSocketAddress) address;
+        // Resolution may have failed only temporarily when the address was created
+        if (inetAddress.isUnresolved()) inetAddress = new InetSocketAddress(inetAddress.getHostString(), inetAddress.getPort());
+        if (inetAddress.isUnresolved()) throw new IllegalArgumentException("Unresolved node address: " + address);
+        nodes.put(relayIdentifier, inetAddress);
+        rebuild();
+    }
+    
+    public synchronized void removeNode(int relayIdentifier) {
+        if (nodes.remove(relayIdentifier) != null) rebuild();
+    }
+    
+    public SocketAddress getNodeAddress(int relayIdentifier) {
+        return nodes.get(relayIdentifier);
+    }
+    
+    public int getNodeCount() {
+        return nodes.size();
+    }
+    
+    /**
+     * Returns the identifier of the node that owns the session, or -1 if the
+     * cluster is empty.
+     */
+    public int getOwner(int sessionIdentifier) {
+        Ring ring = this.ring;
+        if (ring.points.length == 0) return -1;
+        int index = Arrays.binarySearch(ring.points, mix(sessionIdentifier));
+        if (index < 0) index = -index - 1;
+        if (index == ring.points.length) index = 0;
+        return ring.owners[index];
+    }
+    
+    private void rebuild() {
+        int count = nodes.size() * virtualNodes;
+        long[] entries = new long[count];
+        int i = 0;
+        for (Integer relayIdentifier : nodes.keySet()) {
+            for (int j = 0; j < virtualNodes; j++) {
+                int point = mix(relayIdentifier * 0x01000193 + j * 0x9E3779B9);
+                // Sorting by point keeps the owner in the low bits
+                entries[i++] = ((long) point << 32) | (relayIdentifier & 0xFFFFFFFFL);
+            }
+        }
+        Arrays.sort(entries);
+        int[] points = new int[count];
+        int[] owners = new int[count];
+        for (i = 0; i < count; i++) {
+            points[i] = (int) (entries[i] >> 32);
+            owners[i] = (int) entries[i];
+        }
+        ring = new Ring(points, owners);
+    }
+    
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+    
+    private static class Ring {
+        private int[] points;
+        private int[] owners;
+        private Ring(int[] points, int[] owners) {
+            this.points = points;
+            this.owners = owners;
+        }
+    }
+    
+}
@@ -1,99 +1,618 @@
-package jpiccoli.uwml.relay;
-
-import java.io.IOException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-
-import jpiccoli.uwml.remote.RemoteCommunicator;
-import jpiccoli.uwml.remote.RemoteCommunicatorCallback;
-import jpiccoli.uwml.util.ConnectionDescriptor;
-import jpiccoli.uwml.util.ProtocolType;
-
-public class RelayEngine implements RemoteCommunicatorCallback {
-
-    private ArrayList<IOThread> ioThreads;
-    private ArrayList<RelaySession> sessions;
-    
-    public RelayEngine() {
-        ioThreads = new ArrayList<IOThread>();
-        sessions = new ArrayList<RelaySession>();
-    }
-    
-    private RelaySession createRelaySession(int sessionIdentifier) {
-        RelaySession session = new RelaySession(sessionIdentifier);
-        sessions.add(session);
-        ioThreads = new ArrayList<IOThread>();
-        return session;
-    }
-
-    public IOThread newIOThread(ConnectionDescriptor descriptors[]) {
-        return newIOThread(descriptors, 1024, 1024);
-    }
-    
-    public IOThread newIOThread(ConnectionDescriptor descriptors[], int inputBufferSize, int outputBufferSize) {
-        try {
-            IOThread ioThread = new IOThread(this, descriptors, inputBufferSize, outputBufferSize);
-            ioThreads.add(ioThread);
-            ioThread.start();
-            return ioThread;
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-        return null;
-    }
-    
-    public void shutdownIOThread(IOThread ioThread) {
-        ioThreads.remove(ioThread);
-        ioThread.stop();
-    }
-    
-    private RelaySession getRelaySession(int sessionIdentifier) {
-        for (int i = 0; i < sessions.size(); i++) {
-            RelaySession session = sessions.get(i);
-            if (session.getSessionIdentifier() == sessionIdentifier) {
-                return session;
-            }
-        }
-        return createRelaySession(sessionIdentifier);
-    }
-    
-    public void connectionInitialized(RemoteCommunicator source) {
-        if (source.getSessionIdentifier() > 0) {
-            RelaySession session = getRelaySession(source.getSessionIdentifier());
-            if (session != null) {
-                session.addCommunicator(source);
-            }
-        }
-    }
-
-    public void connectionLost(RemoteCommunicator source) {
-        source.close();
-    }
-
-    public void connectionStatusChanged(RemoteCommunicator source) {
-        source.close();
-    }
-
-    public void packetReceived(RemoteCommunicator source, ByteBuffer data) {
-        source.close();
-    }
-    
-    public static void main(String args[]) throws UnknownHostException {
-        ConnectionDescriptor[] descriptors = new ConnectionDescriptor[2];
-        descriptors[0] = new ConnectionDescriptor(ProtocolType.UDP, null, new InetSocketAddress((InetAddress) null, 3333));
-        descriptors[1] = new ConnectionDescriptor(ProtocolType.TCP, null, new InetSocketAddress((InetAddress) null, 3333));
-        RelayEngine engine = new RelayEngine();
-        engine.newIOThread(descriptors);
-        try {
-            Thread.sleep(Long.MAX_VALUE);
-        } catch (InterruptedException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-    }
-    
-}
+package jpiccoli.uwml.relay;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jpiccoli.uwml.remote.RemoteCommunicator;
+import jpiccoli.uwml.remote.RemoteCommunicatorCallback;
+import jpiccoli.uwml.remote.RemoteConnection;
+import jpiccoli.uwml.util.ConnectionDescriptor;
+import jpiccoli.uwml.util.ProtocolType;
+
+public class RelayEngine implements RemoteCommunicatorCallback {
+
+    public static final int DEFAULT_RING_SIZE = 256;
+    public static final int DEFAULT_SLOT_SIZE = 2048;
+
+    private CopyOnWriteArrayList<IOThread> ioThreads;
+    private RelaySessionRegistry sessions;
+    private AtomicInteger nextIOThread;
+    private AtomicInteger ioThreadNumber;
+    
+    /**
+     * Open relay connections, by transport
+     */
+    private AtomicInteger udpConnections;
+    private AtomicInteger tcpConnections;
+    
+    private StatsServer statsServer;
+    
+    /**
+     * Server the stats of the IOThreads and sessions are registered with,
+     * or null if they are not exposed through JMX
+     */
+    private volatile MBeanServer mbeanServer;
+    
+    /**
+     * Sessions that lost their last communicator, in the order they became
+     * empty. Since the grace period is the same for every session, the head
+     * of the queue is always the next one to expire.
+     */
+    private ConcurrentLinkedQueue<EmptySession> emptySessions;
+    private long sessionGracePeriod;
+    private SessionReaperThread reaperThread;
+    
+    /**
+     * Identifier of this relay among its peers, and the addresses of the
+     * peers sessions are federated with
+     */
+    private int relayIdentifier;
+    private Hashtable<Integer, SocketAddress> peers;
+    
+    /**
+     * Cluster this relay is a node of, or null when it serves every session
+     */
+    private volatile RelayCluster cluster;
+    
+    /**
+     * Optional fan-out pipeline: when there are workers, every new session
+     * publishes its packets into a ring of ringSize slots of slotSize bytes
+     */
+    private volatile FanoutWorker[] fanoutWorkers;
+    private int ringSize;
+    private int slotSize;
+    
+    private long heartBeatInterval;
+    private long maximumInactiveTime;
+    
+    private SlowConsumerPolicy slowConsumerPolicy;
+    private int backlogThreshold;
+    private long disconnectGraceTime;
+    
+    public RelayEngine() {
+        this(30000);
+    }
+    
+    public RelayEngine(long sessionGracePeriod) {
+        ioThreads = new CopyOnWriteArrayList<IOThread>();
+        sessions = new RelaySessionRegistry();
+        nextIOThread = new AtomicInteger();
+        ioThreadNumber = new AtomicInteger();
+        udpConnections = new AtomicInteger();
+        tcpConnections = new AtomicInteger();
+        emptySessions = new ConcurrentLinkedQueue<EmptySession>();
+        this.sessionGracePeriod = sessionGracePeriod;
+        peers = new Hashtable<Integer, SocketAddress>();
+        heartBeatInterval = RelayRemoteConnection.DEFAULT_HEARTBEAT_INTERVAL;
+        maximumInactiveTime = RelayRemoteConnection.DEFAULT_MAXIMUM_INACTIVE_TIME;
+        slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+        backlogThreshold = TCPRelayConnection.DEFAULT_BACKLOG_THRESHOLD;
+        disconnectGraceTime = TCPRelayConnection.DEFAULT_DISCONNECT_GRACE_TIME;
+        reaperThread = new SessionReaperThread();
+        reaperThread.setName("Relay Session Reaper Thread");
+        reaperThread.setDaemon(true);
+        reaperThread.start();
+    }
+    
+    private RelaySession createRelaySession(int sessionIdentifier) {
+        RelaySession session = new RelaySession(this, sessionIdentifier, getSessionIOThread(sessionIdentifier));
+        FanoutWorker[] fanoutWorkers = this.fanoutWorkers;
+        if (fanoutWorkers != null) {
+            FanoutWorker worker = fanoutWorkers[(sessionIdentifier & Integer.MAX_VALUE) % fanoutWorkers.length];
+            session.setFanoutRing(new FanoutRing(session, worker, ringSize, slotSize));
+        }
+        RelaySession registered = sessions.putIfAbsent(session);
+        if (registered == session) registerMBean(session.getStats(), sessionObjectName(session));
+        return registered;
+    }
+
+    public IOThread newIOThread(ConnectionDescriptor descriptors[]) {
+        return newIOThread(descriptors, 1024, 1024);
+    }
+    
+    public IOThread newIOThread(ConnectionDescriptor descriptors[], int inputBufferSize, int outputBufferSize) {
+        try {
+            IOThread ioThread = new IOThread(this, descriptors, inputBufferSize, outputBufferSize);
+            ioThreads.add(ioThread);
+            ioThread.start("Relay IOThread " + ioThreadNumber.getAndIncrement());
+            registerMBean(ioThread.getStats(), ioThreadObjectName(ioThread));
+            return ioThread;
+        } catch (IOException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+        return null;
+    }
+    
+    public IOThread[] newIOThreads(ConnectionDescriptor descriptors[], int count) {
+        return newIOThreads(descriptors, count, 1024, 1024);
+    }
+    
+    /**
+     * Starts a group of IOThreads serving the same addresses. The first
+     * IOThread accepts TCP connections and spreads them over the whole
+     * engine; UDP ports are opened by every IOThread with SO_REUSEPORT when
+     * the platform supports it, otherwise by the first one only.
+     */
+    public IOThread[] newIOThreads(ConnectionDescriptor descriptors[], int count, int inputBufferSize, int outputBufferSize) {
+        boolean reusePort = count > 1 && IOThread.isReusePortSupported();
+        IOThread[] group = new IOThread[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                group[i] = new IOThread(this, inputBufferSize, outputBufferSize);
+            }
+            for (int i = 0; i < descriptors.length; i++) {
+                SocketAddress localAddress = descriptors[i].getLocalAddress();
+                if (localAddress == null) continue;
+                if (descriptors[i].getProtocol() == ProtocolType.TCP) {
+                    group[0].openTCPServer(localAddress);
+                } else if (descriptors[i].getProtocol() == ProtocolType.UDP) {
+                    localAddress = group[0].openUDPChannel(localAddress, reusePort);
+                    for (int j = 1; reusePort && j < count; j++) {
+                        group[j].openUDPChannel(localAddress, true);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+            for (int i = 0; i < count; i++) {
+                if (group[i] != null) group[i].stop();
+            }
+            return null;
+        }
+        for (int i = 0; i < count; i++) {
+            ioThreads.add(group[i]);
+            group[i].start("Relay IOThread " + ioThreadNumber.getAndIncrement());
+            registerMBean(group[i].getStats(), ioThreadObjectName(group[i]));
+        }
+        return group;
+    }
+    
+    public void shutdownIOThread(IOThread ioThread) {
+        ioThreads.remove(ioThread);
+        ioThread.stop();
+        unregisterMBean(ioThreadObjectName(ioThread));
+    }
+    
+    public int getIOThreadCount() {
+        return ioThreads.size();
+    }
+    
+    protected IOThread nextIOThread() {
+        int count = ioThreads.size();
+        if (count == 0) return null;
+        return ioThreads.get((nextIOThread.getAndIncrement() & Integer.MAX_VALUE) % count);
+    }
+    
+    protected IOThread getSessionIOThread(int sessionIdentifier) {
+        int count = ioThreads.size();
+        if (count == 0) return null;
+        return ioThreads.get((sessionIdentifier & Integer.MAX_VALUE) % count);
+    }
+    
+    private RelaySession getRelaySession(int sessionIdentifier) {
+        RelaySession session = sessions.get(sessionIdentifier);
+        if (session == null) {
+            session = createRelaySession(sessionIdentifier);
+        }
+        return session;
+    }
+    
+    public int getSessionCount() {
+        return sessions.size();
+    }
+    
+    public int getUDPConnectionCount() {
+        return udpConnections.get();
+    }
+    
+    public int getTCPConnectionCount() {
+        return tcpConnections.get();
+    }
+    
+    protected void connectionOpened(RelayRemoteConnection connection) {
+        (connection instanceof TCPRelayConnection ? tcpConnections : udpConnections).incrementAndGet();
+    }
+    
+    /**
+     * Called by the IOThread that processes the closed connection, once
+     * per connection
+     */
+    protected void connectionClosed(RemoteConnection connection) {
+        (connection instanceof TCPRelayConnection ? tcpConnections : udpConnections).decrementAndGet();
+    }
+    
+    /**
+     * Copies the traffic counters of every IOThread, session and session
+     * member. Safe to call from any thread; the relay keeps running while
+     * the copy is taken.
+     */
+    public RelayStatsSnapshot getStatsSnapshot() {
+        RelayStatsSnapshot snapshot = new RelayStatsSnapshot();
+        for (IOThread ioThread : ioThreads) {
+            snapshot.addIOThread(ioThread);
+        }
+        snapshot.setConnectionCounts(udpConnections.get(), tcpConnections.get());
+        ArrayList<RelaySession> sessions = this.sessions.getSessions();
+        for (int i = 0; i < sessions.size(); i++) {
+            RelaySession session = sessions.get(i);
+            snapshot.addSession(session);
+            RemoteCommunicator[] communicators = session.getCommunicators();
+            for (int j = 0; j < communicators.length; j++) {
+                if (communicators[j].getConnection() instanceof RelayRemoteConnection) {
+                    snapshot.addConnection((RelayRemoteConnection) communicators[j].getConnection());
+                }
+            }
+        }
+        return snapshot;
+    }
+    
+    /**
+     * Starts serving the engine's stats in the Prometheus text format at
+     * http://address/metrics. The server has a thread of its own and only
+     * reads counters the relay already keeps.
+     */
+    public synchronized void startStatsServer(SocketAddress address) throws IOException {
+        if (statsServer != null) return;
+        statsServer = new StatsServer(this, address);
+        statsServer.start();
+    }
+    
+    public synchronized void stopStatsServer() {
+        if (statsServer != null) {
+            statsServer.shutdown();
+            statsServer = null;
+        }
+    }
+    
+    /**
+     * Registers the stats of every IOThread and session with the platform
+     * MBean server, under the jpiccoli.uwml.relay domain. Sessions are
+     * registered when they are created and unregistered when they expire.
+     */
+    public synchronized void registerMBeans() {
+        if (mbeanServer != null) return;
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (IOThread ioThread : ioThreads) {
+            registerMBean(ioThread.getStats(), ioThreadObjectName(ioThread));
+        }
+        ArrayList<RelaySession> sessions = this.sessions.getSessions();
+        for (int i = 0; i < sessions.size(); i++) {
+            registerMBean(sessions.get(i).getStats(), sessionObjectName(sessions.get(i)));
+        }
+    }
+    
+    private static String ioThreadObjectName(IOThread ioThread) {
+        return "jpiccoli.uwml.relay:type=IOThread,name=" + ObjectName.quote(ioThread.getName());
+    }
+    
+    private static String sessionObjectName(RelaySession session) {
+        return "jpiccoli.uwml.relay:type=Session,id=" + session.getSessionIdentifier();
+    }
+    
+    private void registerMBean(TrafficStats stats, String name) {
+        MBeanServer mbeanServer = this.mbeanServer;
+        if (mbeanServer == null) return;
+        try {
+            ObjectName objectName = new ObjectName(name);
+            if (!mbeanServer.isRegistered(objectName)) mbeanServer.registerMBean(stats, objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    private void unregisterMBean(String name) {
+        MBeanServer mbeanServer = this.mbeanServer;
+        if (mbeanServer == null) return;
+        try {
+            ObjectName objectName = new ObjectName(name);
+            if (mbeanServer.isRegistered(objectName)) mbeanServer.unregisterMBean(objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    public long getSessionGracePeriod() {
+        return sessionGracePeriod;
+    }
+    
+    /**
+     * Moves the fan-out of the sessions created from now on to worker
+     * threads. The IOThreads only copy each received packet into the
+     * session's ring, so large sessions no longer delay the other
+     * connections of their IOThread. Packets larger than slotSize are still
+     * forwarded by the IOThread.
+     */
+    public synchronized void startFanoutWorkers(int count, int ringSize, int slotSize) {
+        if (fanoutWorkers != null) return;
+        FanoutWorker[] workers = new FanoutWorker[count];
+        for (int i = 0; i < count; i++) {
+            workers[i] = new FanoutWorker();
+            workers[i].setName("Relay Fanout Worker Thread " + i);
+            workers[i].start();
+        }
+        this.ringSize = ringSize;
+        this.slotSize = slotSize;
+        this.fanoutWorkers = workers;
+    }
+    
+    /**
+     * Defines how often the connections created from now on check whether
+     * they need to send a heartbeat, and how long they may go without
+     * receiving anything before being closed. Peers that stop answering are
+     * usually closed earlier, see RemoteConnection.checkLiveness.
+     */
+    public void setHeartBeat(long heartBeatInterval, long maximumInactiveTime) {
+        this.heartBeatInterval = heartBeatInterval;
+        this.maximumInactiveTime = maximumInactiveTime;
+    }
+    
+    /**
+     * Derives the heartbeat interval of the connections created from now on
+     * from the lifetime of the NAT bindings between the relay and its
+     * clients. Heartbeats are only sent on connections that were idle for
+     * an interval, so the interval is a fraction of the lifetime.
+     */
+    public void setNatBindingLifetime(long natBindingLifetime) {
+        this.heartBeatInterval = natBindingLifetime / RelayRemoteConnection.NAT_BINDING_INTERVALS;
+    }
+    
+    public long getHeartBeatInterval() {
+        return heartBeatInterval;
+    }
+    
+    public long getMaximumInactiveTime() {
+        return maximumInactiveTime;
+    }
+    
+    /**
+     * Defines the slow consumer policy of the TCP connections accepted from
+     * now on. Each connection can still be changed on its own.
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy policy, int backlogThreshold, long disconnectGraceTime) {
+        this.slowConsumerPolicy = policy;
+        this.backlogThreshold = backlogThreshold;
+        this.disconnectGraceTime = disconnectGraceTime;
+    }
+    
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+    
+    protected void configure(TCPRelayConnection connection) {
+        connection.setSlowConsumerPolicy(slowConsumerPolicy, backlogThreshold, disconnectGraceTime);
+    }
+    
+    public int getRelayIdentifier() {
+        return relayIdentifier;
+    }
+    
+    public void setRelayIdentifier(int relayIdentifier) {
+        this.relayIdentifier = relayIdentifier;
+    }
+    
+    /**
+     * Federates this relay with another one. Every session with local
+     * members opens a link to each peer, so members attached to different
+     * relays share the session; a packet crosses at most one link.
+     */
+    public void addPeer(int relayIdentifier, SocketAddress address) {
+        peers.put(relayIdentifier, address);
+    }
+    
+    public void removePeer(int relayIdentifier) {
+        peers.remove(relayIdentifier);
+    }
+    
+    protected Hashtable<Integer, SocketAddress> getPeers() {
+        return peers;
+    }
+    
+    /**
+     * Makes this relay a node of a cluster. Clients that initialize a session
+     * owned by another node are redirected to it; this relay's own identifier
+     * must be one of the cluster nodes.
+     */
+    public void setCluster(RelayCluster cluster) {
+        this.cluster = cluster;
+    }
+    
+    public RelayCluster getCluster() {
+        return cluster;
+    }
+    
+    public void connectionInitialized(final RemoteCommunicator source) {
+        if (source.isPeer() && !isPeerAddress(source)) {
+            // Only configured relays are allowed to open links
+            source.close();
+            return;
+        }
+        RelayCluster cluster = this.cluster;
+        if (cluster != null && !source.isPeer()) {
+            int owner = cluster.getOwner(source.getSessionIdentifier());
+            if (owner != -1 && owner != relayIdentifier) {
+                // The client drops the connection once it gets the redirect
+                source.sendRedirectMessage((InetSocketAddress) cluster.getNodeAddress(owner));
+                ((RelayRemoteConnection) source.getConnection()).closeWhenAcknowledged();
+                return;
+            }
+        }
+        if (source.getSessionIdentifier() > 0) {
+            final RelaySession session = getRelaySession(source.getSessionIdentifier());
+            if (session != null) {
+                // Every member of a session lives on the session's IOThread, so
+                // the fan-out never crosses threads
+                RelayRemoteConnection connection = (RelayRemoteConnection) source.getConnection();
+                connection.getIoThread().migrate(connection, session.getIOThread(), new Runnable() {
+                    public void run() {
+                        RelaySession target = session;
+                        // The session may have expired while the connection was
+                        // moving. Its replacement is pinned to this same IOThread.
+                        if (target.isClosed()) target = getRelaySession(source.getSessionIdentifier());
+                        target.addCommunicator(source);
+                        if (!source.isPeer()) target.linkPeers();
+                    }
+                });
+            }
+        }
+    }
+    
+    /**
+     * Tells whether a link comes from the address configured for the relay
+     * it claims to be. Links are opened from an ephemeral port, so only the
+     * host is compared.
+     */
+    private boolean isPeerAddress(RemoteCommunicator source) {
+        SocketAddress configured = peers.get(source.getRelayIdentifier());
+        if (!(configured instanceof InetSocketAddress)) return false;
+        InetAddress expected = ((InetSocketAddress) configured).getAddress();
+        SocketAddress remote = ((RelayRemoteConnection) source.getConnection()).getRemoteAddress();
+        if (expected == null || !(remote instanceof InetSocketAddress)) return false;
+        return expected.equals(((InetSocketAddress) remote).getAddress());
+    }
+    
+    protected void sessionEmptied(RelaySession session) {
+        emptySessions.add(new EmptySession(session, session.getEmptySince()));
+        synchronized(reaperThread) {
+            reaperThread.notify();
+        }
+    }
+
+    public void connectionLost(RemoteCommunicator source) {
+        source.close();
+    }
+
+    public void connectionStatusChanged(RemoteCommunicator source) {
+        source.close();
+    }
+
+    public void packetReceived(RemoteCommunicator source, ByteBuffer data) {
+        source.close();
+    }
+    
+    private static class EmptySession {
+        private RelaySession session;
+        private long emptySince;
+        private EmptySession(RelaySession session, long emptySince) {
+            this.session = session;
+            this.emptySince = emptySince;
+        }
+    }
+    
+    /**
+     * Removes the sessions that stayed empty for the whole grace period. The
+     * removal itself runs on the session's IOThread, which is the only one
+     * that adds communicators to it.
+     */
+    private class SessionReaperThread extends Thread {
+        public void run() {
+            while(true) {
+                try {
+                    EmptySession head = emptySessions.peek();
+                    long delay = head == null ? 0 : head.emptySince + sessionGracePeriod - System.currentTimeMillis();
+                    if (head == null || delay > 0) {
+                        synchronized(this) {
+                            if (emptySessions.peek() == head) wait(delay);
+                        }
+                        continue;
+                    }
+                    emptySessions.poll();
+                    expire(head.session, head.emptySince);
+                } catch (InterruptedException e) {
+                    // TODO Auto-generated catch block
+                    e.printStackTrace();
+                }
+            }
+        }
+        private void expire(final RelaySession session, final long emptySince) {
+            session.getIOThread().execute(new Runnable() {
+                public void run() {
+                    if (session.closeIfEmpty(emptySince) && sessions.remove(session)) {
+                        unregisterMBean(sessionObjectName(session));
+                    }
+                }
+            });
+        }
+    }
+    
+    /**
+     * Usage: RelayEngine [port=&lt;port&gt;] [reactors=&lt;count&gt;] [fanout=&lt;workers&gt;] [stats=&lt;port&gt;] [jmx=true] [id=&lt;relay identifier&gt;]
+     * [peer=&lt;identifier&gt;@&lt;host&gt;:&lt;port&gt;]... [node=&lt;identifier&gt;@&lt;host&gt;:&lt;port&gt;]...
+     * <p>
+     * Peers are federated with this relay; nodes form a cluster that must
+     * include this relay itself.
+     */
+    public static void main(String args[]) throws UnknownHostException {
+        int port = 3333;
+        int reactors = Runtime.getRuntime().availableProcessors();
+        int statsPort = 0;
+        RelayEngine engine = new RelayEngine();
+        RelayCluster cluster = null;
+        for (int i = 0; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            if (equals <= 0) throw new IllegalArgumentException("Malformed option, expected <name>=<value>: " + args[i]);
+            String name = args[i].substring(0, equals);
+            String value = args[i].substring(equals + 1);
+            if (name.equals("port")) {
+                port = Integer.parseInt(value);
+            } else if (name.equals("reactors")) {
+                reactors = Integer.parseInt(value);
+            } else if (name.equals("fanout")) {
+                engine.startFanoutWorkers(Integer.parseInt(value), DEFAULT_RING_SIZE, DEFAULT_SLOT_SIZE);
+            } else if (name.equals("stats")) {
+                statsPort = Integer.parseInt(value);
+            } else if (name.equals("jmx")) {
+                if (Boolean.parseBoolean(value)) engine.registerMBeans();
+            } else if (name.equals("id")) {
+                engine.setRelayIdentifier(Integer.parseInt(value));
+            } else if (name.equals("peer") || name.equals("node")) {
+                int at = value.indexOf('@');
+                int colon = value.lastIndexOf(':');
+                if (at <= 0 || colon < at) throw new IllegalArgumentException("Malformed option, expected " + name + "=<id>@<host>:<port>: " + args[i]);
+                int identifier = Integer.parseInt(value.substring(0, at));
+                InetSocketAddress address = new InetSocketAddress(value.substring(at + 1, colon), Integer.parseInt(value.substring(colon + 1)));
+                if (name.equals("peer")) {
+                    engine.addPeer(identifier, address);
+                } else {
+                    if (cluster == null) cluster = new RelayCluster();
+                    cluster.addNode(identifier, address);
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        engine.setCluster(cluster);
+        ConnectionDescriptor[] descriptors = new ConnectionDescriptor[2];
+        descriptors[0] = new ConnectionDescriptor(ProtocolType.UDP, null, new InetSocketAddress((InetAddress) null, port));
+        descriptors[1] = new ConnectionDescriptor(ProtocolType.TCP, null, new InetSocketAddress((InetAddress) null, port));
+        engine.newIOThreads(descriptors, reactors);
+        try {
+            if (statsPort > 0) engine.startStatsServer(new InetSocketAddress(statsPort));
+        } catch (IOException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+        try {
+            Thread.sleep(Long.MAX_VALUE);
+        } catch (InterruptedException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+    }
+    
+}
@@ -1,28 +1,197 @@
-package jpiccoli.uwml.relay;
-
-import java.io.IOException;
-
-import jpiccoli.uwml.remote.RemoteCommunicator;
-import jpiccoli.uwml.remote.RemoteConnection;
-
-public abstract class RelayRemoteConnection extends RemoteConnection {
-
-    protected IOThread ioThread;
-    
-    public RelayRemoteConnection(IOThread ioThread, RemoteCommunicator callback, int inputBufferSize, int outputBufferSize) {
-        super(callback, inputBufferSize, outputBufferSize);
-        this.ioThread = ioThread;
-    }
-
-    public RelayRemoteConnection(IOThread ioThread, RemoteCommunicator callback) {
-        super(callback);
-        this.ioThread = ioThread;
-    }
-
-    public IOThread getIoThread() {
-        return ioThread;
-    }
-
-    public abstract void receiveData() throws IOException;
-    
-}
+package jpiccoli.uwml.relay;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import jpiccoli.uwml.remote.RemoteCommunicator;
+import jpiccoli.uwml.remote.RemoteCommunicatorCallback;
+import jpiccoli.uwml.remote.RemoteConnection;
+import jpiccoli.uwml.util.TimingWheel;
+
+public abstract class RelayRemoteConnection extends RemoteConnection {
+
+    /**
+     * Bytes kept free in front of every received message so that the relay
+     * can write the frame length there and forward the input buffer as is.
+     */
+    public static final int FRAME_HEADROOM = 4;
+    
+    /**
+     * Size of the frame header: length (int) followed by the message type (short).
+     */
+    public static final int FRAME_HEADER_SIZE = 6;
+    
+    /**
+     * Default interval between liveness checks and time without receiving
+     * anything after which a connection is considered dead, in milliseconds
+     */
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = DEFAULT_NAT_BINDING_LIFETIME / NAT_BINDING_INTERVALS;
+    public static final long DEFAULT_MAXIMUM_INACTIVE_TIME = 30000;
+    
+    protected volatile IOThread ioThread;
+    
+    /**
+     * Relay connections are not tracked by the HeartBeatManager: each one
+     * has a timeout on the wheel of its IOThread, which sends its heartbeats
+     * and checks that it is still alive, see RemoteConnection.checkLiveness.
+     * The first one is placed at a random point of the interval, so the
+     * heartbeats of a burst of connections are spread over the whole
+     * interval instead of being sent together.
+     */
+    private LivenessTimeout liveness;
+    private long heartBeatInterval;
+    private long maximumInactiveTime;
+    private volatile boolean livenessStopped;
+    
+    private TrafficStats stats;
+    
+    public RelayRemoteConnection(IOThread ioThread, RemoteCommunicator callback, int inputBufferSize, int outputBufferSize) {
+        super(callback, inputBufferSize, outputBufferSize);
+        this.ioThread = ioThread;
+        stats = new TrafficStats(false);
+        startLiveness();
+    }
+
+    public RelayRemoteConnection(IOThread ioThread, RemoteCommunicator callback) {
+        super(callback);
+        this.ioThread = ioThread;
+        stats = new TrafficStats(false);
+        startLiveness();
+    }
+    
+    /**
+     * Address of the other end of this connection, or null if it is unknown
+     */
+    public abstract SocketAddress getRemoteAddress();
+    
+    /**
+     * Closes this connection once the peer acknowledged the control messages
+     * sent so far, such as a REDIRECT. TCP delivers them in order and the
+     * peer closes the socket once it got them, so this connection is closed
+     * when the socket is; UDP connections wait for the ACKs.
+     */
+    public void closeWhenAcknowledged() {
+    }
+    
+    private void startLiveness() {
+        heartBeatInterval = ioThread.getEngine().getHeartBeatInterval();
+        maximumInactiveTime = ioThread.getEngine().getMaximumInactiveTime();
+        liveness = new LivenessTimeout();
+        ioThread.schedule(liveness, (long) (Math.random() * heartBeatInterval));
+    }
+    
+    /**
+     * Stops the heartbeats and liveness checks. Called when the connection
+     * is closed.
+     */
+    protected void stopLiveness() {
+        livenessStopped = true;
+        liveness.cancel();
+    }
+    
+    /**
+     * Sends a heartbeat if the connection was idle and closes it if the
+     * peer stopped answering. Runs on the IOThread the timeout was scheduled
+     * on, every heartBeatInterval or, while the peer is probed, every
+     * retransmission timeout.
+     */
+    private void livenessExpired() {
+        if (livenessStopped) return;
+        long delay;
+        try {
+            delay = checkLiveness(heartBeatInterval, maximumInactiveTime);
+        } catch (IOException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+            delay = heartBeatInterval;
+        }
+        if (delay < 0) {
+            closeCommunication();
+            return;
+        }
+        // A connection that moved to another IOThread follows it here
+        if (!livenessStopped) ioThread.schedule(liveness, delay);
+    }
+
+    public TrafficStats getStats() {
+        return stats;
+    }
+    
+    /**
+     * Counts a packet in this connection's stats and in those of its
+     * IOThread. Sessions keep their own count.
+     */
+    protected void countReceived(int bytes) {
+        stats.received(bytes);
+        ioThread.getStats().received(bytes);
+    }
+    
+    protected void countSent(int bytes) {
+        dataSent();
+        stats.sent(bytes);
+        ioThread.getStats().sent(bytes);
+    }
+    
+    protected void countDropped(int bytes) {
+        stats.dropped(bytes);
+        ioThread.getStats().dropped(bytes);
+    }
+    
+    public IOThread getIoThread() {
+        return ioThread;
+    }
+    
+    protected void setIoThread(IOThread ioThread) {
+        this.ioThread = ioThread;
+    }
+
+    public abstract void receiveData() throws IOException;
+    
+    protected RelaySession getSession() {
+        RemoteCommunicatorCallback session = callback.getCommunicatorCallback();
+        return session instanceof RelaySession ? (RelaySession) session : null;
+    }
+    
+    /**
+     * Aggregated messages are forwarded as they are to the recipients that
+     * accept them; the communicator splits them only when this connection
+     * is not part of a session yet.
+     */
+    protected void aggregatedPacketReceived(ByteBuffer data) {
+        RelaySession session = getSession();
+        if (session != null && callback.getConnection() == this) {
+            session.aggregatedPacketReceived(callback, data);
+        } else {
+            callback.aggregatedPacketReceived(this, data);
+        }
+    }
+    
+    /**
+     * Reliable messages are forwarded like the other application messages;
+     * retransmission and ordering are left to the hosts at both ends, so
+     * they are dropped before this connection joins a session.
+     */
+    protected void reliablePacketReceived(ByteBuffer data) {
+        RelaySession session = getSession();
+        if (session != null && callback.getConnection() == this) {
+            session.reliablePacketReceived(callback, data);
+        }
+    }
+    
+    /**
+     * Sends an already encoded frame. From offset to the limit, the buffer
+     * holds the length of the rest of the frame (int), the message type
+     * (short) and the payload. The frame is shared by every recipient of a
+     * fan-out, so implementations must not modify its content and must
+     * leave its limit untouched.
+     */
+    public abstract void sendFrame(ByteBuffer frame, int offset) throws IOException;
+    
+    private class LivenessTimeout extends TimingWheel.Timeout {
+        protected void expired() {
+            livenessExpired();
+        }
+    }
+    
+}
@@ -1,55 +1,471 @@
-package jpiccoli.uwml.relay;
-
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-
-import jpiccoli.uwml.remote.RemoteCommunicator;
-import jpiccoli.uwml.remote.RemoteCommunicatorCallback;
-
-public class RelaySession implements RemoteCommunicatorCallback {
-
-    private int sessionIdentifier;
-    private ArrayList<RemoteCommunicator> communicators;
-    
-    public RelaySession(int sessionIdentifier) {
-        this.sessionIdentifier = sessionIdentifier;
-        communicators = new ArrayList<RemoteCommunicator>();
-    }
-    
-    public int getSessionIdentifier() {
-        return sessionIdentifier;
-    }
-    
-    public void addCommunicator(RemoteCommunicator communicator) {
-        communicator.setCommunicatorCallback(this);
-        communicators.add(communicator);
-    }
-    
-    public void removeCommunicator(RemoteCommunicator communicator) {
-        communicators.remove(communicator);
-    }
-    
-    public void connectionInitialized(RemoteCommunicator source) {}
-
-    public void connectionLost(RemoteCommunicator source) {
-        communicators.remove(source);
-    }
-
-    public void connectionStatusChanged(RemoteCommunicator source) {}
-
-    public void packetReceived(RemoteCommunicator source, ByteBuffer data) {
-        for (int i = 0; i < communicators.size(); i++) {
-            try {
-                RemoteCommunicator communicator = communicators.get(i);
-                if (communicator != source && communicator.isEnabled()) {
-                    communicator.sendAppMessage(data);
-                }
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-        }
-    }
-    
-}
+package jpiccoli.uwml.relay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jpiccoli.uwml.remote.RemoteCommunicator;
+import jpiccoli.uwml.remote.RemoteCommunicatorCallback;
+import jpiccoli.uwml.remote.RemoteConnection;
+import jpiccoli.uwml.remote.Subscription;
+import jpiccoli.uwml.util.IntHashMap;
+import jpiccoli.uwml.util.TimingWheel;
+
+public class RelaySession implements RemoteCommunicatorCallback {
+
+    private static final RemoteCommunicator[] NO_RECIPIENTS = new RemoteCommunicator[0];
+    
+    private static final int ALL_RECIPIENTS = 0;
+    private static final int AGGREGATING_RECIPIENTS = 1;
+    private static final int OTHER_RECIPIENTS = 2;
+    
+    /**
+     * Delay before a lost link to another relay is opened again, in
+     * milliseconds. It doubles after every attempt that fails, up to the
+     * maximum, and starts over once a link is up.
+     */
+    public static final long PEER_RELINK_MIN_DELAY = 1000;
+    public static final long PEER_RELINK_MAX_DELAY = 30000;
+    
+    private RelayEngine engine;
+    private int sessionIdentifier;
+    private IOThread ioThread;
+    private ArrayList<RemoteCommunicator> communicators;
+    
+    /**
+     * Enabled communicators of this session. The array is never modified
+     * once published: joins, leaves and ENABLE_MSG changes replace it with
+     * a new one, so the fan-out reads it without locking.
+     */
+    private volatile RemoteCommunicator[] recipients;
+    
+    /**
+     * Links to the other relays of a federated session, by relay identifier,
+     * including the ones still connecting
+     */
+    private IntHashMap<RemoteCommunicator> peerLinks;
+    
+    /**
+     * Links waiting to be opened again, by relay identifier
+     */
+    private IntHashMap<PeerRelink> peerRelinks;
+    private int localMembers;
+    private long emptySince;
+    private boolean closed;
+    
+    /**
+     * Ring the received packets are published to when the engine runs a
+     * fan-out pipeline, or null if they are forwarded by the IOThread
+     */
+    private FanoutRing ring;
+    
+    private TrafficStats stats;
+    private AtomicLong slowConsumerDisconnects;
+    
+    public RelaySession(RelayEngine engine, int sessionIdentifier, IOThread ioThread) {
+        this.engine = engine;
+        this.sessionIdentifier = sessionIdentifier;
+        this.ioThread = ioThread;
+        communicators = new ArrayList<RemoteCommunicator>(2);
+        recipients = NO_RECIPIENTS;
+        peerLinks = new IntHashMap<RemoteCommunicator>(2);
+        peerRelinks = new IntHashMap<PeerRelink>(2);
+        stats = new TrafficStats(true);
+        slowConsumerDisconnects = new AtomicLong();
+    }
+    
+    public int getSessionIdentifier() {
+        return sessionIdentifier;
+    }
+    
+    public IOThread getIOThread() {
+        return ioThread;
+    }
+    
+    public synchronized boolean isEmpty() {
+        return communicators.isEmpty();
+    }
+    
+    public boolean isClosed() {
+        return closed;
+    }
+    
+    protected long getEmptySince() {
+        return emptySince;
+    }
+    
+    /**
+     * Closes this session if it is still empty. Called on the session's
+     * IOThread once the grace period is over; a closed session accepts no
+     * more communicators.
+     */
+    protected synchronized boolean closeIfEmpty(long emptySince) {
+        if (!closed && communicators.isEmpty() && this.emptySince == emptySince) {
+            closed = true;
+        }
+        return closed;
+    }
+    
+    /**
+     * Packets received from the members and copies sent to them, and the
+     * time each received packet took to reach its last recipient
+     */
+    public TrafficStats getStats() {
+        return stats;
+    }
+    
+    public long getDroppedFrames() {
+        return stats.getDroppedPackets();
+    }
+    
+    public long getDroppedBytes() {
+        return stats.getDroppedBytes();
+    }
+    
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.get();
+    }
+    
+    protected void slowConsumerDropped(RelayRemoteConnection connection, int size) {
+        stats.dropped(size);
+    }
+    
+    /**
+     * Counts a received packet the ring dropped, for lack of room or to
+     * keep room for audio
+     */
+    protected void ringOverflowed(int size) {
+        stats.dropped(size);
+        ioThread.getStats().dropped(size);
+    }
+    
+    /**
+     * Records the time a packet took from being handed to this session to
+     * being sent to its last recipient
+     */
+    protected void fannedOut(long nanos) {
+        stats.fannedOut(nanos);
+        ioThread.getStats().fannedOut(nanos);
+    }
+    
+    protected void slowConsumerDisconnected(RelayRemoteConnection connection) {
+        slowConsumerDisconnects.incrementAndGet();
+    }
+    
+    public FanoutRing getFanoutRing() {
+        return ring;
+    }
+    
+    protected void setFanoutRing(FanoutRing ring) {
+        this.ring = ring;
+    }
+    
+    public RemoteCommunicator[] getRecipients() {
+        return recipients;
+    }
+    
+    /**
+     * Every communicator of this session, enabled or not
+     */
+    public synchronized RemoteCommunicator[] getCommunicators() {
+        return communicators.toArray(new RemoteCommunicator[communicators.size()]);
+    }
+    
+    public synchronized void addCommunicator(RemoteCommunicator communicator) {
+        if (communicators.contains(communicator)) return;
+        if (communicator.isPeer()) {
+            RemoteCommunicator current = peerLinks.get(communicator.getRelayIdentifier());
+            if (current != null && current != communicator) {
+                // Both relays opened a link at the same time. Both sides keep
+                // the one opened by the relay with the lower identifier.
+                boolean localOpener = engine.getRelayIdentifier() < communicator.getRelayIdentifier();
+                if (communicator.isPeerInitiator() != localOpener) {
+                    communicator.setCommunicatorCallback(this);
+                    dropPeer(communicator);
+                    return;
+                }
+                communicators.remove(current);
+                dropPeer(current);
+            }
+            peerLinks.put(communicator.getRelayIdentifier(), communicator);
+            PeerRelink relink = peerRelinks.remove(communicator.getRelayIdentifier());
+            if (relink != null) relink.cancel();
+        } else {
+            localMembers++;
+        }
+        communicator.setCommunicatorCallback(this);
+        communicators.add(communicator);
+        emptySince = 0;
+        updateRecipients();
+    }
+    
+    public synchronized void removeCommunicator(RemoteCommunicator communicator) {
+        if (communicator.isPeer() && peerLinks.get(communicator.getRelayIdentifier()) == communicator) {
+            peerLinks.remove(communicator.getRelayIdentifier());
+            // The link dropped or could not be opened, but the local members
+            // still need it. unlinkPeers cancels this once they are gone.
+            scheduleRelink(communicator.getRelayIdentifier());
+        }
+        if (communicators.remove(communicator)) {
+            if (!communicator.isPeer() && --localMembers == 0) unlinkPeers();
+            updateRecipients();
+            checkEmpty();
+        }
+    }
+    
+    /**
+     * Opens a link to every configured relay this session is not linked to
+     * yet. Called on the session's IOThread when a local member joins.
+     */
+    protected synchronized void linkPeers() {
+        Hashtable<Integer, SocketAddress> peers = engine.getPeers();
+        if (peers.isEmpty() || closed) return;
+        Enumeration<Integer> enumeration = peers.keys();
+        while (enumeration.hasMoreElements()) {
+            int relayIdentifier = enumeration.nextElement();
+            // A link waiting to be opened again keeps its backoff
+            if (peerRelinks.get(relayIdentifier) != null) continue;
+            linkPeer(relayIdentifier, peers.get(relayIdentifier));
+        }
+    }
+    
+    private void linkPeer(int relayIdentifier, SocketAddress address) {
+        if (address == null || relayIdentifier == engine.getRelayIdentifier()) return;
+        if (peerLinks.get(relayIdentifier) != null) return;
+        RemoteCommunicator link = new RemoteCommunicator(this);
+        link.setSessionIdentifier(sessionIdentifier);
+        link.setPeer(engine.getRelayIdentifier(), relayIdentifier);
+        link.setEnabled(true);
+        peerLinks.put(relayIdentifier, link);
+        ioThread.connectPeer(link, address);
+    }
+    
+    /**
+     * Opens the link to the given relay again after a delay, if the session
+     * still has local members then
+     */
+    private void scheduleRelink(int relayIdentifier) {
+        if (closed || localMembers == 0 || !engine.getPeers().containsKey(relayIdentifier)) return;
+        PeerRelink relink = peerRelinks.get(relayIdentifier);
+        if (relink == null) {
+            relink = new PeerRelink(relayIdentifier);
+            peerRelinks.put(relayIdentifier, relink);
+        } else {
+            relink.delay = Math.min(relink.delay * 2, PEER_RELINK_MAX_DELAY);
+        }
+        ioThread.schedule(relink, relink.delay);
+    }
+    
+    private synchronized void relinkExpired(PeerRelink relink) {
+        if (peerRelinks.get(relink.relayIdentifier) != relink) return;
+        if (closed || localMembers == 0) {
+            peerRelinks.remove(relink.relayIdentifier);
+            return;
+        }
+        // Kept until the link is up, so a failure doubles the delay
+        linkPeer(relink.relayIdentifier, engine.getPeers().get(relink.relayIdentifier));
+    }
+    
+    /**
+     * Closes the links to other relays once no local member is left: the
+     * remote members no longer need this relay.
+     */
+    private void unlinkPeers() {
+        ArrayList<PeerRelink> relinks = new ArrayList<PeerRelink>(peerRelinks.size());
+        peerRelinks.values(relinks);
+        for (PeerRelink relink : relinks) {
+            relink.cancel();
+            peerRelinks.remove(relink.relayIdentifier);
+        }
+        for (int i = communicators.size() - 1; i >= 0; i--) {
+            RemoteCommunicator communicator = communicators.get(i);
+            if (communicator.isPeer()) {
+                communicators.remove(i);
+                peerLinks.remove(communicator.getRelayIdentifier());
+                dropPeer(communicator);
+            }
+        }
+    }
+    
+    private void dropPeer(RemoteCommunicator link) {
+        if (link.isOpen()) {
+            link.close();
+        } else if (link.getConnection() != null) {
+            link.getConnection().closeCommunication();
+        }
+    }
+    
+    private void updateRecipients() {
+        int count = 0;
+        for (int i = 0; i < communicators.size(); i++) {
+            if (communicators.get(i).isEnabled()) count++;
+        }
+        RemoteCommunicator[] recipients = count == 0 ? NO_RECIPIENTS : new RemoteCommunicator[count];
+        for (int i = 0, j = 0; i < communicators.size(); i++) {
+            RemoteCommunicator communicator = communicators.get(i);
+            if (communicator.isEnabled()) recipients[j++] = communicator;
+        }
+        this.recipients = recipients;
+    }
+    
+    private void checkEmpty() {
+        if (communicators.isEmpty()) {
+            communicators.trimToSize();
+            emptySince = System.currentTimeMillis();
+            engine.sessionEmptied(this);
+        }
+    }
+    
+    public void connectionInitialized(RemoteCommunicator source) {
+        // Links opened by this relay join the session once the handshake is done
+        if (source.isPeer()) addCommunicator(source);
+    }
+
+    public void connectionLost(RemoteCommunicator source) {
+        removeCommunicator(source);
+    }
+
+    public synchronized void connectionStatusChanged(RemoteCommunicator source) {
+        updateRecipients();
+    }
+
+    public void packetReceived(RemoteCommunicator source, ByteBuffer data) {
+        stats.received(data.remaining());
+        FanoutRing ring = this.ring;
+        if (ring != null && ring.publish(source, data, RemoteConnection.NORMAL_MSG)) return;
+        long start = System.nanoTime();
+        forward(source, data, RemoteConnection.NORMAL_MSG, ALL_RECIPIENTS);
+        fannedOut(System.nanoTime() - start);
+    }
+    
+    /**
+     * Reliable messages, including the NACKs of the receivers, go to every
+     * recipient regardless of subscriptions, since the relay cannot tell the
+     * streams they belong to
+     */
+    public void reliablePacketReceived(RemoteCommunicator source, ByteBuffer data) {
+        stats.received(data.remaining());
+        FanoutRing ring = this.ring;
+        if (ring != null && ring.publish(source, data, RemoteConnection.RELIABLE_MSG)) return;
+        long start = System.nanoTime();
+        forward(source, data, RemoteConnection.RELIABLE_MSG, ALL_RECIPIENTS);
+        fannedOut(System.nanoTime() - start);
+    }
+    
+    public void aggregatedPacketReceived(RemoteCommunicator source, ByteBuffer data) {
+        stats.received(data.remaining());
+        FanoutRing ring = this.ring;
+        if (ring != null && ring.publish(source, data, RemoteConnection.AGGREGATED_MSG)) return;
+        long start = System.nanoTime();
+        forwardAggregated(source, data);
+        fannedOut(System.nanoTime() - start);
+    }
+    
+    /**
+     * Forwards a packet taken from the ring. Called by the FanoutWorker.
+     */
+    protected void deliver(RemoteCommunicator source, ByteBuffer data, short type) {
+        if (type == RemoteConnection.AGGREGATED_MSG) {
+            forwardAggregated(source, data);
+        } else {
+            forward(source, data, type, ALL_RECIPIENTS);
+        }
+    }
+    
+    /**
+     * Forwards a set of aggregated messages. Recipients that negotiated
+     * aggregation get the set as it was received; the others, and those
+     * with a subscription, since a set may mix streams, get each message
+     * on its own.
+     */
+    private void forwardAggregated(RemoteCommunicator source, ByteBuffer data) {
+        int position = data.position();
+        int limit = data.limit();
+        if (forward(source, data, RemoteConnection.AGGREGATED_MSG, AGGREGATING_RECIPIENTS) == 0) return;
+        // Writing the frame header of a message in place overwrites the end of
+        // the previous one, which has already been forwarded at this point
+        while (data.remaining() >= 2) {
+            int size = data.getShort() & 0xFFFF;
+            int end = data.position() + size;
+            if (end > limit) break;
+            data.limit(end);
+            forward(source, data, RemoteConnection.NORMAL_MSG, OTHER_RECIPIENTS);
+            data.limit(limit).position(end);
+        }
+        data.position(position);
+    }
+    
+    /**
+     * Forwards the message to the enabled communicators selected by filter
+     * and by their subscriptions, except the source. The frame is encoded
+     * only once: relay connections leave headroom in front of the messages
+     * they receive, so the header is written right before the payload and
+     * the same buffer is sent to all recipients.
+     * @return The number of recipients left out by the filter
+     */
+    private int forward(RemoteCommunicator source, ByteBuffer data, short type, int filter) {
+        RemoteCommunicator[] recipients = this.recipients;
+        boolean fromPeer = source.isPeer();
+        int position = data.position();
+        ByteBuffer frame = data;
+        int offset = position - RelayRemoteConnection.FRAME_HEADER_SIZE;
+        if (offset < 0) {
+            frame = ioThread.getFrameBuffer(data.remaining() + RelayRemoteConnection.FRAME_HEADER_SIZE);
+            frame.position(RelayRemoteConnection.FRAME_HEADER_SIZE);
+            frame.put(data).flip();
+            data.position(position);
+            offset = 0;
+        }
+        frame.putInt(offset, frame.limit() - offset - 4);
+        frame.putShort(offset + 4, type);
+        int skipped = 0;
+        int sent = 0;
+        long ssrc = -2;
+        for (int i = 0; i < recipients.length; i++) {
+            RemoteCommunicator recipient = recipients[i];
+            // Packets from another relay already reached every other relay
+            if (recipient == source || (fromPeer && recipient.isPeer())) continue;
+            Subscription subscription = recipient.getSubscription();
+            if (filter != ALL_RECIPIENTS) {
+                boolean wholeSet = recipient.isAggregationEnabled() && subscription == null;
+                if (wholeSet != (filter == AGGREGATING_RECIPIENTS)) {
+                    skipped++;
+                    continue;
+                }
+            }
+            if (subscription != null && type != RemoteConnection.RELIABLE_MSG) {
+                if (position == data.limit()) continue;
+                // Read once, and only if someone filters on it
+                if (ssrc == -2) ssrc = Subscription.getSource(data, position, data.limit());
+                if (!subscription.accepts(data.get(position), ssrc)) continue;
+            }
+            try {
+                ((RelayRemoteConnection) recipient.getConnection()).sendFrame(frame, offset);
+                sent++;
+            } catch (IOException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            }
+        }
+        if (sent > 0) stats.sent(sent, (long) sent * (frame.limit() - offset));
+        data.position(position);
+        return skipped;
+    }
+    
+    private class PeerRelink extends TimingWheel.Timeout {
+        private int relayIdentifier;
+        private long delay;
+        private PeerRelink(int relayIdentifier) {
+            this.relayIdentifier = relayIdentifier;
+            delay = PEER_RELINK_MIN_DELAY;
+        }
+        protected void expired() {
+            relinkExpired(this);
+        }
+    }
+    
+}
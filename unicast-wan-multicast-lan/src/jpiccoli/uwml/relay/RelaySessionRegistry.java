@@ -0,0 +1,87 @@
+package jpiccoli.uwml.relay;
+
+import java.util.ArrayList;
+
+import jpiccoli.uwml.util.IntHashMap;
+
+/**
+ * Sessions indexed by their identifier. The table is split in segments,
+ * each one guarded by its own lock, so IOThreads initializing connections
+ * of different sessions rarely contend.
+ */
+public class RelaySessionRegistry {
+
+    private static final int SEGMENTS = 16;
+    
+    private IntHashMap<RelaySession>[] segments;
+    
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RelaySessionRegistry() {
+        segments = new IntHashMap[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new IntHashMap<RelaySession>();
+        }
+    }
+    
+    private IntHashMap<RelaySession> segmentFor(int sessionIdentifier) {
+        return segments[(sessionIdentifier ^ (sessionIdentifier >>> 16)) & (SEGMENTS - 1)];
+    }
+    
+    public RelaySession get(int sessionIdentifier) {
+        IntHashMap<RelaySession> segment = segmentFor(sessionIdentifier);
+        synchronized(segment) {
+            return segment.get(sessionIdentifier);
+        }
+    }
+    
+    /**
+     * Registers the session unless another one with the same identifier is
+     * already there, in which case the registered one is returned.
+     */
+    public RelaySession putIfAbsent(RelaySession session) {
+        IntHashMap<RelaySession> segment = segmentFor(session.getSessionIdentifier());
+        synchronized(segment) {
+            RelaySession current = segment.get(session.getSessionIdentifier());
+            if (current != null) return current;
+            segment.put(session.getSessionIdentifier(), session);
+            return session;
+        }
+    }
+    
+    /**
+     * Removes the session only if it is still the one registered under its
+     * identifier.
+     */
+    public boolean remove(RelaySession session) {
+        IntHashMap<RelaySession> segment = segmentFor(session.getSessionIdentifier());
+        synchronized(segment) {
+            if (segment.get(session.getSessionIdentifier()) != session) return false;
+            segment.remove(session.getSessionIdentifier());
+            return true;
+        }
+    }
+    
+    /**
+     * The sessions registered now, one segment at a time
+     */
+    public ArrayList<RelaySession> getSessions() {
+        ArrayList<RelaySession> sessions = new ArrayList<RelaySession>();
+        for (int i = 0; i < SEGMENTS; i++) {
+            synchronized(segments[i]) {
+                segments[i].values(sessions);
+            }
+        }
+        return sessions;
+    }
+    
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            synchronized(segments[i]) {
+                size += segments[i].size();
+            }
+        }
+        return size;
+    }
+    
+}
@@ -0,0 +1,131 @@
+package jpiccoli.uwml.relay;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jpiccoli.uwml.util.LatencyHistogram;
+
+/**
+ * Copy of the traffic counters of a RelayEngine taken at one point in time.
+ * Counters keep running while the copy is taken, so the entries are not
+ * exactly consistent with each other.
+ * <p>
+ * Connections are those that are members of a session; the totals are the
+ * sum of the IOThreads.
+ */
+public class RelayStatsSnapshot {
+
+    private long time;
+    private TrafficStats total;
+    private LinkedHashMap<IOThread, TrafficStats> ioThreads;
+    private LinkedHashMap<Integer, TrafficStats> sessions;
+    private LinkedHashMap<RelayRemoteConnection, TrafficStats> connections;
+    private int udpConnections;
+    private int tcpConnections;
+    private int ringOccupancy;
+    private long pendingBytes;
+    private LatencyHistogram rtt;
+    private LatencyHistogram jitter;
+
+    protected RelayStatsSnapshot() {
+        time = System.currentTimeMillis();
+        total = new TrafficStats(true);
+        ioThreads = new LinkedHashMap<IOThread, TrafficStats>();
+        sessions = new LinkedHashMap<Integer, TrafficStats>();
+        connections = new LinkedHashMap<RelayRemoteConnection, TrafficStats>();
+        rtt = new LatencyHistogram();
+        jitter = new LatencyHistogram();
+    }
+
+    protected void addIOThread(IOThread ioThread) {
+        TrafficStats stats = new TrafficStats(ioThread.getStats());
+        ioThreads.put(ioThread, stats);
+        total.add(stats);
+    }
+
+    protected void setConnectionCounts(int udpConnections, int tcpConnections) {
+        this.udpConnections = udpConnections;
+        this.tcpConnections = tcpConnections;
+    }
+
+    protected void addSession(RelaySession session) {
+        sessions.put(session.getSessionIdentifier(), new TrafficStats(session.getStats()));
+        FanoutRing ring = session.getFanoutRing();
+        if (ring != null) ringOccupancy += ring.getOccupancy();
+    }
+
+    protected void addConnection(RelayRemoteConnection connection) {
+        connections.put(connection, new TrafficStats(connection.getStats()));
+        if (connection instanceof TCPRelayConnection) pendingBytes += ((TCPRelayConnection) connection).getPendingBytes();
+        if (connection.getLinkQuality().getRtt().getSamples() > 0) {
+            rtt.record(connection.getSmoothedRtt());
+            jitter.record(connection.getJitter());
+        }
+    }
+
+    /**
+     * When the snapshot was taken, in milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public TrafficStats getTotal() {
+        return total;
+    }
+
+    public Map<IOThread, TrafficStats> getIOThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * Stats of the live sessions, by session identifier
+     */
+    public Map<Integer, TrafficStats> getSessions() {
+        return sessions;
+    }
+
+    public Map<RelayRemoteConnection, TrafficStats> getConnections() {
+        return connections;
+    }
+
+    /**
+     * Open relay connections, members of a session or not
+     */
+    public int getUDPConnectionCount() {
+        return udpConnections;
+    }
+
+    public int getTCPConnectionCount() {
+        return tcpConnections;
+    }
+
+    /**
+     * Packets waiting in the fan-out rings of all sessions
+     */
+    public int getRingOccupancy() {
+        return ringOccupancy;
+    }
+
+    /**
+     * Bytes waiting to be written to the TCP members of all sessions
+     */
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Smoothed round trip times of the connections that measured one
+     */
+    public LatencyHistogram getConnectionRtt() {
+        return rtt;
+    }
+
+    /**
+     * Heartbeat jitter of the same connections as getConnectionRtt
+     */
+    public LatencyHistogram getConnectionJitter() {
+        return jitter;
+    }
+
+}
@@ -0,0 +1,39 @@
+package jpiccoli.uwml.relay;
+
+/**
+ * What a relay connection does when its output backlog goes past the
+ * threshold set for it. Control messages and heartbeats are never dropped,
+ * whatever the policy.
+ */
+public enum SlowConsumerPolicy {
+    
+    /**
+     * Evicts the oldest queued frames until the new one fits
+     */
+    DROP_OLDEST,
+    
+    /**
+     * Drops the frame being sent
+     */
+    DROP_NEWEST,
+    
+    /**
+     * Drops queued and new application messages; control messages and
+     * heartbeats are always kept
+     */
+    DROP_APP_MESSAGES,
+    
+    /**
+     * Queues frames by MediaPriority and writes control, then audio, then
+     * video. Makes room by dropping queued video, then queued audio, oldest
+     * first; control messages and RTCP are never dropped
+     */
+    MEDIA_PRIORITY,
+    
+    /**
+     * Keeps queueing, but closes the connection if the backlog stays over
+     * the threshold for longer than the grace time
+     */
+    DISCONNECT
+    
+}
@@ -0,0 +1,220 @@
+package jpiccoli.uwml.relay;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Map;
+
+import jpiccoli.uwml.util.BufferPool;
+import jpiccoli.uwml.util.LatencyHistogram;
+
+/**
+ * Minimal HTTP server that answers GET /metrics with the stats of a
+ * RelayEngine in the Prometheus text format. Requests are served one at a
+ * time by this thread, which never touches the IOThreads: every value is
+ * read from counters and gauges the relay keeps anyway.
+ */
+public class StatsServer extends Thread {
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private RelayEngine engine;
+    private ServerSocket serverSocket;
+    private volatile boolean stop;
+
+    public StatsServer(RelayEngine engine, SocketAddress address) throws IOException {
+        this.engine = engine;
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(address);
+        setName("Relay Stats Server Thread");
+        setDaemon(true);
+    }
+
+    public SocketAddress getLocalAddress() {
+        return serverSocket.getLocalSocketAddress();
+    }
+
+    public void shutdown() {
+        stop = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+    }
+
+    public void run() {
+        while(!stop) {
+            try {
+                Socket socket = serverSocket.accept();
+                try {
+                    socket.setSoTimeout(5000);
+                    serve(socket);
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                if (!stop) e.printStackTrace();
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+        String requestLine = reader.readLine();
+        if (requestLine == null) return;
+        // The headers are not used
+        String line;
+        while ((line = reader.readLine()) != null && line.length() > 0);
+        String[] request = requestLine.split(" ");
+        String status;
+        String body;
+        if (request.length < 2 || !request[0].equals("GET")) {
+            status = "405 Method Not Allowed";
+            body = "";
+        } else if (request[1].equals("/metrics") || request[1].startsWith("/metrics?")) {
+            status = "200 OK";
+            body = export(engine.getStatsSnapshot());
+        } else {
+            status = "404 Not Found";
+            body = "";
+        }
+        byte[] content = body.getBytes("UTF-8");
+        OutputStream output = socket.getOutputStream();
+        output.write(("HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+        output.write(content);
+        output.flush();
+    }
+
+    /**
+     * Formats the snapshot, plus the gauges of the IOThreads it covers
+     */
+    protected String export(RelayStatsSnapshot snapshot) {
+        StringBuilder out = new StringBuilder(4096);
+        header(out, "uwml_relay_sessions", "gauge", "Live sessions");
+        sample(out, "uwml_relay_sessions", null, snapshot.getSessions().size());
+        header(out, "uwml_relay_connections", "gauge", "Open relay connections by transport");
+        sample(out, "uwml_relay_connections", "transport=\"udp\"", snapshot.getUDPConnectionCount());
+        sample(out, "uwml_relay_connections", "transport=\"tcp\"", snapshot.getTCPConnectionCount());
+        header(out, "uwml_relay_fanout_ring_occupancy", "gauge", "Packets waiting in the fan-out rings");
+        sample(out, "uwml_relay_fanout_ring_occupancy", null, snapshot.getRingOccupancy());
+        header(out, "uwml_relay_tcp_pending_bytes", "gauge", "Bytes queued for TCP session members");
+        sample(out, "uwml_relay_tcp_pending_bytes", null, snapshot.getPendingBytes());
+
+        Map<IOThread, TrafficStats> ioThreads = snapshot.getIOThreads();
+        header(out, "uwml_relay_packets_received_total", "counter", "Packets received");
+        for (Map.Entry<IOThread, TrafficStats> entry : ioThreads.entrySet()) {
+            sample(out, "uwml_relay_packets_received_total", label(entry.getKey()), entry.getValue().getPacketsIn());
+        }
+        header(out, "uwml_relay_bytes_received_total", "counter", "Bytes received");
+        for (Map.Entry<IOThread, TrafficStats> entry : ioThreads.entrySet()) {
+            sample(out, "uwml_relay_bytes_received_total", label(entry.getKey()), entry.getValue().getBytesIn());
+        }
+        header(out, "uwml_relay_packets_sent_total", "counter", "Packets sent");
+        for (Map.Entry<IOThread, TrafficStats> entry : ioThreads.entrySet()) {
+            sample(out, "uwml_relay_packets_sent_total", label(entry.getKey()), entry.getValue().getPacketsOut());
+        }
+        header(out, "uwml_relay_bytes_sent_total", "counter", "Bytes sent");
+        for (Map.Entry<IOThread, TrafficStats> entry : ioThreads.entrySet()) {
+            sample(out, "uwml_relay_bytes_sent_total", label(entry.getKey()), entry.getValue().getBytesOut());
+        }
+        header(out, "uwml_relay_packets_dropped_total", "counter", "Packets dropped by slow consumer policies and full rings");
+        for (Map.Entry<IOThread, TrafficStats> entry : ioThreads.entrySet()) {
+            sample(out, "uwml_relay_packets_dropped_total", label(entry.getKey()), entry.getValue().getDroppedPackets());
+        }
+        header(out, "uwml_relay_ctrl_retransmits_total", "counter", "Control messages sent again for lack of an ACK");
+        for (Map.Entry<IOThread, TrafficStats> entry : ioThreads.entrySet()) {
+            sample(out, "uwml_relay_ctrl_retransmits_total", label(entry.getKey()), entry.getValue().getCtrlRetransmits());
+        }
+        header(out, "uwml_relay_ack_timeouts_total", "counter", "Control message ACK timeouts");
+        for (Map.Entry<IOThread, TrafficStats> entry : ioThreads.entrySet()) {
+            sample(out, "uwml_relay_ack_timeouts_total", label(entry.getKey()), entry.getValue().getAckTimeouts());
+        }
+
+        header(out, "uwml_relay_iothread_busy_seconds_total", "counter", "Time the IOThread spent handling events");
+        for (IOThread ioThread : ioThreads.keySet()) {
+            sample(out, "uwml_relay_iothread_busy_seconds_total", label(ioThread), ioThread.getBusyTime() / 1e9);
+        }
+        header(out, "uwml_relay_iothread_idle_seconds_total", "counter", "Time the IOThread spent waiting for events");
+        for (IOThread ioThread : ioThreads.keySet()) {
+            sample(out, "uwml_relay_iothread_idle_seconds_total", label(ioThread), ioThread.getIdleTime() / 1e9);
+        }
+        header(out, "uwml_relay_iothread_pending_tasks", "gauge", "Tasks queued for the IOThread");
+        for (IOThread ioThread : ioThreads.keySet()) {
+            sample(out, "uwml_relay_iothread_pending_tasks", label(ioThread), ioThread.getPendingTasks());
+        }
+
+        header(out, "uwml_relay_buffer_pool_slab_bytes", "gauge", "Off-heap memory held by the buffer pool");
+        for (IOThread ioThread : ioThreads.keySet()) {
+            sample(out, "uwml_relay_buffer_pool_slab_bytes", label(ioThread), ioThread.getBufferPool().getSlabBytes());
+        }
+        sample(out, "uwml_relay_buffer_pool_slab_bytes", "iothread=\"shared\"", BufferPool.getSharedPool().getSlabBytes());
+        header(out, "uwml_relay_buffer_pool_borrowed_bytes", "gauge", "Bytes of pooled buffers currently borrowed");
+        for (IOThread ioThread : ioThreads.keySet()) {
+            sample(out, "uwml_relay_buffer_pool_borrowed_bytes", label(ioThread), ioThread.getBufferPool().getBorrowedBytes());
+        }
+        sample(out, "uwml_relay_buffer_pool_borrowed_bytes", "iothread=\"shared\"", BufferPool.getSharedPool().getBorrowedBytes());
+        header(out, "uwml_relay_buffer_pool_misses_total", "counter", "Buffer requests that allocated a new slab");
+        for (IOThread ioThread : ioThreads.keySet()) {
+            sample(out, "uwml_relay_buffer_pool_misses_total", label(ioThread), ioThread.getBufferPool().getMisses());
+        }
+        sample(out, "uwml_relay_buffer_pool_misses_total", "iothread=\"shared\"", BufferPool.getSharedPool().getMisses());
+
+        header(out, "uwml_relay_fanout_latency_seconds", "summary", "Time from handing a packet to its session to sending it to the last recipient");
+        for (Map.Entry<IOThread, TrafficStats> entry : ioThreads.entrySet()) {
+            LatencyHistogram histogram = entry.getValue().getFanoutLatency();
+            String label = label(entry.getKey());
+            for (int i = 0; i < QUANTILES.length; i++) {
+                sample(out, "uwml_relay_fanout_latency_seconds", label + ",quantile=\"" + QUANTILES[i] + "\"", histogram.getValueAtQuantile(QUANTILES[i]) / 1e9);
+            }
+            sample(out, "uwml_relay_fanout_latency_seconds_sum", label, histogram.getTotal() / 1e9);
+            sample(out, "uwml_relay_fanout_latency_seconds_count", label, histogram.getCount());
+        }
+
+        summary(out, "uwml_relay_connection_rtt_seconds", "Smoothed round trip time of the session members", snapshot.getConnectionRtt());
+        summary(out, "uwml_relay_connection_jitter_seconds", "Heartbeat interarrival jitter of the session members", snapshot.getConnectionJitter());
+        return out.toString();
+    }
+
+    private static void summary(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+        header(out, name, "summary", help);
+        for (int i = 0; i < QUANTILES.length; i++) {
+            sample(out, name, "quantile=\"" + QUANTILES[i] + "\"", histogram.getValueAtQuantile(QUANTILES[i]) / 1e9);
+        }
+        sample(out, name + "_sum", null, histogram.getTotal() / 1e9);
+        sample(out, name + "_count", null, histogram.getCount());
+    }
+
+    private static String label(IOThread ioThread) {
+        String name = ioThread.getName();
+        if (name == null) name = "";
+        return "iothread=\"" + name.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (labels != null) out.append('{').append(labels).append('}');
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (labels != null) out.append('{').append(labels).append('}');
+        out.append(' ').append(value).append('\n');
+    }
+
+}
@@ -1,118 +1,504 @@
-package jpiccoli.uwml.relay;
-
-import java.io.EOFException;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-
-import jpiccoli.uwml.remote.RemoteCommunicator;
-
-public class TCPRelayConnection extends RelayRemoteConnection {
-    
-    private SocketChannel socket;
-    private ByteBuffer headerBuffer;
-    
-    private ByteBuffer inputBuffer;
-    
-    private boolean readingSize;
-
-    public TCPRelayConnection(IOThread ioThread, RemoteCommunicator callback, SocketChannel socket) {
-        this(ioThread, callback, socket, 1024, 1024);
-    }
-    
-    public TCPRelayConnection(IOThread ioThread, RemoteCommunicator callback, SocketChannel socket, int inputBufferSize, int outputBufferSize) {
-        super(ioThread, callback, inputBufferSize, outputBufferSize);
-        this.socket = socket;
-        headerBuffer = ByteBuffer.allocateDirect(6);
-        inputBuffer = ByteBuffer.allocateDirect(inputBufferSize);
-        inputBuffer.clear().limit(4);
-        heartBeat.addConnection(this);
-        readingSize = true;
-    }
-    
-    public SocketChannel getChannel() {
-        return socket;
-    }
-    
-    @Override
-    public void openCommunication() {
-        // No implementar
-    }
-    
-    @Override
-    public void closeCommunication() {
-        if (socket.isOpen()) {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            } finally {
-                heartBeat.removeConnection(this);
-                ioThread.tcpConnectionClosed(callback, this);
-            }
-        }
-    }
-
-    @Override
-    public synchronized void sendCtrlMessage(ByteBuffer data) throws IOException {
-        headerBuffer.clear();
-        int msgSize = data.remaining();
-        headerBuffer.putInt(msgSize);
-        headerBuffer.putShort(CTRL_MSG);
-        headerBuffer.flip();
-        socket.write(headerBuffer);
-        if (socket.write(data) < msgSize) throw new IOException("Could not send Control Message");
-    }
-
-    @Override
-    public synchronized void sendMessage(ByteBuffer data) throws IOException {
-        headerBuffer.clear();
-        headerBuffer.putInt(data.remaining());
-        headerBuffer.putShort(NORMAL_MSG);
-        headerBuffer.flip();
-        socket.write(headerBuffer);
-        socket.write(data);
-    }
-
-    @Override
-    public synchronized void sendHeartBeat() throws IOException {
-        headerBuffer.clear();
-        headerBuffer.putInt(2);
-        headerBuffer.putShort(HEARTBEAT_MSG);
-        headerBuffer.flip();
-        socket.write(headerBuffer);
-    }
-    
-    @Override
-    public void receiveData() throws IOException {
-        setActive(true);
-        if (socket.read(inputBuffer) < 0) throw new EOFException("Socket closed");
-        if (!inputBuffer.hasRemaining()) {
-            inputBuffer.flip();
-            if (readingSize) {
-                readingSize = false;
-                int size = inputBuffer.getInt();
-                if (size > inputBuffer.capacity()) throw new IOException("Packet size too large");
-                inputBuffer.clear().limit(size);
-            } else {
-                // TODO Processar o pacote recebido
-                if (inputBuffer.remaining() >= 2) {
-                    short msgType = inputBuffer.getShort();
-                    if (msgType == NORMAL_MSG) {
-                        callback.packetReceived(this, inputBuffer);                        
-                    } else if (msgType == CTRL_MSG) {
-                        callback.ctrlPacketReceived(this, inputBuffer);
-                    } else if (msgType == HEARTBEAT_MSG) {
-                        // Ignore...
-                    } else {
-                        throw new IOException("Unknown message type: " + msgType);
-                    }
-                }
-                inputBuffer.clear().limit(4);
-                readingSize = true;
-            }
-        }
-    }
-    
-}
+package jpiccoli.uwml.relay;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import jpiccoli.uwml.remote.RemoteCommunicator;
+import jpiccoli.uwml.remote.RemoteCommunicatorCallback;
+import jpiccoli.uwml.util.BufferPool;
+import jpiccoli.uwml.util.LinkQuality;
+
+public class TCPRelayConnection extends RelayRemoteConnection {
+    
+    public static final int DEFAULT_MAX_PENDING_BYTES = 1024 * 1024;
+    public static final int DEFAULT_BACKLOG_THRESHOLD = 256 * 1024;
+    public static final long DEFAULT_DISCONNECT_GRACE_TIME = 5000;
+    
+    private SocketChannel socket;
+    private volatile SelectionKey key;
+    private ByteBuffer headerBuffer;
+    private ByteBuffer[] gatherBuffers;
+    
+    /**
+     * Length of the next frame, then the frame itself. The frame buffer is
+     * borrowed from the IOThread's pool only while a frame is being read.
+     */
+    private ByteBuffer lengthBuffer;
+    private ByteBuffer inputBuffer;
+    private boolean released;
+    
+    /**
+     * Frames waiting for the socket to become writable, one queue for each
+     * MediaPriority, and the unsent rest of the frame being written. They
+     * are written by the IOThread when it reports OP_WRITE, most important
+     * queue first. Unless the slow consumer policy is MEDIA_PRIORITY, every
+     * frame goes to the first queue.
+     */
+    private ArrayDeque<ByteBuffer>[] pendingFrames;
+    private int pendingFrameCount;
+    private ByteBuffer writing;
+    private int pendingBytes;
+    private int maxPendingBytes;
+    private int pendingBytesHighWaterMark;
+    
+    private SlowConsumerPolicy slowConsumerPolicy;
+    private int backlogThreshold;
+    private long disconnectGraceTime;
+    private long overThresholdSince;
+
+    public TCPRelayConnection(IOThread ioThread, RemoteCommunicator callback, SocketChannel socket) {
+        this(ioThread, callback, socket, 1024, 1024);
+    }
+    
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TCPRelayConnection(IOThread ioThread, RemoteCommunicator callback, SocketChannel socket, int inputBufferSize, int outputBufferSize) {
+        super(ioThread, callback, inputBufferSize, outputBufferSize);
+        this.socket = socket;
+        // Large enough for a whole heartbeat
+        headerBuffer = ByteBuffer.allocateDirect(FRAME_HEADER_SIZE + LinkQuality.HEARTBEAT_SIZE);
+        gatherBuffers = new ByteBuffer[] { headerBuffer, null };
+        lengthBuffer = ByteBuffer.allocate(4);
+        pendingFrames = new ArrayDeque[MediaPriority.LEVELS];
+        for (int i = 0; i < pendingFrames.length; i++) {
+            pendingFrames[i] = new ArrayDeque<ByteBuffer>();
+        }
+        maxPendingBytes = DEFAULT_MAX_PENDING_BYTES;
+        slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+        backlogThreshold = DEFAULT_BACKLOG_THRESHOLD;
+        disconnectGraceTime = DEFAULT_DISCONNECT_GRACE_TIME;
+        ioThread.getEngine().connectionOpened(this);
+    }
+    
+    public SocketChannel getChannel() {
+        return socket;
+    }
+    
+    public SocketAddress getRemoteAddress() {
+        return socket.socket().getRemoteSocketAddress();
+    }
+    
+    /**
+     * Registers the socket with the selector of the IOThread that owns this
+     * connection. Must be called from that IOThread.
+     */
+    protected synchronized void register(Selector selector) throws IOException {
+        int ops = SelectionKey.OP_READ;
+        if (hasPending()) ops |= SelectionKey.OP_WRITE;
+        key = socket.register(selector, ops, this);
+    }
+    
+    /**
+     * Registers a socket whose connection is still being established, for
+     * links opened by this relay towards another one.
+     */
+    protected synchronized void registerConnect(Selector selector) throws IOException {
+        key = socket.register(selector, SelectionKey.OP_CONNECT, this);
+    }
+    
+    /**
+     * Completes a connection registered with registerConnect and starts the
+     * INITIALIZE handshake on it.
+     */
+    protected void finishConnect() throws IOException {
+        try {
+            if (!socket.finishConnect()) return;
+        } catch (IOException e) {
+            RemoteCommunicatorCallback session = callback.getCommunicatorCallback();
+            if (session != null) session.connectionLost(callback);
+            throw e;
+        }
+        synchronized(this) {
+            int ops = SelectionKey.OP_READ;
+            if (hasPending()) ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+        callback.initialize();
+    }
+    
+    public synchronized int getPendingBytes() {
+        return pendingBytes;
+    }
+    
+    public synchronized int getPendingFrames() {
+        return pendingFrameCount + (writing != null ? 1 : 0);
+    }
+    
+    private boolean hasPending() {
+        return writing != null || pendingFrameCount > 0;
+    }
+    
+    public synchronized int getPendingBytesHighWaterMark() {
+        return pendingBytesHighWaterMark;
+    }
+    
+    public int getMaxPendingBytes() {
+        return maxPendingBytes;
+    }
+    
+    public void setMaxPendingBytes(int maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+    }
+    
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+    
+    /**
+     * Defines what happens when more than backlogThreshold bytes are waiting
+     * to be written. disconnectGraceTime is only used by the DISCONNECT policy.
+     */
+    public synchronized void setSlowConsumerPolicy(SlowConsumerPolicy policy, int backlogThreshold, long disconnectGraceTime) {
+        this.slowConsumerPolicy = policy;
+        this.backlogThreshold = backlogThreshold;
+        this.disconnectGraceTime = disconnectGraceTime;
+    }
+    
+    public int getBacklogThreshold() {
+        return backlogThreshold;
+    }
+    
+    public long getDisconnectGraceTime() {
+        return disconnectGraceTime;
+    }
+    
+    public long getDroppedFrames() {
+        return getStats().getDroppedPackets();
+    }
+    
+    public long getDroppedBytes() {
+        return getStats().getDroppedBytes();
+    }
+    
+    @Override
+    public void openCommunication() {
+        // Não implementar
+    }
+    
+    @Override
+    public void closeCommunication() {
+        if (socket.isOpen()) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            } finally {
+                stopLiveness();
+                ioThread.tcpConnectionClosed(callback, this);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void sendCtrlMessage(ByteBuffer data) throws IOException {
+        sendMessage(CTRL_MSG, data);
+    }
+
+    @Override
+    public synchronized void sendMessage(ByteBuffer data) throws IOException {
+        sendMessage(NORMAL_MSG, data);
+    }
+    
+    @Override
+    public synchronized void sendAggregatedMessage(ByteBuffer data) throws IOException {
+        sendMessage(AGGREGATED_MSG, data);
+    }
+    
+    @Override
+    public synchronized void sendReliableMessage(ByteBuffer data) throws IOException {
+        sendMessage(RELIABLE_MSG, data);
+    }
+    
+    private void sendMessage(short type, ByteBuffer data) throws IOException {
+        int priority = MediaPriority.of(type, data, data.position(), data.limit());
+        if (!admit(type, priority, data.remaining() + FRAME_HEADER_SIZE)) {
+            data.position(data.limit());
+            return;
+        }
+        countSent(data.remaining() + FRAME_HEADER_SIZE);
+        headerBuffer.clear();
+        headerBuffer.putInt(data.remaining() + 2);
+        headerBuffer.putShort(type);
+        headerBuffer.flip();
+        gatherBuffers[1] = data;
+        try {
+            if (hasPending()) {
+                enqueue(headerBuffer, data, priority, false);
+            } else {
+                socket.write(gatherBuffers);
+                if (headerBuffer.hasRemaining() || data.hasRemaining()) {
+                    enqueue(headerBuffer, data, priority, true);
+                }
+            }
+        } finally {
+            gatherBuffers[1] = null;
+        }
+    }
+    
+    @Override
+    public synchronized void sendFrame(ByteBuffer frame, int offset) throws IOException {
+        int priority = MediaPriority.ofFrame(frame, offset);
+        if (!admit(frame.getShort(offset + 4), priority, frame.limit() - offset)) return;
+        countSent(frame.limit() - offset);
+        frame.position(offset);
+        if (hasPending()) {
+            enqueue(frame, null, priority, false);
+        } else {
+            socket.write(frame);
+            if (frame.hasRemaining()) enqueue(frame, null, priority, true);
+        }
+    }
+
+    @Override
+    public synchronized void sendHeartBeat() throws IOException {
+        if (hasPending()) {
+            checkGraceTime();
+            return;  // The connection is not idle
+        }
+        headerBuffer.clear();
+        headerBuffer.putInt(2 + LinkQuality.HEARTBEAT_SIZE);
+        headerBuffer.putShort(HEARTBEAT_MSG);
+        getLinkQuality().writeHeartBeat(headerBuffer);
+        headerBuffer.flip();
+        countSent(headerBuffer.remaining());
+        socket.write(headerBuffer);
+        if (headerBuffer.hasRemaining()) enqueue(headerBuffer, null, MediaPriority.CONTROL, true);
+    }
+    
+    /**
+     * Applies the slow consumer policy to a frame about to be sent. Control
+     * messages and heartbeats are never acknowledged over TCP, so they are
+     * always admitted and never evicted, whatever the policy.
+     * @return False if the frame must be dropped
+     */
+    private boolean admit(short type, int priority, int size) throws IOException {
+        if (!hasPending() || pendingBytes + size <= backlogThreshold) return true;
+        if (isControlMessage(type)) return true;
+        switch (slowConsumerPolicy) {
+        case DROP_OLDEST:
+            // The frame being written is partially sent already, so it is never evicted
+            evict(pendingFrames[0], size);
+            return true;
+        case DROP_NEWEST:
+            dropped(size);
+            return false;
+        case DROP_APP_MESSAGES:
+            Iterator<ByteBuffer> iterator = pendingFrames[0].iterator();
+            while (iterator.hasNext()) {
+                ByteBuffer pending = iterator.next();
+                if (isAppMessage(pending.getShort(4))) {
+                    iterator.remove();
+                    discard(pending);
+                }
+            }
+            if (isAppMessage(type) && pendingBytes + size > backlogThreshold) {
+                dropped(size);
+                return false;
+            }
+            return true;
+        case MEDIA_PRIORITY:
+            if (priority == MediaPriority.CONTROL) return true;
+            // Video goes first, then audio; nothing more important than the new frame
+            for (int lane = MediaPriority.VIDEO; lane >= priority; lane--) {
+                evict(pendingFrames[lane], size);
+            }
+            if (pendingBytes + size > backlogThreshold) {
+                dropped(size);
+                return false;
+            }
+            return true;
+        case DISCONNECT:
+            if (overThresholdSince == 0) overThresholdSince = System.currentTimeMillis();
+            checkGraceTime();
+            return true;
+        }
+        return true;
+    }
+    
+    /**
+     * Drops the frames of a queue, oldest first, until a new frame of the
+     * given size fits under the backlog threshold. Control messages and
+     * heartbeats are skipped.
+     */
+    private void evict(ArrayDeque<ByteBuffer> queue, int size) {
+        Iterator<ByteBuffer> iterator = queue.iterator();
+        while (pendingBytes + size > backlogThreshold && iterator.hasNext()) {
+            ByteBuffer pending = iterator.next();
+            if (!isControlMessage(pending.getShort(4))) {
+                iterator.remove();
+                discard(pending);
+            }
+        }
+    }
+    
+    private void discard(ByteBuffer pending) {
+        pendingFrameCount--;
+        pendingBytes -= pending.remaining();
+        dropped(pending.remaining());
+        ioThread.getBufferPool().release(pending);
+    }
+    
+    private static boolean isAppMessage(short type) {
+        return type == NORMAL_MSG || type == AGGREGATED_MSG;
+    }
+    
+    private static boolean isControlMessage(short type) {
+        return type == CTRL_MSG || type == HEARTBEAT_MSG;
+    }
+    
+    private void checkGraceTime() throws IOException {
+        if (overThresholdSince != 0 && System.currentTimeMillis() - overThresholdSince > disconnectGraceTime) {
+            RelaySession session = getSession();
+            if (session != null) session.slowConsumerDisconnected(this);
+            closeCommunication();
+            throw new IOException("Slow consumer: backlog over " + backlogThreshold + " bytes for " + disconnectGraceTime + " ms");
+        }
+    }
+    
+    private void dropped(int size) {
+        countDropped(size);
+        RelaySession session = getSession();
+        if (session != null) session.slowConsumerDropped(this, size);
+    }
+    
+    /**
+     * Copies what could not be written into the pending queue of its
+     * priority and asks the IOThread to report when the socket becomes
+     * writable again.
+     * @param started True for the rest of a frame partially written
+     */
+    private void enqueue(ByteBuffer first, ByteBuffer second, int priority, boolean started) throws IOException {
+        if (released) throw new IOException("Connection closed");
+        int size = first.remaining() + (second != null ? second.remaining() : 0);
+        if (pendingBytes + size > maxPendingBytes) {
+            RelaySession session = getSession();
+            if (session != null) session.slowConsumerDisconnected(this);
+            closeCommunication();
+            throw new IOException("Output queue full: " + pendingBytes + " bytes pending");
+        }
+        ByteBuffer pending = ioThread.getBufferPool().acquire(size);
+        pending.put(first);
+        if (second != null) pending.put(second);
+        pending.flip();
+        if (started) {
+            writing = pending;
+        } else {
+            pendingFrames[slowConsumerPolicy == SlowConsumerPolicy.MEDIA_PRIORITY ? priority : 0].add(pending);
+            pendingFrameCount++;
+        }
+        pendingBytes += size;
+        if (pendingBytes > pendingBytesHighWaterMark) pendingBytesHighWaterMark = pendingBytes;
+        SelectionKey key = this.key;
+        if (key != null && key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            if (!ioThread.isIOThread()) key.selector().wakeup();
+        }
+    }
+    
+    /**
+     * Writes the pending frames until the queues are empty or the socket
+     * buffer is full. Called by the IOThread when the socket is writable.
+     */
+    protected synchronized void flush() throws IOException {
+        while (writing != null || (writing = nextPending()) != null) {
+            pendingBytes -= socket.write(writing);
+            if (pendingBytes <= backlogThreshold) overThresholdSince = 0;
+            if (writing.hasRemaining()) return;
+            ioThread.getBufferPool().release(writing);
+            writing = null;
+        }
+        SelectionKey key = this.key;
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+    
+    /**
+     * Gives the borrowed buffers back to the pool. Called by the IOThread
+     * once the connection is closed; nothing is queued afterwards.
+     */
+    protected synchronized void releaseBuffers() {
+        released = true;
+        BufferPool pool = ioThread.getBufferPool();
+        if (inputBuffer != null) {
+            pool.release(inputBuffer);
+            inputBuffer = null;
+        }
+        if (writing != null) {
+            pool.release(writing);
+            writing = null;
+        }
+        ByteBuffer pending;
+        while ((pending = nextPending()) != null) {
+            pool.release(pending);
+        }
+        pendingBytes = 0;
+    }
+    
+    /**
+     * Takes the next frame to be written from the most important queue
+     * that is not empty
+     */
+    private ByteBuffer nextPending() {
+        for (int i = 0; i < pendingFrames.length; i++) {
+            ByteBuffer pending = pendingFrames[i].poll();
+            if (pending != null) {
+                pendingFrameCount--;
+                return pending;
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    public void receiveData() throws IOException {
+        setActive(true);
+        // Processing an INITIALIZE may move this connection to another IOThread
+        BufferPool pool = ioThread.getBufferPool();
+        if (inputBuffer == null) {
+            if (socket.read(lengthBuffer) < 0) throw new EOFException("Socket closed");
+            if (lengthBuffer.hasRemaining()) return;
+            int size = lengthBuffer.getInt(0);
+            lengthBuffer.clear();
+            if (size < 0 || size > inputBufferSize) throw new IOException("Packet size too large");
+            // The message is read after the headroom, see RelayRemoteConnection.FRAME_HEADROOM
+            inputBuffer = pool.acquire(FRAME_HEADROOM + size);
+            inputBuffer.position(FRAME_HEADROOM);
+        }
+        if (socket.read(inputBuffer) < 0) throw new EOFException("Socket closed");
+        if (inputBuffer.hasRemaining()) return;
+        ByteBuffer frame = inputBuffer;
+        inputBuffer = null;
+        try {
+            frame.flip().position(FRAME_HEADROOM);
+            countReceived(frame.remaining() + 4);
+            // TODO Processar o pacote recebido
+            if (frame.remaining() >= 2) {
+                short msgType = frame.getShort();
+                if (msgType == NORMAL_MSG) {
+                    callback.packetReceived(this, frame);                        
+                } else if (msgType == AGGREGATED_MSG) {
+                    aggregatedPacketReceived(frame);
+                } else if (msgType == RELIABLE_MSG) {
+                    reliablePacketReceived(frame);
+                } else if (msgType == CTRL_MSG) {
+                    callback.ctrlPacketReceived(this, frame);
+                } else if (msgType == HEARTBEAT_MSG) {
+                    heartBeatReceived(frame);
+                } else {
+                    throw new IOException("Unknown message type: " + msgType);
+                }
+            }
+        } finally {
+            pool.release(frame);
+        }
+    }
+    
+}
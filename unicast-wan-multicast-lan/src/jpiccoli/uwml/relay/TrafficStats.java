@@ -0,0 +1,163 @@
+package jpiccoli.uwml.relay;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import jpiccoli.uwml.util.LatencyHistogram;
+
+/**
+ * Traffic counters of a relay connection, session or IOThread. The counters
+ * are cumulative and always on; updating them costs one atomic increment
+ * each, so the fan-out adds up the packets it sent and updates the session
+ * once per received packet instead of once per recipient.
+ * <p>
+ * Sessions and IOThreads also time the fan-out: from the moment a packet is
+ * handed to the session until it was sent to its last recipient.
+ */
+public class TrafficStats implements TrafficStatsMBean {
+
+    private AtomicLong packetsIn;
+    private AtomicLong bytesIn;
+    private AtomicLong packetsOut;
+    private AtomicLong bytesOut;
+    private AtomicLong droppedPackets;
+    private AtomicLong droppedBytes;
+    private AtomicLong ctrlRetransmits;
+    private AtomicLong ackTimeouts;
+
+    /**
+     * Null for connections, whose packets are timed by their session
+     */
+    private LatencyHistogram fanoutLatency;
+
+    public TrafficStats(boolean timed) {
+        packetsIn = new AtomicLong();
+        bytesIn = new AtomicLong();
+        packetsOut = new AtomicLong();
+        bytesOut = new AtomicLong();
+        droppedPackets = new AtomicLong();
+        droppedBytes = new AtomicLong();
+        ctrlRetransmits = new AtomicLong();
+        ackTimeouts = new AtomicLong();
+        if (timed) fanoutLatency = new LatencyHistogram();
+    }
+
+    /**
+     * Copy of the counters as they are now
+     */
+    public TrafficStats(TrafficStats stats) {
+        this(stats.fanoutLatency != null);
+        add(stats);
+    }
+
+    /**
+     * Adds the counters of another TrafficStats to this one, to build the
+     * totals of a snapshot
+     */
+    protected void add(TrafficStats stats) {
+        packetsIn.addAndGet(stats.packetsIn.get());
+        bytesIn.addAndGet(stats.bytesIn.get());
+        packetsOut.addAndGet(stats.packetsOut.get());
+        bytesOut.addAndGet(stats.bytesOut.get());
+        droppedPackets.addAndGet(stats.droppedPackets.get());
+        droppedBytes.addAndGet(stats.droppedBytes.get());
+        ctrlRetransmits.addAndGet(stats.ctrlRetransmits.get());
+        ackTimeouts.addAndGet(stats.ackTimeouts.get());
+        if (fanoutLatency != null && stats.fanoutLatency != null) fanoutLatency.add(stats.fanoutLatency);
+    }
+
+    protected void received(int bytes) {
+        packetsIn.incrementAndGet();
+        bytesIn.addAndGet(bytes);
+    }
+
+    protected void sent(int bytes) {
+        packetsOut.incrementAndGet();
+        bytesOut.addAndGet(bytes);
+    }
+
+    protected void sent(int packets, long bytes) {
+        packetsOut.addAndGet(packets);
+        bytesOut.addAndGet(bytes);
+    }
+
+    protected void dropped(int bytes) {
+        droppedPackets.incrementAndGet();
+        droppedBytes.addAndGet(bytes);
+    }
+
+    protected void ctrlRetransmitted() {
+        ctrlRetransmits.incrementAndGet();
+    }
+
+    protected void ackTimedOut() {
+        ackTimeouts.incrementAndGet();
+    }
+
+    protected void fannedOut(long nanos) {
+        if (fanoutLatency != null) fanoutLatency.record(nanos);
+    }
+
+    public long getPacketsIn() {
+        return packetsIn.get();
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getPacketsOut() {
+        return packetsOut.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public long getDroppedPackets() {
+        return droppedPackets.get();
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    public long getCtrlRetransmits() {
+        return ctrlRetransmits.get();
+    }
+
+    public long getAckTimeouts() {
+        return ackTimeouts.get();
+    }
+
+    /**
+     * Fan-out times in nanoseconds, or null if this TrafficStats is not timed
+     */
+    public LatencyHistogram getFanoutLatency() {
+        return fanoutLatency;
+    }
+
+    public long getFanoutCount() {
+        return fanoutLatency == null ? 0 : fanoutLatency.getCount();
+    }
+
+    public long getFanoutLatencyMean() {
+        return fanoutLatency == null ? 0 : fanoutLatency.getMean() / 1000;
+    }
+
+    public long getFanoutLatencyP50() {
+        return fanoutLatency == null ? 0 : fanoutLatency.getValueAtQuantile(0.5) / 1000;
+    }
+
+    public long getFanoutLatencyP99() {
+        return fanoutLatency == null ? 0 : fanoutLatency.getValueAtQuantile(0.99) / 1000;
+    }
+
+    public long getFanoutLatencyP999() {
+        return fanoutLatency == null ? 0 : fanoutLatency.getValueAtQuantile(0.999) / 1000;
+    }
+
+    public long getFanoutLatencyMax() {
+        return fanoutLatency == null ? 0 : fanoutLatency.getMax() / 1000;
+    }
+
+}
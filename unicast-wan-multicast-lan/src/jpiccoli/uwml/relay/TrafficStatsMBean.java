@@ -0,0 +1,39 @@
+package jpiccoli.uwml.relay;
+
+/**
+ * JMX view of a TrafficStats. Latencies are in microseconds.
+ */
+public interface TrafficStatsMBean {
+
+    public long getPacketsIn();
+
+    public long getBytesIn();
+
+    public long getPacketsOut();
+
+    public long getBytesOut();
+
+    public long getDroppedPackets();
+
+    public long getDroppedBytes();
+
+    public long getCtrlRetransmits();
+
+    public long getAckTimeouts();
+
+    /**
+     * Packets whose fan-out was timed
+     */
+    public long getFanoutCount();
+
+    public long getFanoutLatencyMean();
+
+    public long getFanoutLatencyP50();
+
+    public long getFanoutLatencyP99();
+
+    public long getFanoutLatencyP999();
+
+    public long getFanoutLatencyMax();
+
+}
@@ -1,181 +1,414 @@
-package jpiccoli.uwml.relay;
-
-import java.io.IOException;
-import java.net.SocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
-import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
-
-import jpiccoli.uwml.remote.RemoteCommunicator;
-import jpiccoli.uwml.util.LimitedList;
-
-public class UDPRelayConnection extends RelayRemoteConnection {
-
-    public static final short ACK_MSG    = 3;
-    
-    private static Timer timer;
-    
-    private SocketAddress remoteAddress;
-    private DatagramChannel datagramChannel;
-    private long ctrlPacketCount;
-    
-    private ArrayList<AckTimeoutTimer> ackTimers;
-    private LimitedList<CtrlMessage> ctrlMessages;
-    
-    private ByteBuffer outputBuffer;
-
-    static {
-        timer = new Timer("UDP Relay Connection Ack Timeout Timer");
-    }
-    
-    public UDPRelayConnection(IOThread ioThread, RemoteCommunicator callback, DatagramChannel channel, SocketAddress remoteAdress) {
-        this(ioThread, callback, channel, remoteAdress, 1024, 1024);
-    }
-    
-    public UDPRelayConnection(IOThread ioThread, RemoteCommunicator callback, DatagramChannel channel, SocketAddress remoteAdress, int inputBufferSize, int outputBufferSize) {
-        super(ioThread, callback, inputBufferSize, outputBufferSize);
-        this.remoteAddress = remoteAdress;
-        this.datagramChannel = channel;
-        ackTimers = new ArrayList<AckTimeoutTimer>();
-        ctrlMessages = new LimitedList<CtrlMessage>();
-        outputBuffer = ByteBuffer.allocateDirect(outputBufferSize + 10);
-        ioThread.changeUDPInputBufferSize(outputBufferSize + 10);
-        heartBeat.addConnection(this);
-    }
-    
-    public SocketAddress getRemoteAddress() {
-        return remoteAddress;
-    }
-    
-    @Override
-    public void openCommunication() {
-        // No implementar...
-    }
-    
-    @Override
-    public void closeCommunication() {
-        heartBeat.removeConnection(this);
-        ioThread.udpConnectionClosed(callback, this);
-    }
-
-    @Override
-    public synchronized void sendCtrlMessage(ByteBuffer data) throws IOException {
-        long packetID = 0;
-        packetID = ctrlPacketCount++;
-        AckTimeoutTimer ack = new AckTimeoutTimer();
-        timer.schedule(ack, 5000);
-        ack.packetID = packetID;
-        ackTimers.add(ack);
-        outputBuffer.clear();
-        outputBuffer.putShort(CTRL_MSG);
-        outputBuffer.putLong(packetID);
-        outputBuffer.put(data);
-        outputBuffer.flip();
-        datagramChannel.send(outputBuffer, remoteAddress);
-    }
-    
-    @Override
-    public synchronized void sendMessage(ByteBuffer data) throws IOException {
-        outputBuffer.clear();
-        outputBuffer.putShort(NORMAL_MSG);
-        outputBuffer.put(data);
-        outputBuffer.flip();
-        datagramChannel.send(outputBuffer, remoteAddress);
-    }
-
-    @Override
-    public synchronized void sendHeartBeat() throws IOException {
-        outputBuffer.clear();
-        outputBuffer.putShort(HEARTBEAT_MSG);
-        outputBuffer.flip();
-        datagramChannel.send(outputBuffer, remoteAddress);
-    }
-    
-    @Override    
-    public void receiveData() throws IOException {
-        setActive(true);
-        ByteBuffer inputBuffer = ioThread.getUDPInputBuffer();
-        short msgType = inputBuffer.getShort();
-        if (msgType == NORMAL_MSG) {
-            callback.packetReceived(this, inputBuffer);
-        } else if (msgType == CTRL_MSG) {
-            long msgCode = inputBuffer.getLong();
-            CtrlMessage ctrlMessage = getControlMessage(msgCode);
-            sendAck(msgCode);
-            if (ctrlMessage != null) {
-                if (!ctrlMessage.alreadyProcessed) {
-                    ctrlMessage.alreadyProcessed = true;
-                    callback.ctrlPacketReceived(this, inputBuffer);
-                }
-            } else {
-                ctrlMessage = new CtrlMessage(msgCode);
-                ctrlMessage.alreadyProcessed = true;
-                ctrlMessages.add(ctrlMessage);
-                callback.ctrlPacketReceived(this, inputBuffer);
-            }
-        } else if (msgType == HEARTBEAT_MSG) {
-            // Ignore...
-        } else if (msgType == ACK_MSG) {
-            if (inputBuffer.remaining() == 8) {
-                AckTimeoutTimer ack = getAck(inputBuffer.getLong());
-                if (ack != null) {
-                    ack.cancel();
-                    ackTimers.remove(ack);
-                }
-            }
-        } else {
-            System.out.println("Unknown msg");
-        }
-    }
-    
-    private synchronized void sendAck(long ackCode) {
-        try {
-            outputBuffer.clear();
-            outputBuffer.putShort(ACK_MSG);
-            outputBuffer.putLong(ackCode);
-            outputBuffer.flip();
-            datagramChannel.send(outputBuffer, remoteAddress);
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-    }
-
-    private CtrlMessage getControlMessage(long msgCode) {
-        for (int i = 0; i < ctrlMessages.size(); i++) {
-            CtrlMessage ctrlMessage = ctrlMessages.get(i);
-            if (ctrlMessage.msgCode == msgCode) {
-                return ctrlMessage;
-            }
-        }
-        return null;
-    }
-    
-    private synchronized AckTimeoutTimer getAck(long ackCode) {
-        for (AckTimeoutTimer ack : ackTimers) {
-            if (ack.packetID == ackCode) {
-                return ack;
-            }
-        }
-        return null;
-    }
-    
-    private class CtrlMessage {
-        private long msgCode;
-        private boolean alreadyProcessed;
-        private CtrlMessage(long msgCode) {
-            this.msgCode = msgCode;
-            alreadyProcessed = false;
-        }
-    }
-    
-    private class AckTimeoutTimer extends TimerTask {
-        private long packetID;
-        public void run() {
-            callback.close();
-        }
-    }
-    
-}
+package jpiccoli.uwml.relay;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import jpiccoli.uwml.remote.RemoteCommunicator;
+import jpiccoli.uwml.remote.UDPRemoteConnection;
+import jpiccoli.uwml.util.BufferPool;
+import jpiccoli.uwml.util.FecDecoder;
+import jpiccoli.uwml.util.FecEncoder;
+import jpiccoli.uwml.util.IntHashMap;
+import jpiccoli.uwml.util.LinkQuality;
+import jpiccoli.uwml.util.SequenceWindow;
+import jpiccoli.uwml.util.TimingWheel;
+
+public class UDPRelayConnection extends RelayRemoteConnection {
+
+    public static final short ACK_MSG    = 3;
+    public static final short FEC_DATA_MSG   = UDPRemoteConnection.FEC_DATA_MSG;
+    public static final short FEC_PARITY_MSG = UDPRemoteConnection.FEC_PARITY_MSG;
+    public static final short FEC_REPORT_MSG = UDPRemoteConnection.FEC_REPORT_MSG;
+    
+    /**
+     * Time, in milliseconds, a control message is sent again without an ACK
+     * before giving up. The time to wait for an ACK is the retransmission
+     * timeout of the connection's RTT estimator, doubled on every
+     * retransmission.
+     */
+    public static final long CTRL_GIVE_UP_TIME = 7000;
+    
+    private SocketAddress remoteAddress;
+    private volatile DatagramChannel datagramChannel;
+    private IOThread peerThread;
+    private long ctrlPacketCount;
+    
+    /**
+     * Control messages waiting for an ACK, by the low 32 bits of their
+     * packet ID, which are unique among the outstanding ones
+     */
+    private IntHashMap<PendingCtrlMessage> pendingCtrlMessages;
+    
+    /**
+     * Control messages received, processed once each and in the order the
+     * peer numbered them, since it sends several without waiting for ACKs
+     */
+    private SequenceWindow ctrlMessages;
+    private boolean closed;
+    private boolean closeWhenAcknowledged;
+    
+    /**
+     * Forward error correction of the application datagrams sent to the
+     * peer and received from it, created when the peer asks for it in a
+     * loss report. The decoder is only used by the IOThread.
+     */
+    private FecEncoder fecEncoder;
+    private FecDecoder fecDecoder;
+
+    public UDPRelayConnection(IOThread ioThread, RemoteCommunicator callback, DatagramChannel channel, SocketAddress remoteAdress) {
+        this(ioThread, callback, channel, remoteAdress, 1024, 1024);
+    }
+    
+    public UDPRelayConnection(IOThread ioThread, RemoteCommunicator callback, DatagramChannel channel, SocketAddress remoteAdress, int inputBufferSize, int outputBufferSize) {
+        super(ioThread, callback, inputBufferSize, outputBufferSize);
+        this.remoteAddress = remoteAdress;
+        this.datagramChannel = channel;
+        this.peerThread = ioThread;
+        pendingCtrlMessages = new IntHashMap<PendingCtrlMessage>(4);
+        ctrlMessages = new SequenceWindow(UDPRemoteConnection.CTRL_WINDOW);
+        ioThread.changeUDPInputBufferSize(outputBufferSize + 10);
+        ioThread.getEngine().connectionOpened(this);
+    }
+    
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+    
+    public DatagramChannel getChannel() {
+        return datagramChannel;
+    }
+    
+    protected void setChannel(DatagramChannel datagramChannel) {
+        this.datagramChannel = datagramChannel;
+    }
+    
+    @Override
+    public void openCommunication() {
+        // Não implementar...
+    }
+    
+    @Override
+    public void closeCommunication() {
+        synchronized(this) {
+            if (closed) return;
+            closed = true;
+        }
+        stopLiveness();
+        peerThread.udpConnectionClosed(callback, this);
+    }
+
+    @Override
+    public void closeWhenAcknowledged() {
+        synchronized(this) {
+            closeWhenAcknowledged = true;
+            if (pendingCtrlMessages.size() > 0) return;
+        }
+        closeCommunication();
+    }
+
+    @Override
+    public synchronized void sendCtrlMessage(ByteBuffer data) throws IOException {
+        long packetID = ctrlPacketCount++;
+        // The datagram is kept until it is acknowledged, to be sent again
+        BufferPool pool = ioThread.getBufferPool();
+        ByteBuffer datagram = pool.acquire(data.remaining() + 10);
+        datagram.putShort(CTRL_MSG);
+        datagram.putLong(packetID);
+        datagram.put(data);
+        datagram.flip();
+        PendingCtrlMessage pending = new PendingCtrlMessage(packetID, datagram, pool);
+        pendingCtrlMessages.put((int) packetID, pending);
+        pending.firstSentTime = System.nanoTime();
+        ioThread.schedule(pending, getLinkQuality().getRtt().getTimeout());
+        countSent(datagram.remaining());
+        datagramChannel.send(datagram, remoteAddress);
+    }
+    
+    @Override
+    public void sendMessage(ByteBuffer data) throws IOException {
+        sendMessage(NORMAL_MSG, data);
+    }
+    
+    @Override
+    public void sendAggregatedMessage(ByteBuffer data) throws IOException {
+        sendMessage(AGGREGATED_MSG, data);
+    }
+    
+    @Override
+    public void sendReliableMessage(ByteBuffer data) throws IOException {
+        sendMessage(RELIABLE_MSG, data);
+    }
+    
+    private synchronized void sendMessage(short type, ByteBuffer data) throws IOException {
+        BufferPool pool = ioThread.getBufferPool();
+        ByteBuffer outputBuffer = pool.acquire(data.remaining() + 2);
+        try {
+            outputBuffer.putShort(type);
+            outputBuffer.put(data);
+            outputBuffer.flip();
+            sendAppDatagram(outputBuffer);
+        } finally {
+            pool.release(outputBuffer);
+        }
+    }
+    
+    /**
+     * Sends an application datagram, numbered and followed by the parity
+     * packets of its group if the peer asked for forward error correction.
+     * The frames shared by the recipients of a session are copied only for
+     * the peers that did.
+     */
+    private void sendAppDatagram(ByteBuffer datagram) throws IOException {
+        FecEncoder encoder = fecEncoder;
+        long now = System.currentTimeMillis();
+        if (encoder == null || !encoder.accepts(datagram.remaining(), now)) {
+            transmit(datagram);
+            return;
+        }
+        BufferPool pool = ioThread.getBufferPool();
+        ByteBuffer outputBuffer = pool.acquire(datagram.remaining() + 2 + FecEncoder.DATA_HEADER_SIZE);
+        outputBuffer.putShort(FEC_DATA_MSG);
+        outputBuffer.putInt(encoder.getNextNumber());
+        encoder.add(datagram, now);
+        outputBuffer.put(datagram);
+        send(pool, outputBuffer);
+        ByteBuffer parity;
+        while ((parity = encoder.pollParity()) != null) {
+            // Parity only adds to the load of a congested socket
+            if (ioThread.isUDPCongested()) {
+                countDropped(parity.remaining() + 2);
+                continue;
+            }
+            outputBuffer = pool.acquire(parity.remaining() + 2);
+            outputBuffer.putShort(FEC_PARITY_MSG);
+            outputBuffer.put(parity);
+            send(pool, outputBuffer);
+        }
+    }
+    
+    /**
+     * Sends a datagram built in a buffer borrowed from the pool and gives
+     * the buffer back
+     */
+    private void send(BufferPool pool, ByteBuffer outputBuffer) throws IOException {
+        try {
+            outputBuffer.flip();
+            transmit(outputBuffer);
+        } finally {
+            pool.release(outputBuffer);
+        }
+    }
+
+    @Override
+    public synchronized void sendFrame(ByteBuffer frame, int offset) throws IOException {
+        // Datagrams carry no length field
+        frame.position(offset + 4);
+        if (ioThread.isUDPCongested() && MediaPriority.ofFrame(frame, offset) == MediaPriority.VIDEO) {
+            countDropped(frame.remaining());
+            return;
+        }
+        sendAppDatagram(frame);
+    }
+    
+    /**
+     * Sends a datagram, counting it as dropped if the socket buffer is full
+     */
+    private void transmit(ByteBuffer datagram) throws IOException {
+        int size = datagram.remaining();
+        if (datagramChannel.send(datagram, remoteAddress) == 0) {
+            ioThread.udpSendFailed();
+            countDropped(size);
+        } else {
+            countSent(size);
+        }
+    }
+
+    @Override
+    public synchronized void sendHeartBeat() throws IOException {
+        BufferPool pool = ioThread.getBufferPool();
+        ByteBuffer outputBuffer = pool.acquire(2 + LinkQuality.HEARTBEAT_SIZE);
+        outputBuffer.putShort(HEARTBEAT_MSG);
+        getLinkQuality().writeHeartBeat(outputBuffer);
+        send(pool, outputBuffer);
+    }
+    
+    @Override    
+    public void receiveData() throws IOException {
+        setActive(true);
+        ByteBuffer inputBuffer = ioThread.getUDPInputBuffer();
+        countReceived(inputBuffer.remaining());
+        receiveDatagram(inputBuffer.getShort(), inputBuffer);
+        FecDecoder decoder = fecDecoder;
+        if (decoder != null) {
+            // Datagrams rebuilt from the parity packets, handed over late
+            ByteBuffer recovered;
+            while ((recovered = decoder.pollRecovered()) != null) {
+                if (recovered.remaining() >= 2) receiveDatagram(recovered.getShort(), recovered);
+            }
+            long now = System.currentTimeMillis();
+            if (decoder.isReportDue(now)) sendFecReport(decoder, now);
+        }
+    }
+    
+    private void receiveDatagram(short msgType, ByteBuffer inputBuffer) throws IOException {
+        if (msgType == FEC_DATA_MSG) {
+            if (inputBuffer.remaining() < FecEncoder.DATA_HEADER_SIZE + 2) return;
+            int number = inputBuffer.getInt();
+            FecDecoder decoder = fecDecoder;
+            // Already rebuilt from the parity packets
+            if (decoder != null && !decoder.dataReceived(number, inputBuffer)) return;
+            msgType = inputBuffer.getShort();
+        }
+        if (msgType == NORMAL_MSG) {
+            callback.packetReceived(this, inputBuffer);
+        } else if (msgType == AGGREGATED_MSG) {
+            aggregatedPacketReceived(inputBuffer);
+        } else if (msgType == RELIABLE_MSG) {
+            reliablePacketReceived(inputBuffer);
+        } else if (msgType == CTRL_MSG) {
+            long msgCode = inputBuffer.getLong();
+            int status = ctrlMessages.offer(msgCode, inputBuffer);
+            // Messages too far ahead are not acknowledged, so they are sent again
+            if (status != SequenceWindow.REFUSED) sendAck(msgCode);
+            if (status == SequenceWindow.DELIVER) {
+                callback.ctrlPacketReceived(this, inputBuffer);
+                ByteBuffer held;
+                while ((held = ctrlMessages.poll()) != null) {
+                    callback.ctrlPacketReceived(this, held);
+                }
+            }
+        } else if (msgType == HEARTBEAT_MSG) {
+            heartBeatReceived(inputBuffer);
+        } else if (msgType == ACK_MSG) {
+            if (inputBuffer.remaining() == 8) {
+                acknowledged(inputBuffer.getLong());
+            }
+        } else if (msgType == FEC_PARITY_MSG) {
+            FecDecoder decoder = fecDecoder;
+            if (decoder != null) decoder.parityReceived(inputBuffer);
+        } else if (msgType == FEC_REPORT_MSG) {
+            if (inputBuffer.remaining() == FecDecoder.REPORT_SIZE) {
+                fecReportReceived(inputBuffer.get(inputBuffer.position()), FecDecoder.readLoss(inputBuffer));
+            }
+        } else {
+            System.out.println("Unknown msg");
+        }
+    }
+    
+    /**
+     * Applies a loss report of the peer. The peer asks for forward error
+     * correction with its first report, and the datagrams it sends are
+     * protected with the code it asked for as well.
+     */
+    private synchronized void fecReportReceived(int mode, double loss) {
+        if (mode == FecEncoder.NONE) {
+            fecEncoder = null;
+            fecDecoder = null;
+            return;
+        }
+        if (fecEncoder == null) fecEncoder = new FecEncoder(outputBufferSize + 10);
+        fecEncoder.reportReceived(mode, loss, System.currentTimeMillis());
+        if (fecDecoder == null) {
+            fecDecoder = new FecDecoder(mode);
+        } else {
+            fecDecoder.setMode(mode);
+        }
+    }
+    
+    private synchronized void sendFecReport(FecDecoder decoder, long now) {
+        try {
+            BufferPool pool = ioThread.getBufferPool();
+            ByteBuffer outputBuffer = pool.acquire(2 + FecDecoder.REPORT_SIZE);
+            outputBuffer.putShort(FEC_REPORT_MSG);
+            decoder.writeReport(outputBuffer, now);
+            send(pool, outputBuffer);
+        } catch (IOException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+    }
+    
+    private synchronized void sendAck(long ackCode) {
+        try {
+            BufferPool pool = ioThread.getBufferPool();
+            ByteBuffer outputBuffer = pool.acquire(10);
+            outputBuffer.putShort(ACK_MSG);
+            outputBuffer.putLong(ackCode);
+            send(pool, outputBuffer);
+        } catch (IOException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+    }
+
+    private void acknowledged(long packetID) {
+        PendingCtrlMessage pending;
+        boolean close;
+        synchronized(this) {
+            pending = pendingCtrlMessages.get((int) packetID);
+            if (pending == null || pending.packetID != packetID) return;
+            pendingCtrlMessages.remove((int) packetID);
+            close = closeWhenAcknowledged && pendingCtrlMessages.size() == 0;
+        }
+        pending.cancel();
+        // The ACK of a message sent again may be for any of its transmissions
+        if (pending.tries == 0) getLinkQuality().getRtt().sample(System.nanoTime() - pending.firstSentTime);
+        pending.release();
+        if (close) closeCommunication();
+    }
+    
+    /**
+     * Sends the control message again or, CTRL_GIVE_UP_TIME after its first
+     * transmission, gives up and closes the communicator. Runs on the
+     * IOThread the message was scheduled on.
+     */
+    private void ackTimedOut(PendingCtrlMessage pending) {
+        synchronized(this) {
+            if (pendingCtrlMessages.get((int) pending.packetID) != pending) return;
+            getStats().ackTimedOut();
+            ioThread.getStats().ackTimedOut();
+            long elapsed = (System.nanoTime() - pending.firstSentTime) / 1000000;
+            if (!closed && elapsed < CTRL_GIVE_UP_TIME) {
+                pending.tries++;
+                try {
+                    pending.datagram.position(0);
+                    getStats().ctrlRetransmitted();
+                    ioThread.getStats().ctrlRetransmitted();
+                    countSent(pending.datagram.remaining());
+                    datagramChannel.send(pending.datagram, remoteAddress);
+                } catch (IOException e) {
+                    // TODO Auto-generated catch block
+                    e.printStackTrace();
+                }
+                long timeout = Math.min(getLinkQuality().getRtt().getTimeout() << Math.min(pending.tries, 8), RTT_MAX_TIMEOUT);
+                ioThread.schedule(pending, Math.min(timeout, CTRL_GIVE_UP_TIME - elapsed));
+                return;
+            }
+            pendingCtrlMessages.remove((int) pending.packetID);
+        }
+        pending.release();
+        if (!closed) callback.close();
+    }
+    
+    private class PendingCtrlMessage extends TimingWheel.Timeout {
+        private long packetID;
+        private ByteBuffer datagram;
+        private BufferPool pool;
+        private int tries;
+        private long firstSentTime;
+        private PendingCtrlMessage(long packetID, ByteBuffer datagram, BufferPool pool) {
+            this.packetID = packetID;
+            this.datagram = datagram;
+            this.pool = pool;
+        }
+        protected void expired() {
+            ackTimedOut(this);
+        }
+        private void release() {
+            pool.release(datagram);
+        }
+    }
+    
+}
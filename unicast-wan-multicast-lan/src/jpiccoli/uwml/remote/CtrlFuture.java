@@ -0,0 +1,104 @@
+package jpiccoli.uwml.remote;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Resultado do envio de uma mensagem de controle. É concluído quando o host remoto
+ * confirma o recebimento da mensagem ou quando a entrega falha, caso em que a
+ * conexão é encerrada. Uma mensagem já transmitida não pode ser cancelada.
+ * @author Juliano
+ *
+ */
+public class CtrlFuture implements Future<Void> {
+
+    /**
+     * Resultado das mensagens cuja entrega é garantida pelo próprio transporte
+     */
+    public final static CtrlFuture DELIVERED = new CtrlFuture(true);
+
+    private boolean done;
+    private IOException failure;
+
+    public CtrlFuture() {
+    }
+
+    private CtrlFuture(boolean done) {
+        this.done = done;
+    }
+
+    /**
+     * Conclui este resultado e libera as threads que o aguardam
+     * @param failure Causa da falha ou null se a mensagem foi confirmada
+     */
+    protected synchronized void complete(IOException failure) {
+        if (done) return;
+        done = true;
+        this.failure = failure;
+        notifyAll();
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Retorna true se a mensagem foi confirmada pelo host remoto
+     * @return True se a mensagem foi confirmada
+     */
+    public synchronized boolean isDelivered() {
+        return done && failure == null;
+    }
+
+    /**
+     * Retorna a causa da falha na entrega
+     * @return A causa da falha ou null se a entrega não falhou
+     */
+    public synchronized IOException getFailure() {
+        return failure;
+    }
+
+    public synchronized Void get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        if (failure != null) throw new ExecutionException(failure);
+        return null;
+    }
+
+    public synchronized Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!await(unit.toMillis(timeout))) {
+            if (!done) throw new TimeoutException();
+            throw new ExecutionException(failure);
+        }
+        return null;
+    }
+
+    /**
+     * Aguarda a conclusão por, no máximo, o tempo especificado
+     * @param timeout Tempo máximo de espera, em milissegundos
+     * @return True se a mensagem foi confirmada dentro do tempo de espera
+     * @throws InterruptedException Caso a thread seja interrompida durante a espera
+     */
+    public synchronized boolean await(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (!done && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return isDelivered();
+    }
+
+}
@@ -1,139 +1,139 @@
-package jpiccoli.uwml.remote;
-
-import java.util.ArrayList;
-
-public class HeartBeatManager {
-    
-	/**
-	 * Conjunto de conexes que so monitoradas por este HeartBeatManager
-	 */
-    private ArrayList<RemoteConnection> connections;
-    
-    /**
-     * Intervalo de envio de mensagens de HeartBeat
-     */
-    private long heartBeatSendInterval;
-    
-    /**
-     * Tempo mximo de inatividade tolerado para cada conexo gerenciada por este HeartBeatManager
-     */
-    private long maximumInactiveTime;
-
-    /**
-     * Indica se as threads de envio/verificao de HeartBeat devem ser encerradas
-     */
-    private boolean stop;
-
-    /**
-     * Thread para envio de mensagens do tipo HeartBeat
-     */
-    private HeartBeatSenderThread senderThread;
-    
-    /**
-     * Thread que monitora e verifica se as conexo gerenciadas esto ativas ou inativas
-     */
-    private HeartBeatVerifierThread verifierThread;
-
-    /**
-     * Construtor-padro
-     */
-    public HeartBeatManager() {
-        this(10000, 30000);
-    }
-    
-    /**
-     * Cria uma instncia de HeartBeatManager utilizando o intervalo de envio e tempo
-     * mximo de inatividade especificados
-     * @param heartBeatSendInterval Intervalo de tempo entre o envio de uma e outra mensagem de HeartBeat
-     * @param maximumInactiveTime Tempo mximo tolerado para que uma conexo permanea inativa antes de ser finalizada 
-     */
-    public HeartBeatManager(int heartBeatSendInterval, int maximumInactiveTime) {
-        connections = new ArrayList<RemoteConnection>();
-        this.heartBeatSendInterval = heartBeatSendInterval;
-        this.maximumInactiveTime = maximumInactiveTime;
-        senderThread = new HeartBeatSenderThread();
-        senderThread.setName("HeartBeat Sender Thread");
-        senderThread.setDaemon(true);
-        verifierThread = new HeartBeatVerifierThread();
-        verifierThread.setName("Connection Status Verifier Thread");
-        verifierThread.setDaemon(true);
-        senderThread.start();
-        verifierThread.start();
-    }
-
-    /**
-     * Encerra as thread de envio de mensagens HeartBeat e de verificao
-     * de inatividade
-     */
-    public void stop() {
-        stop = true;
-    }
-
-    /**
-     * Adiciona uma conexo ao conjunto de conexes gerenciadas por este HeartBeatManager
-     * @param connection Conexo que ser includa no monitoramento 
-     */
-    public void addConnection(RemoteConnection connection) {
-        connections.add(connection);
-    }
-
-    /**
-     * Remove a conexo especificada do conjunto de conexes gerenciadas por este HeartBeatManager
-     * @param connection Conexo que ser removida do monitoramento 
-     */
-    public void removeConnection(RemoteConnection connection) {
-        connections.remove(connection);
-    }
-
-    /**
-     * Thread que envia, periodicamente, mensagens de HeartBeat
-     * s conexes gerenciadas pelo HeartBeatManager
-     * @author Juliano
-     *
-     */
-    private class HeartBeatSenderThread extends Thread {
-        public void run() {
-            while(!stop) {
-                try {
-                    Thread.sleep(heartBeatSendInterval);
-                    for (int i = 0; i < connections.size(); i++) {
-                        RemoteConnection connection = connections.get(i);
-                        connection.sendHeartBeat();
-                    }
-                } catch (Exception e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
-            }
-        }
-    }
-
-    /**
-     * Thread que verifica, periodicamente, se as conexes gerenciadas
-     * pelo HeartBeatManager esto ou no inativas
-     * @author Juliano
-     *
-     */
-    private class HeartBeatVerifierThread extends Thread {
-        public void run() {
-            while(!stop) {
-                try {
-                    Thread.sleep(maximumInactiveTime);
-                    for (int i = 0; i < connections.size(); i++) {
-                        RemoteConnection connection = connections.get(i);
-                        if (!connection.isActive()) {
-                            connection.closeCommunication();
-                            connections.remove(connection);
-                        } else {
-                            connection.setActive(false);
-                        }
-                    }
-                } catch (Exception e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
-            }
-        }
-    }
-    
-}
+package jpiccoli.uwml.remote;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class HeartBeatManager {
+    
+	/**
+	 * Conjunto de conexões que são monitoradas por este HeartBeatManager. A thread
+	 * de verificação percorre o conjunto enquanto conexões são incluídas e
+	 * removidas por outras threads. As conexões dos relays não são monitoradas aqui.
+	 */
+    private CopyOnWriteArrayList<RemoteConnection> connections;
+    
+    /**
+     * Intervalo entre as verificações de cada conexão. Um HeartBeat só é enviado a uma
+     * conexão na qual nada foi enviado durante um intervalo.
+     */
+    private volatile long heartBeatSendInterval;
+    
+    /**
+     * Tempo máximo de inatividade tolerado para cada conexão gerenciada por este HeartBeatManager
+     */
+    private long maximumInactiveTime;
+    
+    /**
+     * Indica se a thread de verificação deve ser encerrada
+     */
+    private volatile boolean stop;
+    
+    /**
+     * Thread que envia os HeartBeats e verifica se as conexões gerenciadas estão ativas
+     */
+    private HeartBeatThread thread;
+    
+    /**
+     * Construtor-padrão
+     */
+    public HeartBeatManager() {
+        this((int) (RemoteConnection.DEFAULT_NAT_BINDING_LIFETIME / RemoteConnection.NAT_BINDING_INTERVALS), 30000);
+    }
+    
+    /**
+     * Cria uma instância de HeartBeatManager utilizando o intervalo de envio e tempo
+     * máximo de inatividade especificados
+     * @param heartBeatSendInterval Intervalo de tempo entre o envio de uma e outra mensagem de HeartBeat
+     * @param maximumInactiveTime Tempo máximo tolerado para que uma conexão permaneça inativa antes de ser finalizada
+     */
+    public HeartBeatManager(int heartBeatSendInterval, int maximumInactiveTime) {
+        connections = new CopyOnWriteArrayList<RemoteConnection>();
+        this.heartBeatSendInterval = heartBeatSendInterval;
+        this.maximumInactiveTime = maximumInactiveTime;
+        thread = new HeartBeatThread();
+        thread.setName("HeartBeat Thread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Define o intervalo entre os HeartBeats a partir do tempo de vida dos mapeamentos
+     * dos NATs, de forma que um HeartBeat sempre siga a última mensagem enviada antes
+     * que o mapeamento expire
+     * @param natBindingLifetime Tempo de vida dos mapeamentos, em milissegundos
+     */
+    public void setNatBindingLifetime(long natBindingLifetime) {
+        heartBeatSendInterval = natBindingLifetime / RemoteConnection.NAT_BINDING_INTERVALS;
+    }
+    
+    /**
+     * Encerra a thread de envio de mensagens HeartBeat e de verificação
+     * de inatividade
+     */
+    public synchronized void stop() {
+        stop = true;
+        notify();
+    }
+    
+    /**
+     * Adiciona uma conexão ao conjunto de conexões gerenciadas por este HeartBeatManager
+     * @param connection Conexão que será incluída no monitoramento
+     */
+    public synchronized void addConnection(RemoteConnection connection) {
+        connection.nextLivenessCheck = System.currentTimeMillis() + heartBeatSendInterval;
+        connections.add(connection);
+        notify();
+    }
+    
+    /**
+     * Remove a conexão especificada do conjunto de conexões gerenciadas por este HeartBeatManager
+     * @param connection Conexão que será removida do monitoramento
+     */
+    public void removeConnection(RemoteConnection connection) {
+        connections.remove(connection);
+    }
+    
+    /**
+     * Thread que verifica cada conexão gerenciada pelo HeartBeatManager no instante
+     * definido pela verificação anterior, enviando os HeartBeats necessários e
+     * finalizando as conexões inativas
+     * @author Juliano
+     *
+     */
+    private class HeartBeatThread extends Thread {
+        public void run() {
+            while(!stop) {
+                long now = System.currentTimeMillis();
+                long next = now + heartBeatSendInterval;
+                for (RemoteConnection connection : connections) {
+                    if (connection.nextLivenessCheck - now <= 0) {
+                        long delay;
+                        try {
+                            delay = connection.checkLiveness(heartBeatSendInterval, maximumInactiveTime);
+                        } catch (Exception e) {
+                            // TODO Auto-generated catch block
+                            e.printStackTrace();
+                            delay = heartBeatSendInterval;
+                        }
+                        if (delay < 0) {
+                            connection.closeCommunication();
+                            connections.remove(connection);
+                            continue;
+                        }
+                        connection.nextLivenessCheck = now + delay;
+                    }
+                    next = Math.min(next, connection.nextLivenessCheck);
+                }
+                synchronized(HeartBeatManager.this) {
+                    if (stop) return;
+                    try {
+                        HeartBeatManager.this.wait(Math.max(next - System.currentTimeMillis(), 1));
+                    } catch (InterruptedException e) {
+                        // TODO Auto-generated catch block
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,637 @@
+package jpiccoli.uwml.remote;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+import jpiccoli.uwml.util.RttEstimator;
+import jpiccoli.uwml.util.SequenceWindow;
+import jpiccoli.uwml.util.TimingWheel;
+
+/**
+ * Entrega confiável e ordenada das mensagens da aplicação enviadas através de
+ * RemoteCommunicator.sendReliableMessage. As mensagens de cada canal são numeradas
+ * pelo remetente e entregues à callback na ordem, sem repetições, independentemente
+ * das mensagens dos demais canais e das enviadas sem garantias.
+ * <p>
+ * As perdas são detectadas pelos receptores, que solicitam as mensagens ausentes com
+ * uma NACK contendo o mapa das mensagens já recebidas após a lacuna. O remetente guarda
+ * as últimas HISTORY_SIZE mensagens de cada canal para retransmiti-las e, enquanto o
+ * canal está ocioso, envia mensagens SYNC com a numeração atual, pelas quais os
+ * receptores detectam a perda das últimas mensagens de uma rajada.
+ * <p>
+ * Todas estas mensagens, inclusive as NACKs, são repassadas pelo relay a todo o grupo
+ * como as demais mensagens da aplicação, portanto o relay não mantém nenhum estado por
+ * mensagem. Cada remetente é identificado por um fluxo escolhido ao acaso. Um receptor
+ * que observa um canal pela primeira vez recebe desde a primeira mensagem do canal, se
+ * ela foi enviada há menos de RECEIVE_WINDOW mensagens, ou a partir da mensagem observada.
+ * <p>
+ * As mensagens são entregues pela thread de recepção da conexão. As que o temporizador
+ * libera ao desistir de uma lacuna aguardam a próxima mensagem ou HeartBeat recebido;
+ * um HeartBeat é solicitado ao host remoto para que a espera não dependa do tráfego.
+ * @author Juliano
+ *
+ */
+public class ReliableDelivery {
+
+    public final static byte DATA = 0;
+    public final static byte SYNC = 1;
+    public final static byte NACK = 2;
+
+    /**
+     * Tamanho do cabeçalho comum: tipo, fluxo e canal
+     */
+    public final static int HEADER_SIZE = 6;
+
+    /**
+     * Tamanho do cabeçalho de uma mensagem de dados, seguido pelo número da mensagem
+     */
+    public final static int DATA_HEADER_SIZE = HEADER_SIZE + 4;
+
+    /**
+     * Quantidade de mensagens de cada canal guardadas pelo remetente para retransmissão
+     */
+    public final static int HISTORY_SIZE = 1024;
+
+    /**
+     * Quantidade de mensagens recebidas após uma lacuna que são retidas pelo receptor
+     */
+    public final static int RECEIVE_WINDOW = 256;
+
+    /**
+     * Tempo, em milissegundos, entre a última mensagem enviada em um canal e a primeira
+     * mensagem SYNC. O intervalo dobra a cada SYNC, até SYNC_TRIES mensagens.
+     */
+    public final static long SYNC_DELAY = 200;
+    public final static int SYNC_TRIES = 4;
+
+    /**
+     * Tempo, em milissegundos, que o receptor aguarda antes da primeira NACK, para que
+     * mensagens apenas reordenadas não sejam solicitadas
+     */
+    public final static long NACK_DELAY = 10;
+
+    /**
+     * Intervalo entre as NACKs de uma mesma lacuna, em milissegundos, antes que o tempo de
+     * resposta do remetente seja conhecido, e seus limites. O intervalo dobra a cada NACK.
+     */
+    public final static long NACK_INITIAL_TIMEOUT = 100;
+    public final static long NACK_MIN_TIMEOUT = 20;
+    public final static long NACK_MAX_TIMEOUT = 1000;
+
+    /**
+     * Tempo, em milissegundos, após o qual o receptor desiste das mensagens ausentes e
+     * entrega as seguintes
+     */
+    public final static long GIVE_UP_TIME = 10000;
+
+    /**
+     * Tempo mínimo, em milissegundos, entre duas retransmissões da mesma mensagem. Evita
+     * que as NACKs de vários receptores pela mesma perda multipliquem as retransmissões.
+     */
+    public final static long RETRANSMIT_HOLDOFF = 20;
+
+    /**
+     * Tempo, em milissegundos, após o qual o estado de um remetente ocioso é descartado
+     */
+    public final static long STREAM_IDLE_TIME = 60000;
+
+    private RemoteCommunicator communicator;
+
+    private RetransmissionTimer timer;
+
+    /**
+     * Identificador dos fluxos enviados por este host
+     */
+    private int streamIdentifier;
+
+    /**
+     * Lock do estado de envio, obtido pelo remetente, pelas NACKs e pelas SYNCs
+     */
+    private Object sendLock;
+
+    /**
+     * Número da próxima mensagem de cada canal
+     */
+    private int[] nextSequence;
+
+    /**
+     * Quantidade de mensagens guardadas de cada canal
+     */
+    private int[] stored;
+
+    /**
+     * Mensagens de dados guardadas, por canal e pelos bits menos significativos do número.
+     * Cada canal é alocado quando a sua primeira mensagem é enviada.
+     */
+    private ByteBuffer[][] history;
+
+    /**
+     * Instante da última retransmissão de cada mensagem guardada
+     */
+    private long[][] retransmitted;
+
+    /**
+     * Canais para os quais as mensagens SYNC estão sendo enviadas
+     */
+    private boolean[] probing;
+
+    private SyncProbe syncProbe;
+
+    /**
+     * Lock do estado de recepção, obtido pela thread de recepção e pelo temporizador.
+     * As mensagens são entregues com o lock obtido, para que sejam entregues na ordem.
+     */
+    private Object receiveLock;
+
+    /**
+     * Mensagens liberadas pelo temporizador ao desistir de uma lacuna, na ordem de entrega,
+     * e se elas estão sendo liberadas. A callback não é chamada pela thread do temporizador,
+     * compartilhada por todas as conexões.
+     */
+    private ArrayList<ByteBuffer> released;
+    private volatile boolean hasReleased;
+    private boolean releasing;
+
+    /**
+     * Estado de cada fluxo recebido, por fluxo e canal
+     */
+    private HashMap<Long, IncomingStream> incoming;
+
+    /**
+     * Tempo entre uma NACK e a chegada da mensagem solicitada, que define o intervalo entre as NACKs
+     */
+    private RttEstimator rtt;
+
+    /**
+     * Construtor
+     * @param communicator RemoteCommunicator através do qual as mensagens são trocadas
+     */
+    public ReliableDelivery(RemoteCommunicator communicator) {
+        this.communicator = communicator;
+        timer = RetransmissionTimer.getSharedTimer();
+        streamIdentifier = new Random().nextInt();
+        sendLock = new Object();
+        nextSequence = new int[256];
+        stored = new int[256];
+        history = new ByteBuffer[256][];
+        retransmitted = new long[256][];
+        probing = new boolean[256];
+        syncProbe = new SyncProbe();
+        receiveLock = new Object();
+        incoming = new HashMap<Long, IncomingStream>();
+        released = new ArrayList<ByteBuffer>();
+        rtt = new RttEstimator(NACK_INITIAL_TIMEOUT, NACK_MIN_TIMEOUT, NACK_MAX_TIMEOUT);
+    }
+
+    /**
+     * Retorna o tempo de resposta às NACKs enviadas por este host
+     * @return O tempo de resposta às NACKs
+     */
+    public RttEstimator getRtt() {
+        return rtt;
+    }
+
+    /**
+     * Retorna o intervalo entre as NACKs. Enquanto o tempo de resposta do remetente não é
+     * conhecido, ele é estimado como o dobro do tempo de ida e volta até o relay, medido
+     * pela conexão, pois a NACK e a retransmissão atravessam o relay.
+     * @return O intervalo, em milissegundos
+     */
+    private long getNackTimeout() {
+        if (rtt.getSamples() == 0) {
+            RemoteConnection connection = communicator.getConnection();
+            if (connection != null && connection.getSmoothedRtt() > 0) {
+                return Math.max(NACK_INITIAL_TIMEOUT, 2 * connection.getSmoothedRtt() / 1000000);
+            }
+        }
+        return rtt.getTimeout();
+    }
+
+    /**
+     * Retorna o tamanho máximo da carga de uma mensagem enviada pela conexão atual: a
+     * maior mensagem aceita pela conexão, descontado o cabeçalho DATA_HEADER_SIZE.
+     * Com os buffers padrão de 1024 bytes, são 1014 bytes em UDP e 1012 bytes em TCP.
+     * @return O tamanho máximo, em bytes, ou -1 se não há conexão
+     */
+    public int getMaximumMessageSize() {
+        RemoteConnection connection = communicator.getConnection();
+        return connection == null ? -1 : connection.getMaximumMessageSize() - DATA_HEADER_SIZE;
+    }
+
+    /**
+     * Numera, guarda e transmite uma mensagem da aplicação. Se a conexão não estiver
+     * aberta, a mensagem é somente guardada e será solicitada pelos receptores.
+     * @param channel Canal da mensagem
+     * @param data Carga da mensagem, de até getMaximumMessageSize() bytes
+     * @throws IOException Caso a mensagem seja maior que o permitido pela conexão ou
+     * ocorram erros de E/S
+     */
+    public void send(byte channel, ByteBuffer data) throws IOException {
+        // Verificado antes de numerar a mensagem, pois ela não seria entregue nem retransmitida
+        int maximumSize = getMaximumMessageSize();
+        if (maximumSize >= 0 && data.remaining() > maximumSize) {
+            throw new IOException("Message too large: " + data.remaining() + " bytes, maximum is " + maximumSize);
+        }
+        synchronized(sendLock) {
+            int index = channel & 0xFF;
+            if (history[index] == null) {
+                history[index] = new ByteBuffer[HISTORY_SIZE];
+                retransmitted[index] = new long[HISTORY_SIZE];
+            }
+            int sequence = nextSequence[index]++;
+            if (stored[index] < HISTORY_SIZE) stored[index]++;
+            ByteBuffer message = ByteBuffer.allocate(DATA_HEADER_SIZE + data.remaining());
+            message.put(DATA);
+            message.putInt(streamIdentifier);
+            message.put(channel);
+            message.putInt(sequence);
+            message.put(data.duplicate());
+            message.flip();
+            int slot = sequence & (HISTORY_SIZE - 1);
+            history[index][slot] = message;
+            retransmitted[index][slot] = 0;
+            probing[index] = true;
+            syncProbe.tries = 0;
+            timer.schedule(syncProbe, SYNC_DELAY);
+            transmit(message);
+        }
+    }
+
+    /**
+     * Retoma o envio das mensagens SYNC de todos os canais. Chamado quando uma nova
+     * conexão é inicializada, para que as mensagens enviadas sem conexão sejam solicitadas.
+     */
+    public void resume() {
+        synchronized(sendLock) {
+            boolean sent = false;
+            for (int i = 0; i < history.length; i++) {
+                if (history[i] != null) {
+                    probing[i] = true;
+                    sent = true;
+                }
+            }
+            if (sent) {
+                syncProbe.tries = 0;
+                timer.schedule(syncProbe, SYNC_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Processa uma mensagem recebida do host remoto
+     * @param data Conteúdo da mensagem
+     */
+    public void received(ByteBuffer data) {
+        if (data.remaining() < HEADER_SIZE) return;
+        byte kind = data.get();
+        int stream = data.getInt();
+        byte channel = data.get();
+        if (kind == DATA) {
+            if (stream != streamIdentifier && data.remaining() >= 4) {
+                dataReceived(stream, channel, data.getInt(), data);
+            }
+        } else if (kind == SYNC) {
+            if (stream != streamIdentifier && data.remaining() == 8) {
+                syncReceived(stream, channel, data.getInt(), data.getInt());
+            }
+        } else if (kind == NACK) {
+            // As NACKs são repassadas a todo o grupo; somente o remetente as processa
+            if (stream == streamIdentifier && data.remaining() == 12) {
+                nackReceived(channel, data.getInt(), data.getLong());
+            }
+        }
+    }
+
+    /**
+     * Transmite uma mensagem através da conexão atual do RemoteCommunicator
+     * @param message Mensagem a ser transmitida. Sua posição não é alterada.
+     * @throws IOException Caso ocorram erros de E/S
+     */
+    private void transmit(ByteBuffer message) throws IOException {
+        if (communicator.isOpen()) {
+            communicator.getConnection().sendReliableMessage(message.duplicate());
+        }
+    }
+
+    /**
+     * Retransmite as mensagens solicitadas por uma NACK. Se a primeira delas não estiver
+     * mais guardada, envia uma SYNC, para que o receptor desista das mensagens perdidas.
+     * @param channel Canal das mensagens
+     * @param sequence Número da primeira mensagem ausente
+     * @param received Mapa das mensagens seguintes; o bit i indica que a mensagem
+     * sequence + 1 + i já foi recebida
+     */
+    private void nackReceived(byte channel, int sequence, long received) {
+        synchronized(sendLock) {
+            int index = channel & 0xFF;
+            if (history[index] == null) return;
+            int missing = nextSequence[index] - sequence;
+            if (missing <= 0) return;
+            try {
+                if (missing > stored[index]) {
+                    sendSync(index);
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                retransmit(index, sequence, now);
+                for (int i = 0; i < 64 && i + 1 < missing; i++) {
+                    if ((received & (1L << i)) == 0) retransmit(index, sequence + 1 + i, now);
+                }
+            } catch (IOException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void retransmit(int index, int sequence, long now) throws IOException {
+        int slot = sequence & (HISTORY_SIZE - 1);
+        if (now - retransmitted[index][slot] < RETRANSMIT_HOLDOFF) return;
+        retransmitted[index][slot] = now;
+        transmit(history[index][slot]);
+    }
+
+    /**
+     * Envia a numeração atual do canal: a mais antiga das mensagens guardadas e a próxima
+     * @param index Canal
+     * @throws IOException Caso ocorram erros de E/S
+     */
+    private void sendSync(int index) throws IOException {
+        ByteBuffer message = ByteBuffer.allocate(HEADER_SIZE + 8);
+        message.put(SYNC);
+        message.putInt(streamIdentifier);
+        message.put((byte) index);
+        message.putInt(nextSequence[index] - stored[index]);
+        message.putInt(nextSequence[index]);
+        message.flip();
+        transmit(message);
+    }
+
+    private void dataReceived(int stream, byte channel, int sequence, ByteBuffer data) {
+        synchronized(receiveLock) {
+            // As liberadas pelo temporizador precedem as seguintes
+            if (hasReleased) flushReleased();
+            IncomingStream in = getStream(stream, channel, sequence);
+            long number = in.toNumber(sequence);
+            if (number >= in.highest) in.highest = number + 1;
+            // Somente a resposta à primeira NACK é medida, pois as seguintes são ambíguas
+            if (in.nackTries == 1 && number == in.nackedNumber) {
+                rtt.sample(System.nanoTime() - in.nackTime);
+                in.nackTries++;
+            }
+            if (in.window.offer(number, data) == SequenceWindow.DELIVER) {
+                deliver(data);
+                in.drain();
+            }
+            in.check();
+        }
+    }
+
+    private void syncReceived(int stream, byte channel, int lowest, int next) {
+        synchronized(receiveLock) {
+            if (hasReleased) flushReleased();
+            IncomingStream in = getStream(stream, channel, next);
+            long number = in.toNumber(next);
+            if (number > in.highest) in.highest = number;
+            // As mensagens anteriores à mais antiga guardada pelo remetente estão perdidas
+            long first = in.toNumber(lowest);
+            if (first > in.window.getNext()) in.skip(first);
+            in.check();
+        }
+    }
+
+    /**
+     * Retorna o estado de um fluxo recebido, criando-o se necessário
+     * @param sequence Número da mensagem observada, a partir da qual as mensagens são
+     * esperadas caso o fluxo seja criado no meio da transmissão
+     */
+    private IncomingStream getStream(int stream, byte channel, int sequence) {
+        Long key = Long.valueOf(((long) stream << 8) | (channel & 0xFF));
+        IncomingStream in = incoming.get(key);
+        long now = System.currentTimeMillis();
+        if (in == null) {
+            // O início do canal é recente; as mensagens anteriores são solicitadas
+            if (sequence >= 0 && sequence < RECEIVE_WINDOW) sequence = 0;
+            removeIdleStreams(now);
+            in = new IncomingStream(stream, channel, sequence);
+            incoming.put(key, in);
+        }
+        in.lastActivity = now;
+        return in;
+    }
+
+    private void removeIdleStreams(long now) {
+        Iterator<IncomingStream> iterator = incoming.values().iterator();
+        while (iterator.hasNext()) {
+            IncomingStream in = iterator.next();
+            if (now - in.lastActivity > STREAM_IDLE_TIME) {
+                in.cancel();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Entrega as mensagens liberadas pelo temporizador. Chamado pela thread de recepção
+     * da conexão a cada mensagem ou HeartBeat recebido.
+     */
+    public void deliverReleased() {
+        if (!hasReleased) return;
+        synchronized(receiveLock) {
+            flushReleased();
+        }
+    }
+
+    private void flushReleased() {
+        hasReleased = false;
+        for (int i = 0; i < released.size(); i++) {
+            communicator.getCommunicatorCallback().packetReceived(communicator, released.get(i));
+        }
+        released.clear();
+    }
+
+    private void deliver(ByteBuffer data) {
+        if (releasing) {
+            released.add(data);
+            hasReleased = true;
+        } else {
+            communicator.getCommunicatorCallback().packetReceived(communicator, data);
+        }
+    }
+
+    /**
+     * Estado de um fluxo recebido. As mensagens são numeradas a partir da primeira
+     * observada, e a NACK da lacuna mais antiga é reenviada enquanto ela existir.
+     * @author Juliano
+     *
+     */
+    private class IncomingStream extends TimingWheel.Timeout {
+        private int stream;
+        private byte channel;
+        private int origin;
+        private SequenceWindow window;
+        /**
+         * Uma unidade após o maior número conhecido
+         */
+        private long highest;
+        private long lastActivity;
+        private boolean scheduled;
+        private long gapNumber;
+        private long gapTime;
+        private int nackTries;
+        private long nackedNumber;
+        private long nackTime;
+
+        private IncomingStream(int stream, byte channel, int origin) {
+            this.stream = stream;
+            this.channel = channel;
+            this.origin = origin;
+            window = new SequenceWindow(RECEIVE_WINDOW);
+        }
+
+        /**
+         * Converte o número de uma mensagem, que pode dar a volta, em um número crescente
+         */
+        private long toNumber(int sequence) {
+            long next = window.getNext();
+            return next + (sequence - origin - (int) next);
+        }
+
+        /**
+         * Entrega as mensagens retidas que seguem a última entregue
+         */
+        private void drain() {
+            ByteBuffer held;
+            while ((held = window.poll()) != null) {
+                deliver(held);
+            }
+        }
+
+        /**
+         * Desiste das mensagens ausentes anteriores a number e entrega as retidas
+         */
+        private void skip(long number) {
+            ByteBuffer held;
+            while ((held = window.skip(number)) != null) {
+                deliver(held);
+            }
+            drain();
+        }
+
+        /**
+         * Agenda a NACK quando surge uma nova lacuna e a cancela quando não há mais lacunas
+         */
+        private void check() {
+            long next = window.getNext();
+            if (next < highest) {
+                if (!scheduled || gapNumber != next) {
+                    gapNumber = next;
+                    gapTime = System.currentTimeMillis();
+                    nackTries = 0;
+                    scheduled = true;
+                    timer.schedule(this, NACK_DELAY);
+                }
+            } else if (scheduled) {
+                scheduled = false;
+                cancel();
+            }
+        }
+
+        @Override
+        protected void expired() {
+            synchronized(receiveLock) {
+                scheduled = false;
+                if (window.getNext() >= highest) return;
+                if (System.currentTimeMillis() - gapTime >= GIVE_UP_TIME) {
+                    // O remetente não respondeu; as mensagens ausentes são descartadas e as
+                    // retidas são entregues pela thread de recepção
+                    releasing = true;
+                    skip(highest);
+                    releasing = false;
+                    if (hasReleased) requestHeartBeat();
+                    check();
+                    return;
+                }
+                try {
+                    sendNack();
+                } catch (IOException e) {
+                    // TODO Auto-generated catch block
+                    e.printStackTrace();
+                }
+                if (nackTries++ == 0) {
+                    nackedNumber = window.getNext();
+                    nackTime = System.nanoTime();
+                }
+                scheduled = true;
+                timer.schedule(this, Math.min(getNackTimeout() << Math.min(nackTries - 1, 8), NACK_MAX_TIMEOUT));
+            }
+        }
+
+        /**
+         * Solicita um HeartBeat ao host remoto, cuja chegada faz a thread de recepção
+         * entregar as mensagens liberadas mesmo que o canal esteja ocioso
+         */
+        private void requestHeartBeat() {
+            RemoteConnection connection = communicator.getConnection();
+            if (connection == null || !communicator.isOpen()) return;
+            connection.getLinkQuality().requestReply();
+            try {
+                connection.sendHeartBeat();
+            } catch (IOException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            }
+        }
+
+        private void sendNack() throws IOException {
+            long next = window.getNext();
+            long received = 0;
+            for (int i = 0; i < 64; i++) {
+                if (window.isHeld(next + 1 + i)) received |= 1L << i;
+            }
+            ByteBuffer message = ByteBuffer.allocate(HEADER_SIZE + 12);
+            message.put(NACK);
+            message.putInt(stream);
+            message.put(channel);
+            message.putInt((int) (origin + next));
+            message.putLong(received);
+            message.flip();
+            transmit(message);
+        }
+    }
+
+    /**
+     * Temporizador das mensagens SYNC dos canais ociosos
+     * @author Juliano
+     *
+     */
+    private class SyncProbe extends TimingWheel.Timeout {
+        private int tries;
+
+        @Override
+        protected void expired() {
+            synchronized(sendLock) {
+                try {
+                    for (int i = 0; i < probing.length; i++) {
+                        if (probing[i]) sendSync(i);
+                    }
+                } catch (IOException e) {
+                    // TODO Auto-generated catch block
+                    e.printStackTrace();
+                }
+                if (++tries < SYNC_TRIES) {
+                    timer.schedule(this, SYNC_DELAY << tries);
+                } else {
+                    for (int i = 0; i < probing.length; i++) {
+                        probing[i] = false;
+                    }
+                }
+            }
+        }
+    }
+
+}
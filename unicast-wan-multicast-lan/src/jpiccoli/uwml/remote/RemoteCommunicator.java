@@ -1,310 +1,901 @@
-package jpiccoli.uwml.remote;
-
-import java.io.IOException;
-import java.nio.ByteBuffer;
-
-public class RemoteCommunicator {
-    
-    public final static short INITIALIZE_MSG = 1;
-    public final static short DROP_MSG       = 2;
-    public final static short ENABLE_MSG     = 4;
-    
-    /**
-     * Tamanho mnimo dos buffers de entrada e sada. Corresponde
-     * ao espao dos cabealhos que so inseridos automaticamente nas
-     * mensagens.
-     */
-    public final static int MINIMUM_BUFFER_SIZE = 10;
-
-    /**
-     * Callback que receber notificaes dos eventos gerados
-     * neste RemoteCommunicator
-     */
-    private RemoteCommunicatorCallback callback;
-    
-    /**
-     * RemoteConnection utilizada por este RemoteCommunicator
-     * para realizar a troca de mensagens com o host
-     * remoto
-     */
-    private RemoteConnection connection;
-    
-    /**
-     * Cdigo de identificao do grupo
-     */
-    private int sessionIdentifier;
-    
-    /**
-     * Flag que indica se este RemoteCommunicator est ativado
-     */
-    private boolean enabled;
-    
-    /**
-     * Flag que indica se este RemoteCommunicator est aberto
-     */
-    private boolean open;
-    
-    /**
-     * Flag que indica se as threads de E/S devem ser interrompidas
-     * e finalizadas
-     */
-    private boolean stop;
-    
-    /**
-     * Lock para sincronizao de envio de mensagens de controle.
-     *  necessrio realizar a sincronizao no envio destas mensagens
-     * porque as informaes de controle so enviadas atravs de um 
-     * buffer compartilhado.
-     */
-    private Object ctrlSendLock;
-    
-    /**
-     * Buffer exclusivo para o envio da mensagem de inicializao
-     */
-    private ByteBuffer initializeBuffer;
-    
-    /**
-     * Buffer de sada utilizado para o envio de mensagens de controle
-     * e mensagens da aplicao
-     */
-    private ByteBuffer outputBuffer;
-
-    /**
-     * Retorna o valor mnimo dos buffers de entrada e sada. Corresponde
-     * ao espao reservado aos cabealhos das mensagens.
-     * @return O valor mnimo dos buffers de entrada e sada
-     */
-    public static int getMinimumBufferSize() {
-        return MINIMUM_BUFFER_SIZE;
-    }
-    
-    /**
-     * Construtor
-     * @param callback Callback que receber notificaes de eventos gerados por este RemoteCommunicator
-     */
-    public RemoteCommunicator(RemoteCommunicatorCallback callback) {
-        this.callback = callback;
-        ctrlSendLock = new Object();
-        outputBuffer = ByteBuffer.allocateDirect(MINIMUM_BUFFER_SIZE);
-        initializeBuffer = ByteBuffer.allocateDirect(MINIMUM_BUFFER_SIZE);
-    }
-    
-    /**
-     * Define a callback que receber as notificaes dos eventos gerados por este RemoteCommunicator
-     * @param callback Callback que receber as notificaes dos eventos gerados por este RemoteCommunicator
-     */
-    public void setCommunicatorCallback(RemoteCommunicatorCallback callback) {
-        this.callback = callback;
-    }
-    
-    /**
-     * Retorna a callback que recebe as notificaes de eventos deste RemoteCommunicator
-     * @return A callback que recebe as notificaes de eventos deste RemoteCommunicator
-     */
-    public RemoteCommunicatorCallback getCommunicatorCallback() {
-        return callback;
-    }
-    
-    /**
-     * Define a RemoteConnection utilizada por este RemoteCommunicator
-     * @param connection RemoteConnection que este RemoteCommunicator utilizar para comunicar-se com o host remoto
-     */
-    public void setConnection(RemoteConnection connection) {
-        this.connection = connection;
-    }
-
-    /**
-     * Retorna a RemoteConnection que est sendo utilizada por este RemoteCommunicator
-     * @return A RemoteConnection que est sendo utilizada por este RemoteCommunicator
-     */
-    public RemoteConnection getConnection() {
-        return connection;
-    }
-    
-    /**
-     * Define o identificador do grupo de conferncia
-     * @param sessionIdentifier Identificador do grupo de conferncia
-     */
-    public void setSessionIdentifier(int sessionIdentifier) {
-        this.sessionIdentifier = sessionIdentifier;
-    }
-    
-    /**
-     * Retorna o identificador do grupo de conferncia
-     * @return O identificador do grupo de conferncia
-     */
-    public int getSessionIdentifier() {
-        return sessionIdentifier;
-    }
-    
-    /**
-     * Realiza os procedimentos de inicializao e prepara este RemoteCommunicator para uso
-     */
-    public synchronized void initialize() {
-        if (!open && !stop) {
-            try {
-                connection.openCommunication();
-                initializeBuffer.clear();
-                initializeBuffer.putShort(INITIALIZE_MSG);
-                initializeBuffer.putInt(sessionIdentifier);
-                initializeBuffer.flip();
-                connection.sendCtrlMessage(initializeBuffer);
-                open = true;
-                sendEnabledMessage(isEnabled());
-                callback.connectionInitialized(this);
-            } catch (Exception e) {
-                connection.closeCommunication();
-                callback.connectionLost(this);
-            }
-        }
-    }
-
-    /**
-     * Envia uma mensagem da aplicao ao host remoto
-     * @param data Carga da mensagem a ser enviada
-     * @throws IOException Caso ocorram erros de E/S na transmisso
-     */
-    public void sendAppMessage(ByteBuffer data) throws IOException {
-        if (isOpen()) {
-            data.mark();
-            connection.sendMessage(data);
-            data.reset();
-        }
-    }
-    
-    /**
-     * Envia uma mensagem ao host remoto que sinaliza o encerramento da conexo deste RemoteCommunicator
-     */
-    public void sendDropMessage() {
-        synchronized(ctrlSendLock) {
-            try {
-                outputBuffer.clear();
-                outputBuffer.putShort(DROP_MSG);
-                outputBuffer.flip();
-                connection.sendCtrlMessage(outputBuffer);
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-        }
-    }
-    
-    /**
-     * Retorna true se a conexo deste RemoteCommunicator com o host remoto tiver sido inicializada com sucesso
-     * @return True se a conexo deste RemoteCommunicator com o host remoto tiver sido inicializada com sucesso
-     */
-    public boolean isOpen() {
-        return open;
-    }
-
-    /**
-     * Define se este RemoteCommunicator est habilitado ou no a transmitir e receber mensagens da aplicao
-     * @param enabled True indica que este RemoteCommunicator est habilitado a transmitir e receber mensagens da aplicao
-     */
-    public void setEnabled(boolean enabled) {
-        this.enabled = enabled;            
-        if (isOpen()) {
-            sendEnabledMessage(enabled);
-        }
-    }
-    
-    /**
-     * Retorna true se este RemoteCommunicator est habilitado a receber e/ou enviar mensagens da aplicao ao host remoto
-     * @return True se este RemoteCommunicator est habilitado a receber e/ou enviar mensagens da aplicao ao host remoto
-     */
-    public boolean isEnabled() {
-        return enabled;
-    }
-
-    /**
-     * Envia uma mensagem de sinalizao que notifica ao host remoto que de que este RemoteCommunicator est habilitado a receber e/ou transmitir mensagens
-     * da aplicao
-     * @param enabled True indica que este RemoteCommunicator est habilitado a transmitir e receber mensagens da aplicao
-     */
-    private void sendEnabledMessage(boolean enabled) {
-        synchronized(ctrlSendLock) {
-            try {
-                outputBuffer.clear();
-                outputBuffer.putShort(ENABLE_MSG);
-                outputBuffer.put(enabled ? (byte) 1 : (byte) 0);
-                outputBuffer.flip();
-                connection.sendCtrlMessage(outputBuffer);
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-        }
-    }
-    
-    /**
-     * Fecha este RemoteCommunicator e libera os recursos alocados por ele
-     */
-    public void close() {
-        stop = true;
-        sendDropMessage();
-        connection.closeCommunication();
-    }
-
-    /**
-     * Notifica a callback de que a conexo utilizada por este RemoteCommunicator foi perdida
-     * @param source RemoteConnection que perdeu sua conexo com o servidor
-     */
-    public synchronized void connectionLost(RemoteConnection source) {
-    	// Este mtodo recebe como parmetro o RemoteConnection que gerou o evento de notificao de perda
-    	// de conexo porque isso permite ao RemoteCommunicator verificar se este evento foi realmente gerado
-    	// pelo RemoteConnection que ele est utilizando atualmente.
-        if (isOpen() && source == connection) {
-            open = false;
-            callback.connectionLost(this);
-        }
-    }
-
-    /**
-     * Reliza os procedimentos de inicializao deste RemoteCommunicator, inclusive a notificao
-     *  callback. Este mtodo  chamado em resposta a uma mensagem de ativao recebida do host remoto.
-     * @param sessionIdentifier Identificador do grupo de conferncia
-     */
-    private synchronized void remoteInitialized(int sessionIdentifier) {
-        open = true;
-        this.sessionIdentifier = sessionIdentifier;
-        callback.connectionInitialized(this);
-    }
-    
-    /**
-     * Analisa e processa a mensagem de sinalizao e/ou controle recebida
-     * @param source RemoteConnection que recebeu a mensagem de controle
-     * @param data Informao contida na mensagem de controle
-     */
-    public void ctrlPacketReceived(RemoteConnection source, ByteBuffer data) {
-        if (source == connection) {
-            short msgType = data.getShort();
-            if (msgType == DROP_MSG) {
-                connectionLost(source);
-            } else if (msgType == INITIALIZE_MSG) {
-                if (data.remaining() == 4) {
-                    int sessionIdentifier = data.getInt();
-                    remoteInitialized(sessionIdentifier);
-                }
-            } else if (msgType == ENABLE_MSG) {
-                if (data.remaining() == 1) {
-                    byte enableByte = data.get();
-                    boolean enabled = enableByte != 0;
-                    this.enabled = enabled;
-                    callback.connectionStatusChanged(this);
-                }
-            }
-        }
-    }
-    
-    /**
-     * Notifica  callback de que uma mensagem da aplicao foi recebida
-     * @param source RemoteConnection que recebeu a mensagem
-     * @param data Carga da mensagem recebida
-     */
-    public void packetReceived(RemoteConnection source, ByteBuffer data) {
-        if (source == connection) {
-            callback.packetReceived(this, data);
-        }
-    }
-    
-}
+package jpiccoli.uwml.remote;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import jpiccoli.uwml.util.BufferPool;
+
+public class RemoteCommunicator {
+    
+    public final static short INITIALIZE_MSG = 1;
+    public final static short DROP_MSG       = 2;
+    public final static short ENABLE_MSG     = 4;
+    public final static short REDIRECT_MSG   = 8;
+    public final static short SUBSCRIBE_MSG  = 16;
+    
+    /**
+     * Confirmação, enviada pelo host que recebe a flag de agrupamento na inicialização,
+     * de que ele aceita mensagens da aplicação agrupadas. Hosts antigos não a enviam e
+     * rejeitam os conjuntos, portanto as mensagens só são agrupadas após recebê-la.
+     */
+    public final static short AGGREGATION_MSG = 32;
+    
+    /**
+     * Flag da mensagem de inicialização que indica que o host é capaz de
+     * receber mensagens da aplicação agrupadas
+     */
+    public final static byte AGGREGATION_FLAG = 1;
+    
+    /**
+     * Flag da mensagem de inicialização que indica que a conexão é um enlace entre
+     * dois relays. Neste caso, a flag é seguida pelo identificador do relay que
+     * abriu o enlace.
+     */
+    public final static byte PEER_FLAG = 2;
+    
+    /**
+     * Tamanho do buffer da mensagem de inicialização: tipo, identificador do grupo,
+     * flags e identificador do relay
+     */
+    private final static int INITIALIZE_BUFFER_SIZE = 11;
+    
+    /**
+     * Tamanho máximo padrão, em bytes, de um conjunto de mensagens agrupadas.
+     * Mantém os datagramas abaixo do MTU típico de enlaces WAN. O tamanho de cada
+     * conjunto é limitado também pela maior mensagem aceita pela conexão.
+     */
+    public final static int DEFAULT_AGGREGATION_BUDGET = 1200;
+    
+    /**
+     * Tempo máximo, em milissegundos, que o encerramento aguarda a confirmação da
+     * mensagem de desconexão
+     */
+    public final static long DROP_TIMEOUT = 1000;
+    
+    /**
+     * Tamanho mínimo dos buffers de entrada e saída. Corresponde
+     * ao espaço dos cabeçalhos que são inseridos automaticamente nas
+     * mensagens.
+     */
+    public final static int MINIMUM_BUFFER_SIZE = 10;
+
+    /**
+     * Callback que receberá notificações dos eventos gerados
+     * neste RemoteCommunicator
+     */
+    private RemoteCommunicatorCallback callback;
+    
+    /**
+     * RemoteConnection utilizada por este RemoteCommunicator
+     * para realizar a troca de mensagens com o host
+     * remoto
+     */
+    private RemoteConnection connection;
+    
+    /**
+     * Código de identificação do grupo
+     */
+    private int sessionIdentifier;
+    
+    /**
+     * Flag que indica se este RemoteCommunicator está ativado
+     */
+    private boolean enabled;
+    
+    /**
+     * Flag que indica se este RemoteCommunicator está aberto
+     */
+    private boolean open;
+    
+    /**
+     * Flag que indica se as threads de E/S devem ser interrompidas
+     * e finalizadas
+     */
+    private boolean stop;
+    
+    /**
+     * Lock para sincronização de envio de mensagens de controle.
+     * As mensagens são numeradas pela conexão no envio, portanto a
+     * sincronização garante que sejam processadas pelo host remoto
+     * na ordem em que foram montadas.
+     */
+    private Object ctrlSendLock;
+    
+    /**
+     * Indica se as mensagens da aplicação trocadas com o host remoto podem ser agrupadas.
+     * No lado que inicia a conexão, é definido por setAggregation e só vale para o envio
+     * após a confirmação do host remoto; no lado remoto, pela flag recebida na mensagem
+     * de inicialização.
+     */
+    private boolean aggregation;
+    
+    /**
+     * Indica se o host remoto confirmou, na conexão atual, que aceita mensagens agrupadas
+     */
+    private volatile boolean aggregationConfirmed;
+    
+    /**
+     * Tempo máximo, em microssegundos, que uma mensagem da aplicação aguarda
+     * por outras antes que o conjunto seja enviado. Alterado, assim como o
+     * buffer e a quantidade de mensagens acumuladas, com o lock de flushThread.
+     */
+    private volatile long aggregationWindow;
+    
+    /**
+     * Buffer onde são acumuladas as mensagens da aplicação a serem agrupadas
+     */
+    private ByteBuffer aggregateBuffer;
+    
+    /**
+     * Quantidade de mensagens acumuladas em aggregateBuffer
+     */
+    private int aggregateCount;
+    
+    /**
+     * Instante, em nanossegundos, em que o conjunto acumulado deve ser enviado
+     */
+    private long aggregateDeadline;
+    
+    /**
+     * Thread que envia os conjuntos cujo tempo de espera expirou
+     */
+    private AggregationFlushThread flushThread;
+    
+    /**
+     * Indica se este RemoteCommunicator representa um enlace com outro relay
+     */
+    private boolean peer;
+    
+    /**
+     * Indica se o enlace com o outro relay foi aberto por este lado
+     */
+    private boolean peerInitiator;
+    
+    /**
+     * Identificador do relay local, enviado na inicialização de um enlace
+     */
+    private int localRelayIdentifier;
+    
+    /**
+     * Identificador do relay do outro lado do enlace
+     */
+    private int relayIdentifier;
+    
+    /**
+     * Endereço do relay responsável pelo grupo, recebido em uma mensagem de
+     * redirecionamento. A próxima conexão deve ser aberta com este endereço.
+     * Não é protegido pelo lock deste RemoteCommunicator porque a mensagem pode
+     * chegar durante a inicialização.
+     */
+    private volatile InetSocketAddress redirectAddress;
+    
+    /**
+     * Fluxos que o host remoto deve repassar a este RemoteCommunicator. No lado
+     * que inicia a conexão, é definida por setSubscription; no relay, pela última
+     * mensagem de assinatura recebida. Null indica que todos os fluxos são repassados.
+     */
+    private volatile Subscription subscription;
+    
+    /**
+     * Estado da entrega confiável das mensagens da aplicação. Criado no primeiro uso,
+     * portanto não ocupa memória nos RemoteCommunicators do relay.
+     */
+    private ReliableDelivery reliableDelivery;
+
+    /**
+     * Retorna o valor mínimo dos buffers de entrada e saída. Corresponde
+     * ao espaço reservado aos cabeçalhos das mensagens.
+     * @return O valor mínimo dos buffers de entrada e saída
+     */
+    public static int getMinimumBufferSize() {
+        return MINIMUM_BUFFER_SIZE;
+    }
+    
+    /**
+     * Construtor
+     * @param callback Callback que receberá notificações de eventos gerados por este RemoteCommunicator
+     */
+    public RemoteCommunicator(RemoteCommunicatorCallback callback) {
+        this.callback = callback;
+        ctrlSendLock = new Object();
+    }
+    
+    /**
+     * Define a callback que receberá as notificações dos eventos gerados por este RemoteCommunicator
+     * @param callback Callback que receberá as notificações dos eventos gerados por este RemoteCommunicator
+     */
+    public void setCommunicatorCallback(RemoteCommunicatorCallback callback) {
+        this.callback = callback;
+    }
+    
+    /**
+     * Retorna a callback que recebe as notificações de eventos deste RemoteCommunicator
+     * @return A callback que recebe as notificações de eventos deste RemoteCommunicator
+     */
+    public RemoteCommunicatorCallback getCommunicatorCallback() {
+        return callback;
+    }
+    
+    /**
+     * Define a RemoteConnection utilizada por este RemoteCommunicator
+     * @param connection RemoteConnection que este RemoteCommunicator utilizará para comunicar-se com o host remoto
+     */
+    public void setConnection(RemoteConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Retorna a RemoteConnection que está sendo utilizada por este RemoteCommunicator
+     * @return A RemoteConnection que está sendo utilizada por este RemoteCommunicator
+     */
+    public RemoteConnection getConnection() {
+        return connection;
+    }
+    
+    /**
+     * Define o identificador do grupo de conferência
+     * @param sessionIdentifier Identificador do grupo de conferência
+     */
+    public void setSessionIdentifier(int sessionIdentifier) {
+        this.sessionIdentifier = sessionIdentifier;
+    }
+    
+    /**
+     * Retorna o identificador do grupo de conferência
+     * @return O identificador do grupo de conferência
+     */
+    public int getSessionIdentifier() {
+        return sessionIdentifier;
+    }
+    
+    /**
+     * Realiza os procedimentos de inicialização e prepara este RemoteCommunicator para uso
+     */
+    public synchronized void initialize() {
+        if (!open && !stop) {
+            // Os buffers das mensagens de controle são obtidos do pool somente durante o envio
+            BufferPool pool = BufferPool.getSharedPool();
+            ByteBuffer initializeBuffer = pool.acquire(INITIALIZE_BUFFER_SIZE);
+            try {
+                connection.openCommunication();
+                // A confirmação do agrupamento vale somente para a conexão em que foi recebida
+                aggregationConfirmed = false;
+                initializeBuffer.putShort(INITIALIZE_MSG);
+                initializeBuffer.putInt(sessionIdentifier);
+                byte flags = 0;
+                if (aggregation) flags |= AGGREGATION_FLAG;
+                if (peer) flags |= PEER_FLAG;
+                // Hosts antigos esperam somente o identificador do grupo
+                if (flags != 0) initializeBuffer.put(flags);
+                if (peer) initializeBuffer.putInt(localRelayIdentifier);
+                initializeBuffer.flip();
+                // Somente a inicialização é aguardada; as mensagens seguintes são enviadas
+                // sem esperar pelas confirmações e processadas na ordem pelo host remoto
+                connection.sendCtrlMessageAsync(initializeBuffer).get();
+                open = true;
+                sendEnabledMessage(isEnabled());
+                // A assinatura vale para cada nova conexão, inclusive após redirecionamentos
+                if (subscription != null) sendSubscribeMessage(subscription);
+                // As mensagens confiáveis enviadas sem conexão são solicitadas pelos receptores
+                if (reliableDelivery != null) reliableDelivery.resume();
+                callback.connectionInitialized(this);
+            } catch (Exception e) {
+                connection.closeCommunication();
+                callback.connectionLost(this);
+            } finally {
+                pool.release(initializeBuffer);
+            }
+        }
+    }
+
+    /**
+     * Envia uma mensagem da aplicação ao host remoto
+     * @param data Carga da mensagem a ser enviada
+     * @throws IOException Caso ocorram erros de E/S na transmissão
+     */
+    public void sendAppMessage(ByteBuffer data) throws IOException {
+        if (isOpen()) {
+            if (aggregationWindow > 0) {
+                aggregate(data);
+                return;
+            }
+            data.mark();
+            connection.sendMessage(data);
+            data.reset();
+        }
+    }
+    
+    /**
+     * Envia uma mensagem da aplicação com entrega confiável e ordenada. As mensagens de um
+     * mesmo canal são entregues a todos os hosts do grupo na ordem de envio, sem perdas
+     * nem repetições, e independentemente das mensagens dos demais canais e das enviadas
+     * por sendAppMessage, que não são atrasadas por retransmissões. As mensagens não são
+     * agrupadas.
+     * @param channel Canal da mensagem
+     * @param data Carga da mensagem a ser enviada, de até
+     * <code>ReliableDelivery.getMaximumMessageSize</code> bytes
+     * @throws IOException Caso a mensagem seja maior que o permitido pela conexão ou
+     * ocorram erros de E/S na transmissão
+     * @see ReliableDelivery
+     */
+    public void sendReliableMessage(byte channel, ByteBuffer data) throws IOException {
+        getReliableDelivery().send(channel, data);
+    }
+    
+    /**
+     * Retorna o estado da entrega confiável, criando-o se necessário
+     * @return O estado da entrega confiável
+     */
+    public ReliableDelivery getReliableDelivery() {
+        // O lock deste RemoteCommunicator é mantido durante a inicialização, que aguarda
+        // a thread de recepção, portanto não pode ser obtido por ela
+        synchronized(ctrlSendLock) {
+            if (reliableDelivery == null) reliableDelivery = new ReliableDelivery(this);
+            return reliableDelivery;
+        }
+    }
+    
+    /**
+     * Habilita o agrupamento das mensagens da aplicação enviadas por este RemoteCommunicator,
+     * com o tamanho máximo padrão dos conjuntos
+     * @param window Janela de agrupamento, em microssegundos. Zero desabilita o agrupamento.
+     * @see #setAggregation(long, int)
+     */
+    public void setAggregation(long window) {
+        setAggregation(window, DEFAULT_AGGREGATION_BUDGET);
+    }
+    
+    /**
+     * Habilita o agrupamento das mensagens da aplicação enviadas por este RemoteCommunicator.
+     * As mensagens enviadas dentro da janela de tempo especificada são transmitidas juntas,
+     * em um único datagrama ou quadro, até que o limite de bytes seja atingido. O limite
+     * nunca excede a maior mensagem aceita pela conexão (ver
+     * <code>RemoteConnection.getMaximumMessageSize</code>). O agrupamento é negociado na
+     * mensagem de inicialização: as mensagens só são agrupadas depois que o host remoto
+     * confirma que aceita conjuntos, e ele só envia conjuntos a este RemoteCommunicator
+     * depois da próxima inicialização. Portanto este método deve ser chamado antes de
+     * <code>initialize</code> para que o agrupamento valha desde o início. As mensagens
+     * acumuladas são enviadas antes que a janela seja alterada.
+     * @param window Janela de agrupamento, em microssegundos. Zero desabilita o agrupamento.
+     * @param budget Tamanho máximo, em bytes, de um conjunto de mensagens agrupadas
+     */
+    public synchronized void setAggregation(long window, int budget) {
+        aggregation = window > 0;
+        if (aggregation && flushThread == null) {
+            flushThread = new AggregationFlushThread();
+            flushThread.setName("Aggregation Flush Thread");
+            flushThread.setDaemon(true);
+            flushThread.start();
+        }
+        if (flushThread == null) return;
+        synchronized(flushThread) {
+            // As mensagens acumuladas precedem as enviadas com a nova janela
+            try {
+                flushAggregate();
+            } catch (IOException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            }
+            aggregationWindow = window;
+            aggregateBuffer = aggregation ? ByteBuffer.allocateDirect(budget) : null;
+        }
+    }
+    
+    /**
+     * Retorna true se as mensagens da aplicação trocadas com o host remoto podem ser agrupadas
+     * @return True se as mensagens da aplicação trocadas com o host remoto podem ser agrupadas
+     */
+    public boolean isAggregationEnabled() {
+        return aggregation;
+    }
+    
+    /**
+     * Define este RemoteCommunicator como um enlace aberto por este relay em direção a
+     * outro relay. Enlaces sempre aceitam mensagens agrupadas, que são repassadas sem
+     * alterações. Deve ser chamado antes de <code>initialize</code>.
+     * @param localRelayIdentifier Identificador deste relay
+     * @param relayIdentifier Identificador do relay do outro lado do enlace
+     */
+    public void setPeer(int localRelayIdentifier, int relayIdentifier) {
+        this.peer = true;
+        this.peerInitiator = true;
+        this.aggregation = true;
+        this.localRelayIdentifier = localRelayIdentifier;
+        this.relayIdentifier = relayIdentifier;
+    }
+    
+    /**
+     * Retorna true se este RemoteCommunicator representa um enlace com outro relay
+     * @return True se este RemoteCommunicator representa um enlace com outro relay
+     */
+    public boolean isPeer() {
+        return peer;
+    }
+    
+    /**
+     * Retorna true se o enlace com o outro relay foi aberto por este lado
+     * @return True se o enlace com o outro relay foi aberto por este lado
+     */
+    public boolean isPeerInitiator() {
+        return peerInitiator;
+    }
+    
+    /**
+     * Retorna o identificador do relay do outro lado do enlace
+     * @return O identificador do relay do outro lado do enlace
+     */
+    public int getRelayIdentifier() {
+        return relayIdentifier;
+    }
+    
+    /**
+     * Acumula a mensagem especificada no conjunto que aguarda envio. O conjunto é enviado
+     * antes, caso a mensagem não caiba nele.
+     * @param data Carga da mensagem
+     * @throws IOException Caso ocorram erros de E/S na transmissão
+     */
+    private void aggregate(ByteBuffer data) throws IOException {
+        synchronized(flushThread) {
+            if (aggregationWindow == 0 || !aggregationConfirmed) {
+                // O agrupamento foi desabilitado ou não foi confirmado pelo host remoto
+                flushAggregate();
+                data.mark();
+                connection.sendMessage(data);
+                data.reset();
+                return;
+            }
+            int size = data.remaining();
+            // O conjunto é enviado como uma única mensagem, portanto deve caber nos buffers da conexão
+            int budget = Math.min(aggregateBuffer.capacity(), connection.getMaximumMessageSize());
+            if (aggregateBuffer.position() + 2 + size > budget) {
+                flushAggregate();
+                if (2 + size > budget) {
+                    // Não cabe em um conjunto: é enviada sozinha
+                    data.mark();
+                    connection.sendMessage(data);
+                    data.reset();
+                    return;
+                }
+            }
+            data.mark();
+            aggregateBuffer.putShort((short) size);
+            aggregateBuffer.put(data);
+            data.reset();
+            if (aggregateCount++ == 0) {
+                aggregateDeadline = System.nanoTime() + aggregationWindow * 1000;
+                flushThread.notify();
+            }
+        }
+    }
+    
+    /**
+     * Envia o conjunto de mensagens acumulado. Uma mensagem isolada é enviada
+     * sem o cabeçalho de agrupamento, assim como todas as mensagens se a conexão
+     * atual não confirmou o agrupamento. Chamado com o lock de flushThread.
+     * @throws IOException Caso ocorram erros de E/S na transmissão
+     */
+    private void flushAggregate() throws IOException {
+        if (aggregateCount == 0) return;
+        aggregateBuffer.flip();
+        try {
+            if (aggregateCount > 1 && aggregationConfirmed) {
+                connection.sendAggregatedMessage(aggregateBuffer);
+            } else {
+                int limit = aggregateBuffer.limit();
+                while (aggregateBuffer.remaining() >= 2) {
+                    int end = aggregateBuffer.position() + 2 + (aggregateBuffer.getShort() & 0xFFFF);
+                    aggregateBuffer.limit(end);
+                    connection.sendMessage(aggregateBuffer);
+                    aggregateBuffer.limit(limit).position(end);
+                }
+            }
+        } finally {
+            aggregateBuffer.clear();
+            aggregateCount = 0;
+        }
+    }
+    
+    /**
+     * Envia uma mensagem ao host remoto que sinaliza o encerramento da conexão deste RemoteCommunicator
+     * @return O resultado da entrega da mensagem ou null se ela não pôde ser enviada
+     */
+    public CtrlFuture sendDropMessage() {
+        synchronized(ctrlSendLock) {
+            ByteBuffer outputBuffer = BufferPool.getSharedPool().acquire(MINIMUM_BUFFER_SIZE);
+            try {
+                outputBuffer.putShort(DROP_MSG);
+                outputBuffer.flip();
+                return connection.sendCtrlMessageAsync(outputBuffer);
+            } catch (IOException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+                return null;
+            } finally {
+                BufferPool.getSharedPool().release(outputBuffer);
+            }
+        }
+    }
+    
+    /**
+     * Envia uma mensagem ao host remoto indicando o endereço do relay responsável pelo grupo.
+     * O host remoto deve abrir uma nova conexão com este endereço.
+     * @param address Endereço do relay responsável pelo grupo
+     */
+    public void sendRedirectMessage(InetSocketAddress address) {
+        byte[] host = address.getAddress().getAddress();
+        ByteBuffer redirectBuffer = ByteBuffer.allocate(5 + host.length);
+        redirectBuffer.putShort(REDIRECT_MSG);
+        redirectBuffer.put((byte) host.length);
+        redirectBuffer.put(host);
+        redirectBuffer.putShort((short) address.getPort());
+        redirectBuffer.flip();
+        synchronized(ctrlSendLock) {
+            try {
+                connection.sendCtrlMessage(redirectBuffer);
+            } catch (IOException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * Retorna o endereço recebido na última mensagem de redirecionamento e o descarta,
+     * de forma que somente a próxima tentativa de conexão seja redirecionada
+     * @return Endereço do relay responsável pelo grupo ou null se não houve redirecionamento
+     */
+    public InetSocketAddress takeRedirectAddress() {
+        InetSocketAddress address = redirectAddress;
+        redirectAddress = null;
+        return address;
+    }
+    
+    /**
+     * Retorna true se a conexão deste RemoteCommunicator com o host remoto tiver sido inicializada com sucesso
+     * @return True se a conexão deste RemoteCommunicator com o host remoto tiver sido inicializada com sucesso
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Define se este RemoteCommunicator está habilitado ou não a transmitir e receber mensagens da aplicação
+     * @param enabled True indica que este RemoteCommunicator está habilitado a transmitir e receber mensagens da aplicação
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;            
+        if (isOpen()) {
+            sendEnabledMessage(enabled);
+        }
+    }
+    
+    /**
+     * Retorna true se este RemoteCommunicator está habilitado a receber e/ou enviar mensagens da aplicação ao host remoto
+     * @return True se este RemoteCommunicator está habilitado a receber e/ou enviar mensagens da aplicação ao host remoto
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Envia uma mensagem de sinalização que notifica ao host remoto que de que este RemoteCommunicator está habilitado a receber e/ou transmitir mensagens
+     * da aplicação
+     * @param enabled True indica que este RemoteCommunicator está habilitado a transmitir e receber mensagens da aplicação
+     */
+    private void sendEnabledMessage(boolean enabled) {
+        synchronized(ctrlSendLock) {
+            ByteBuffer outputBuffer = BufferPool.getSharedPool().acquire(MINIMUM_BUFFER_SIZE);
+            try {
+                outputBuffer.putShort(ENABLE_MSG);
+                outputBuffer.put(enabled ? (byte) 1 : (byte) 0);
+                outputBuffer.flip();
+                connection.sendCtrlMessage(outputBuffer);
+            } catch (IOException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            } finally {
+                BufferPool.getSharedPool().release(outputBuffer);
+            }
+        }
+    }
+    
+    /**
+     * Confirma ao host remoto que as mensagens da aplicação enviadas a este
+     * RemoteCommunicator podem ser agrupadas
+     */
+    private void sendAggregationMessage() {
+        synchronized(ctrlSendLock) {
+            ByteBuffer outputBuffer = BufferPool.getSharedPool().acquire(MINIMUM_BUFFER_SIZE);
+            try {
+                outputBuffer.putShort(AGGREGATION_MSG);
+                outputBuffer.flip();
+                connection.sendCtrlMessage(outputBuffer);
+            } catch (IOException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            } finally {
+                BufferPool.getSharedPool().release(outputBuffer);
+            }
+        }
+    }
+    
+    /**
+     * Define os fluxos que o relay deve repassar a este RemoteCommunicator. A assinatura
+     * pode ser alterada a qualquer momento, sem que a conexão seja reaberta. Como as
+     * mensagens de controle são limitadas pelo tamanho dos buffers do relay, a lista
+     * de fontes deve ter no máximo algumas centenas de SSRCs.
+     * @param subscription Fluxos a serem repassados ou null para receber todos
+     */
+    public void setSubscription(Subscription subscription) {
+        this.subscription = subscription;
+        if (isOpen()) {
+            sendSubscribeMessage(subscription != null ? subscription : new Subscription(null, null));
+        }
+    }
+    
+    /**
+     * Retorna os fluxos que devem ser repassados a este RemoteCommunicator
+     * @return Os fluxos que devem ser repassados ou null se todos devem ser repassados
+     */
+    public Subscription getSubscription() {
+        return subscription;
+    }
+    
+    /**
+     * Envia uma mensagem ao host remoto com os fluxos que este RemoteCommunicator deseja receber
+     * @param subscription Fluxos a serem repassados
+     */
+    private void sendSubscribeMessage(Subscription subscription) {
+        synchronized(ctrlSendLock) {
+            ByteBuffer outputBuffer = BufferPool.getSharedPool().acquire(2 + subscription.getEncodedSize());
+            try {
+                outputBuffer.putShort(SUBSCRIBE_MSG);
+                subscription.encode(outputBuffer);
+                outputBuffer.flip();
+                connection.sendCtrlMessage(outputBuffer);
+            } catch (IOException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            } finally {
+                BufferPool.getSharedPool().release(outputBuffer);
+            }
+        }
+    }
+    
+    /**
+     * Fecha este RemoteCommunicator e libera os recursos alocados por ele
+     */
+    public void close() {
+        stop = true;
+        if (flushThread != null) {
+            synchronized(flushThread) {
+                // As últimas mensagens acumuladas são enviadas antes da desconexão
+                try {
+                    if (isOpen()) flushAggregate();
+                } catch (IOException e) {
+                    // TODO Auto-generated catch block
+                    e.printStackTrace();
+                }
+                flushThread.notify();
+            }
+        }
+        CtrlFuture dropped = sendDropMessage();
+        try {
+            // Sem a confirmação, o relay somente percebe o encerramento pela inatividade
+            if (dropped != null) dropped.await(DROP_TIMEOUT);
+        } catch (InterruptedException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+        connection.closeCommunication();
+    }
+
+    /**
+     * Notifica a callback de que a conexão utilizada por este RemoteCommunicator foi perdida
+     * @param source RemoteConnection que perdeu sua conexão com o servidor
+     */
+    public synchronized void connectionLost(RemoteConnection source) {
+    	// Este método recebe como parâmetro o RemoteConnection que gerou o evento de notificação de perda
+    	// de conexão porque isso permite ao RemoteCommunicator verificar se este evento foi realmente gerado
+    	// pelo RemoteConnection que ele está utilizando atualmente.
+        if (isOpen() && source == connection) {
+            open = false;
+            callback.connectionLost(this);
+        }
+    }
+
+    /**
+     * Reliza os procedimentos de inicialização deste RemoteCommunicator, inclusive a notificação
+     * à callback. Este método é chamado em resposta a uma mensagem de ativação recebida do host remoto.
+     * @param sessionIdentifier Identificador do grupo de conferência
+     */
+    private synchronized void remoteInitialized(int sessionIdentifier) {
+        open = true;
+        this.sessionIdentifier = sessionIdentifier;
+        callback.connectionInitialized(this);
+    }
+    
+    /**
+     * Analisa e processa a mensagem de sinalização e/ou controle recebida
+     * @param source RemoteConnection que recebeu a mensagem de controle
+     * @param data Informação contida na mensagem de controle
+     */
+    public void ctrlPacketReceived(RemoteConnection source, ByteBuffer data) {
+        if (source == connection) {
+            short msgType = data.getShort();
+            if (msgType == DROP_MSG) {
+                connectionLost(source);
+            } else if (msgType == INITIALIZE_MSG) {
+                if (data.remaining() >= 4) {
+                    int sessionIdentifier = data.getInt();
+                    // Hosts antigos enviam somente o identificador do grupo
+                    byte flags = data.hasRemaining() ? data.get() : 0;
+                    aggregation = (flags & AGGREGATION_FLAG) != 0;
+                    if ((flags & PEER_FLAG) != 0 && data.remaining() >= 4) {
+                        peer = true;
+                        relayIdentifier = data.getInt();
+                    }
+                    if (aggregation) sendAggregationMessage();
+                    remoteInitialized(sessionIdentifier);
+                }
+            } else if (msgType == AGGREGATION_MSG) {
+                aggregationConfirmed = true;
+            } else if (msgType == ENABLE_MSG) {
+                if (data.remaining() == 1) {
+                    byte enableByte = data.get();
+                    boolean enabled = enableByte != 0;
+                    this.enabled = enabled;
+                    callback.connectionStatusChanged(this);
+                }
+            } else if (msgType == SUBSCRIBE_MSG) {
+                Subscription subscription = Subscription.decode(data);
+                if (subscription != null) {
+                    this.subscription = subscription.isRestricted() ? subscription : null;
+                    callback.connectionStatusChanged(this);
+                }
+            } else if (msgType == REDIRECT_MSG) {
+                if (data.hasRemaining()) {
+                    int length = data.get();
+                    if (data.remaining() == length + 2) {
+                        byte[] host = new byte[length];
+                        data.get(host);
+                        int port = data.getShort() & 0xFFFF;
+                        try {
+                            redirectAddress = new InetSocketAddress(InetAddress.getByAddress(host), port);
+                            new RedirectThread(source).start();
+                        } catch (UnknownHostException e) {
+                            // TODO Auto-generated catch block
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Notifica à callback de que uma mensagem da aplicação foi recebida
+     * @param source RemoteConnection que recebeu a mensagem
+     * @param data Carga da mensagem recebida
+     */
+    public void packetReceived(RemoteConnection source, ByteBuffer data) {
+        if (source == connection) {
+            deliverReleased();
+            callback.packetReceived(this, data);
+        }
+    }
+    
+    /**
+     * Separa as mensagens da aplicação contidas em um conjunto agrupado e notifica
+     * a callback sobre cada uma delas
+     * @param source RemoteConnection que recebeu o conjunto
+     * @param data Conjunto de mensagens, cada uma precedida pelo seu tamanho
+     */
+    public void aggregatedPacketReceived(RemoteConnection source, ByteBuffer data) {
+        if (source == connection) {
+            deliverReleased();
+            int limit = data.limit();
+            while (data.remaining() >= 2) {
+                int size = data.getShort() & 0xFFFF;
+                int end = data.position() + size;
+                if (end > limit) break;
+                data.limit(end);
+                callback.packetReceived(this, data);
+                data.limit(limit).position(end);
+            }
+        }
+    }
+    
+    /**
+     * Processa uma mensagem da entrega confiável. As mensagens da aplicação contidas
+     * nela são entregues à callback na ordem de envio.
+     * @param source RemoteConnection que recebeu a mensagem
+     * @param data Conteúdo da mensagem
+     */
+    public void reliablePacketReceived(RemoteConnection source, ByteBuffer data) {
+        if (source == connection) {
+            getReliableDelivery().received(data);
+        }
+    }
+    
+    /**
+     * Notifica que um HeartBeat foi recebido. Como o host remoto envia HeartBeats enquanto
+     * não envia mais nada, as mensagens confiáveis liberadas pelo temporizador são
+     * entregues pela thread de recepção mesmo que nenhuma outra mensagem chegue.
+     * @param source RemoteConnection que recebeu o HeartBeat
+     */
+    public void heartBeatReceived(RemoteConnection source) {
+        if (source == connection) {
+            deliverReleased();
+        }
+    }
+    
+    /**
+     * Entrega as mensagens confiáveis liberadas pelo temporizador da entrega confiável
+     * @see ReliableDelivery#deliverReleased()
+     */
+    private void deliverReleased() {
+        ReliableDelivery reliableDelivery = this.reliableDelivery;
+        if (reliableDelivery != null) reliableDelivery.deliverReleased();
+    }
+    
+    /**
+     * Thread que envia os conjuntos de mensagens agrupadas quando a janela de
+     * agrupamento expira
+     * @author Juliano
+     *
+     */
+    private class AggregationFlushThread extends Thread {
+        public void run() {
+            synchronized(this) {
+                while(!stop) {
+                    try {
+                        if (aggregateCount == 0) {
+                            wait();
+                        } else {
+                            long delay = aggregateDeadline - System.nanoTime();
+                            if (delay > 0) {
+                                wait(delay / 1000000, (int) (delay % 1000000));
+                            } else {
+                                flushAggregate();
+                            }
+                        }
+                    } catch (Exception e) {
+                        // TODO Auto-generated catch block
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Thread que encerra a conexão redirecionada. O encerramento não é realizado
+     * na thread de recepção porque precisa aguardar o término da inicialização,
+     * que por sua vez pode depender de confirmações recebidas por aquela thread.
+     * @author Juliano
+     *
+     */
+    private class RedirectThread extends Thread {
+        private RemoteConnection source;
+        private RedirectThread(RemoteConnection source) {
+            this.source = source;
+            setName("Remote Redirect Thread");
+            setDaemon(true);
+        }
+        public void run() {
+            synchronized(RemoteCommunicator.this) {
+                if (source == connection && isOpen()) {
+                    // O relay que redirecionou não mantém a conexão em nenhum grupo,
+                    // portanto não é necessário notificá-lo do encerramento
+                    source.closeCommunication();
+                    connectionLost(source);
+                }
+            }
+        }
+    }
+    
+}
@@ -1,134 +1,327 @@
-package jpiccoli.uwml.remote;
-
-import java.io.IOException;
-import java.nio.ByteBuffer;
-
-public abstract class RemoteConnection {
-    
-    public static final short CTRL_MSG   = 0;
-    public static final short NORMAL_MSG = 1;
-    public static final short HEARTBEAT_MSG = 2;
-    
-    protected static HeartBeatManager heartBeat;
-    
-    /**
-     * Callback que recebe notificaes para os eventos que ocorrem nesta RemoteConnection
-     */
-    protected RemoteCommunicator callback;
-    
-    /**
-     * Tamanho do buffer de entrada
-     */
-    protected int inputBufferSize;
-    
-    /**
-     * Tamanho do buffer de sada
-     */
-    protected int outputBufferSize;
-    
-    /**
-     * Flag que indica se esta RemoteConnection est ativa ou ociosa
-     */
-    private boolean active;
-
-    static {
-        heartBeat = new HeartBeatManager();
-    }
-    
-    /**
-     * Construtor secundrio. Inicializa este RemoteConnection utilizando buffers de entrada e sada
-     * de 1024 bytes cada um.
-     * @param callback Callback que receber os eventos gerados por esta RemoteConnection.
-     */
-    public RemoteConnection(RemoteCommunicator callback) {
-        this(callback, 1024, 1024);
-    }
-    
-    /**
-     * Construtor principal.
-     * @param callback Callback que receber os eventos gerados por esta RemoteConnection.
-     * @param inputBufferSize Tamanho do buffer de entrada utilizado
-     * @param outputBufferSize Tamanho do buffer de sada utilizado
-     */
-    public RemoteConnection(RemoteCommunicator callback, int inputBufferSize, int outputBufferSize) {
-        this.callback = callback;
-        this.inputBufferSize = inputBufferSize;
-        this.outputBufferSize = outputBufferSize;
-        active = true;
-    }
-    
-    /**
-     * Retorna a callback definida nesta RemoteConnection
-     * @return A callback definida nesta RemoteConnection
-     */
-    public RemoteCommunicator getCallback() {
-        return callback;
-    }
-    
-    /**
-     * Retorna o tamanho do buffer de entrada
-     * @return O tamanho do buffer de entrada
-     */
-    public int getInputBufferSize() {
-        return inputBufferSize;
-    }
-
-    /**
-     * Retorna o tamanho do buffer de sada
-     * @return O tamanho do buffer de sada
-     */
-    public int getOutputBufferSize() {
-        return outputBufferSize;
-    }
-
-    /**
-     * Define se esta RemoteConnection est ativa ou ociosa
-     * @param active True se esta RemoteConnection deve ser considerada ativa.
-     * False caso deva ser considerada ociosa.
-     */
-    protected void setActive(boolean active) {
-        this.active = active;
-    }
-    
-    /**
-     * Indica se esta RemoteConnection  considerada ativa ou ociosa.
-     * @return True se esta RemoteConnection  considerada ativa.
-     * False caso seja considerada ociosa.
-     */
-    protected boolean isActive() {
-        return active;
-    }
-    
-    /**
-     * Abre a inicializa a comunicao com o host remoto
-     * @throws IOException Caso ocorram erros de E/S
-     */
-    public abstract void openCommunication() throws IOException;
-    
-    /**
-     * Encerra a comunicao com o host remoto e libera os recursos alocados
-     */
-    public abstract void closeCommunication();
-    
-    /**
-     * Envia a mensagem especificada sem garantias de entrega
-     * @param data Contedo da mensagem a ser transmitida
-     * @throws IOException Caso ocorram erros de E/S
-     */
-    public abstract void sendMessage(ByteBuffer data) throws IOException;
-    
-    /**
-     * Envia a mensagem especificada de forma a garantir a entrega da mesma
-     * @param data Contedo da mensagem a ser transmitida
-     * @throws IOException Caso ocorram erros de E/S
-     */
-    public abstract void sendCtrlMessage(ByteBuffer data) throws IOException;
-    
-    /**
-     * Envia uma mensagem do tipo HeartBeat
-     * @throws IOException Caso ocorram erros de E/S
-     */
-    public abstract void sendHeartBeat() throws IOException;
-    
-}
-
+package jpiccoli.uwml.remote;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import jpiccoli.uwml.util.LinkQuality;
+import jpiccoli.uwml.util.RttEstimator;
+
+public abstract class RemoteConnection {
+    
+    public static final short CTRL_MSG   = 0;
+    public static final short NORMAL_MSG = 1;
+    public static final short HEARTBEAT_MSG = 2;
+    public static final short AGGREGATED_MSG = 4;
+    public static final short RELIABLE_MSG = 5;
+    
+    /**
+     * Tempo de espera por uma resposta, em milissegundos, antes que o tempo de ida e volta
+     * seja conhecido, e seus limites
+     */
+    public static final long RTT_INITIAL_TIMEOUT = 1000;
+    public static final long RTT_MIN_TIMEOUT = 200;
+    public static final long RTT_MAX_TIMEOUT = 3000;
+    
+    /**
+     * Tempo de vida padrão, em milissegundos, dos mapeamentos dos NATs entre os hosts, e a
+     * quantidade de intervalos entre HeartBeats que cabem nele. Como os HeartBeats só são
+     * enviados às conexões nas quais nada foi enviado durante um intervalo, um HeartBeat
+     * pode seguir a última mensagem enviada em até dois intervalos.
+     */
+    public static final long DEFAULT_NAT_BINDING_LIFETIME = 30000;
+    public static final int NAT_BINDING_INTERVALS = 3;
+    
+    /**
+     * Quantidade de HeartBeats sem resposta após os quais o host remoto é considerado inativo
+     */
+    public static final int MISSED_HEARTBEATS = 3;
+    
+    protected static HeartBeatManager heartBeat;
+    
+    /**
+     * Callback que recebe notificações para os eventos que ocorrem nesta RemoteConnection
+     */
+    protected RemoteCommunicator callback;
+    
+    /**
+     * Tamanho do buffer de entrada
+     */
+    protected int inputBufferSize;
+    
+    /**
+     * Tamanho do buffer de saída
+     */
+    protected int outputBufferSize;
+    
+    /**
+     * Flag que indica se esta RemoteConnection está ativa ou ociosa
+     */
+    private boolean active;
+    
+    /**
+     * Flag que indica se algo foi enviado ao host remoto desde a última verificação,
+     * o que dispensa o envio de um HeartBeat
+     */
+    private boolean sent;
+    
+    /**
+     * Verificações seguidas sem que nada fosse recebido, HeartBeats enviados desde então
+     * solicitando resposta e instante da última verificação em que algo havia sido recebido
+     */
+    private int quietChecks;
+    private int probes;
+    private long quietSince;
+    
+    /**
+     * Instante da próxima verificação, utilizado pelo HeartBeatManager
+     */
+    long nextLivenessCheck;
+    
+    /**
+     * Tempo de ida e volta e variação do atraso até o host remoto, medidos através das
+     * marcas de tempo transportadas pelos HeartBeats
+     */
+    private LinkQuality linkQuality;
+
+    static {
+        heartBeat = new HeartBeatManager();
+    }
+    
+    /**
+     * Construtor secundário. Inicializa este RemoteConnection utilizando buffers de entrada e saída
+     * de 1024 bytes cada um.
+     * @param callback Callback que receberá os eventos gerados por esta RemoteConnection.
+     */
+    public RemoteConnection(RemoteCommunicator callback) {
+        this(callback, 1024, 1024);
+    }
+    
+    /**
+     * Construtor principal.
+     * @param callback Callback que receberá os eventos gerados por esta RemoteConnection.
+     * @param inputBufferSize Tamanho do buffer de entrada utilizado
+     * @param outputBufferSize Tamanho do buffer de saída utilizado
+     */
+    public RemoteConnection(RemoteCommunicator callback, int inputBufferSize, int outputBufferSize) {
+        this.callback = callback;
+        this.inputBufferSize = inputBufferSize;
+        this.outputBufferSize = outputBufferSize;
+        active = true;
+        quietSince = System.currentTimeMillis();
+        linkQuality = new LinkQuality(new RttEstimator(RTT_INITIAL_TIMEOUT, RTT_MIN_TIMEOUT, RTT_MAX_TIMEOUT));
+    }
+    
+    /**
+     * Retorna a callback definida nesta RemoteConnection
+     * @return A callback definida nesta RemoteConnection
+     */
+    public RemoteCommunicator getCallback() {
+        return callback;
+    }
+    
+    /**
+     * Retorna o tamanho do buffer de entrada
+     * @return O tamanho do buffer de entrada
+     */
+    public int getInputBufferSize() {
+        return inputBufferSize;
+    }
+
+    /**
+     * Retorna o tamanho do buffer de saída
+     * @return O tamanho do buffer de saída
+     */
+    public int getOutputBufferSize() {
+        return outputBufferSize;
+    }
+    
+    /**
+     * Retorna o tamanho máximo da carga de uma mensagem da aplicação enviada por esta
+     * RemoteConnection. Os cabeçalhos inseridos pela conexão ocupam o espaço reservado
+     * além do buffer de saída.
+     * @return O tamanho máximo, em bytes, da carga de uma mensagem
+     */
+    public int getMaximumMessageSize() {
+        return outputBufferSize;
+    }
+
+    /**
+     * Retorna as medidas do caminho até o host remoto. O tempo de ida e volta define
+     * o tempo de espera pelas confirmações e pode ser utilizado na escolha do relay.
+     * @return As medidas do caminho até o host remoto
+     */
+    public LinkQuality getLinkQuality() {
+        return linkQuality;
+    }
+    
+    /**
+     * Define o tempo de vida dos mapeamentos dos NATs entre este host e os hosts remotos,
+     * que define o intervalo entre os HeartBeats das conexões que não são dos relays
+     * @param natBindingLifetime Tempo de vida, em milissegundos
+     */
+    public static void setNatBindingLifetime(long natBindingLifetime) {
+        heartBeat.setNatBindingLifetime(natBindingLifetime);
+    }
+    
+    /**
+     * Retorna o tempo de ida e volta suavizado até o host remoto
+     * @return O tempo de ida e volta, em nanossegundos, ou 0 se ainda não foi medido
+     */
+    public long getSmoothedRtt() {
+        return linkQuality.getRtt().getSmoothedRtt();
+    }
+    
+    /**
+     * Retorna a variação do tempo de ida e volta até o host remoto
+     * @return A variação do tempo de ida e volta, em nanossegundos
+     */
+    public long getRttVariance() {
+        return linkQuality.getRtt().getRttVariance();
+    }
+    
+    /**
+     * Retorna a variação do atraso entre a chegada de um HeartBeat e a do seguinte,
+     * calculada como na RFC 3550
+     * @return A variação do atraso, em nanossegundos
+     */
+    public long getJitter() {
+        return linkQuality.getJitter();
+    }
+    
+    /**
+     * Define se esta RemoteConnection está ativa ou ociosa
+     * @param active True se esta RemoteConnection deve ser considerada ativa.
+     * False caso deva ser considerada ociosa.
+     */
+    protected void setActive(boolean active) {
+        this.active = active;
+    }
+    
+    /**
+     * Indica se esta RemoteConnection é considerada ativa ou ociosa.
+     * @return True se esta RemoteConnection é considerada ativa.
+     * False caso seja considerada ociosa.
+     */
+    protected boolean isActive() {
+        return active;
+    }
+    
+    /**
+     * Indica que algo foi enviado ao host remoto, o que dispensa o próximo HeartBeat
+     */
+    protected void dataSent() {
+        sent = true;
+    }
+    
+    /**
+     * Envia, se necessário, um HeartBeat e verifica se o host remoto está ativo. Executado
+     * periodicamente pelo HeartBeatManager ou, nos relays, pelo IOThread da conexão.
+     * <p>
+     * O HeartBeat só é enviado se nada foi enviado ao host remoto desde a verificação
+     * anterior, de forma que as conexões que transportam dados não enviam HeartBeats. Se
+     * nada for recebido durante duas verificações, tempo após o qual o host remoto já
+     * deveria ter enviado ao menos um HeartBeat, são enviados HeartBeats que solicitam
+     * resposta imediata, a intervalos definidos pelo tempo de ida e volta. O host remoto é
+     * considerado inativo quando MISSED_HEARTBEATS deles ficam sem resposta ou, após o
+     * primeiro deles, quando nada é recebido durante maximumInactiveTime.
+     * @param heartBeatInterval Intervalo entre as verificações, em milissegundos
+     * @param maximumInactiveTime Tempo máximo, em milissegundos, sem que nada seja recebido
+     * @return O tempo até a próxima verificação, em milissegundos, ou -1 caso o host remoto
+     * seja considerado inativo
+     * @throws IOException Caso ocorram erros de E/S
+     */
+    protected long checkLiveness(long heartBeatInterval, long maximumInactiveTime) throws IOException {
+        long now = System.currentTimeMillis();
+        if (active) {
+            active = false;
+            quietChecks = 0;
+            probes = 0;
+            quietSince = now;
+        } else if (++quietChecks >= 2) {
+            // Ao menos um HeartBeat solicita resposta antes que o host remoto seja considerado inativo
+            if (probes >= MISSED_HEARTBEATS || (probes > 0 && now - quietSince >= maximumInactiveTime)) return -1;
+            probes++;
+            linkQuality.requestReply();
+            sendHeartBeat();
+            sent = false;
+            return Math.min(linkQuality.getRtt().getTimeout() << (probes - 1), heartBeatInterval);
+        }
+        // O próprio HeartBeat não conta como envio
+        if (!sent) sendHeartBeat();
+        sent = false;
+        return heartBeatInterval;
+    }
+    
+    /**
+     * Processa um HeartBeat recebido, respondendo-o se o host remoto solicitou
+     * @param data Conteúdo do HeartBeat
+     * @throws IOException Caso ocorram erros de E/S
+     */
+    protected void heartBeatReceived(ByteBuffer data) throws IOException {
+        if (linkQuality.heartBeatReceived(data)) sendHeartBeat();
+        callback.heartBeatReceived(this);
+    }
+    
+    /**
+     * Abre a inicializa a comunicação com o host remoto
+     * @throws IOException Caso ocorram erros de E/S
+     */
+    public abstract void openCommunication() throws IOException;
+    
+    /**
+     * Encerra a comunicação com o host remoto e libera os recursos alocados
+     */
+    public abstract void closeCommunication();
+    
+    /**
+     * Envia a mensagem especificada sem garantias de entrega
+     * @param data Conteúdo da mensagem a ser transmitida
+     * @throws IOException Caso ocorram erros de E/S
+     */
+    public abstract void sendMessage(ByteBuffer data) throws IOException;
+    
+    /**
+     * Envia, sem garantias de entrega, um conjunto de mensagens da aplicação agrupadas
+     * em uma única mensagem. Cada mensagem do conjunto é precedida pelo seu tamanho (short).
+     * @param data Conteúdo das mensagens agrupadas
+     * @throws IOException Caso ocorram erros de E/S
+     */
+    public abstract void sendAggregatedMessage(ByteBuffer data) throws IOException;
+    
+    /**
+     * Envia, sem garantias de entrega, uma mensagem da entrega confiável da aplicação.
+     * A retransmissão e a ordenação são realizadas por ReliableDelivery, nos hosts
+     * das extremidades; o relay repassa estas mensagens sem descartá-las por prioridade.
+     * @param data Conteúdo da mensagem
+     * @throws IOException Caso ocorram erros de E/S
+     */
+    public abstract void sendReliableMessage(ByteBuffer data) throws IOException;
+    
+    /**
+     * Envia a mensagem especificada de forma a garantir a entrega da mesma
+     * @param data Conteúdo da mensagem a ser transmitida
+     * @throws IOException Caso ocorram erros de E/S
+     */
+    public abstract void sendCtrlMessage(ByteBuffer data) throws IOException;
+    
+    /**
+     * Envia a mensagem especificada de forma a garantir a entrega da mesma, sem
+     * aguardar a confirmação do host remoto. Na implementação padrão, a entrega é
+     * garantida pelo próprio transporte assim que sendCtrlMessage retorna.
+     * @param data Conteúdo da mensagem a ser transmitida
+     * @return O resultado da entrega da mensagem
+     * @throws IOException Caso ocorram erros de E/S
+     */
+    public CtrlFuture sendCtrlMessageAsync(ByteBuffer data) throws IOException {
+        sendCtrlMessage(data);
+        return CtrlFuture.DELIVERED;
+    }
+    
+    /**
+     * Envia uma mensagem do tipo HeartBeat, com as marcas de tempo de LinkQuality
+     * @throws IOException Caso ocorram erros de E/S
+     */
+    public abstract void sendHeartBeat() throws IOException;
+    
+}
+
@@ -0,0 +1,82 @@
+package jpiccoli.uwml.remote;
+
+import jpiccoli.uwml.util.TimingWheel;
+
+/**
+ * Thread que aciona os temporizadores de retransmissão das mensagens de controle
+ * das UDPRemoteConnections e das mensagens confiáveis da aplicação. Os temporizadores
+ * são mantidos em uma TimingWheel, avançada somente por esta thread; as conexões os
+ * agendam e cancelam a partir de qualquer thread.
+ * @author Juliano
+ *
+ */
+public class RetransmissionTimer extends Thread {
+
+    /**
+     * Duração, em milissegundos, de cada intervalo da TimingWheel
+     */
+    public final static long TICK_DURATION = 10;
+
+    /**
+     * Temporizador compartilhado, iniciado no primeiro uso
+     */
+    private static RetransmissionTimer sharedTimer;
+
+    private TimingWheel timeouts;
+
+    /**
+     * Indica que um temporizador foi agendado enquanto a TimingWheel estava vazia
+     */
+    private boolean scheduled;
+
+    public RetransmissionTimer() {
+        timeouts = new TimingWheel(TICK_DURATION, TimingWheel.DEFAULT_WHEEL_SIZE);
+        setName("Retransmission Timer Thread");
+        setDaemon(true);
+    }
+
+    /**
+     * Retorna o temporizador compartilhado por todas as conexões
+     * @return O temporizador compartilhado
+     */
+    public static synchronized RetransmissionTimer getSharedTimer() {
+        if (sharedTimer == null) {
+            sharedTimer = new RetransmissionTimer();
+            sharedTimer.start();
+        }
+        return sharedTimer;
+    }
+
+    /**
+     * Agenda o temporizador para expirar após o tempo especificado
+     * @param timeout Temporizador a ser agendado
+     * @param delay Tempo de espera, em milissegundos
+     */
+    public void schedule(TimingWheel.Timeout timeout, long delay) {
+        if (timeouts.schedule(timeout, delay)) {
+            // A thread não é acordada pelos intervalos enquanto a TimingWheel está vazia
+            synchronized(this) {
+                scheduled = true;
+                notify();
+            }
+        }
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                // Os temporizadores expirados são executados fora do lock desta thread,
+                // pois podem aguardar o lock das conexões que agendam outros
+                long delay = timeouts.advance();
+                synchronized(this) {
+                    if (!scheduled) wait(delay);
+                    scheduled = false;
+                }
+            } catch (Exception e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+package jpiccoli.uwml.remote;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Conjunto de fluxos que um RemoteCommunicator deseja receber do relay. Um fluxo
+ * é identificado pela chave do demultiplexador, o primeiro byte de cada mensagem
+ * da aplicação, e pela fonte, o SSRC do pacote RTP ou RTCP que segue a chave.
+ * Uma lista nula de chaves ou de fontes aceita qualquer valor. Mensagens curtas
+ * demais para conter um SSRC somente são aceitas quando não há lista de fontes.
+ * <p>
+ * Instâncias são imutáveis, de forma que o relay pode consultá-las sem
+ * sincronização enquanto repassa as mensagens.
+ * @author Juliano
+ *
+ */
+public class Subscription {
+
+    /**
+     * Quantidade que indica, na mensagem de assinatura, que a lista não restringe
+     * nenhum valor
+     */
+    private final static short ANY = -1;
+
+    /**
+     * Chaves aceitas, indexadas pelo valor sem sinal da chave, ou null
+     */
+    private boolean[] keys;
+
+    /**
+     * SSRCs aceitos, em ordem crescente, ou null
+     */
+    private int[] sources;
+
+    /**
+     * Construtor
+     * @param keys Chaves do demultiplexador aceitas ou null para aceitar todas
+     * @param sources SSRCs aceitos ou null para aceitar todas as fontes
+     */
+    public Subscription(byte[] keys, long[] sources) {
+        if (keys != null) {
+            this.keys = new boolean[256];
+            for (int i = 0; i < keys.length; i++) {
+                this.keys[keys[i] & 0xFF] = true;
+            }
+        }
+        if (sources != null) {
+            this.sources = new int[sources.length];
+            for (int i = 0; i < sources.length; i++) {
+                this.sources[i] = (int) sources[i];
+            }
+            Arrays.sort(this.sources);
+        }
+    }
+
+    private Subscription() {
+    }
+
+    /**
+     * Retorna true se a mensagem com a chave e a fonte especificadas deve ser repassada
+     * @param key Chave do demultiplexador
+     * @param source SSRC da mensagem, obtido com <code>getSource</code>, ou -1 se ela não contém um
+     * @return True se a mensagem deve ser repassada
+     */
+    public boolean accepts(byte key, long source) {
+        if (keys != null && !keys[key & 0xFF]) return false;
+        if (sources != null && (source < 0 || Arrays.binarySearch(sources, (int) source) < 0)) return false;
+        return true;
+    }
+
+    /**
+     * Retorna true se esta assinatura rejeita alguma mensagem
+     * @return True se há uma lista de chaves ou de fontes
+     */
+    boolean isRestricted() {
+        return keys != null || sources != null;
+    }
+
+    /**
+     * Retorna o SSRC do pacote RTP ou RTCP que segue a chave de uma mensagem da
+     * aplicação. Pacotes RTCP são reconhecidos pelo tipo, entre 192 e 223, conforme
+     * a RFC 5761; o SSRC do emissor está logo após o cabeçalho comum.
+     * @param data Buffer da mensagem
+     * @param offset Posição da chave
+     * @param limit Fim da mensagem
+     * @return O SSRC, sem sinal, ou -1 se a mensagem é curta demais
+     */
+    public static long getSource(ByteBuffer data, int offset, int limit) {
+        if (offset + 2 >= limit) return -1;
+        int type = data.get(offset + 2) & 0xFF;
+        int position = offset + 1 + (type >= 192 && type <= 223 ? 4 : 8);
+        if (position + 4 > limit) return -1;
+        return data.getInt(position) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Retorna o tamanho, em bytes, desta assinatura codificada em uma mensagem
+     * @return O tamanho da assinatura codificada
+     */
+    public int getEncodedSize() {
+        int size = 4 + (sources != null ? sources.length * 4 : 0);
+        if (keys != null) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i]) size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Escreve esta assinatura no buffer: a quantidade de chaves, as chaves, a
+     * quantidade de fontes e as fontes. Uma quantidade igual a -1 indica que a
+     * lista não restringe nenhum valor.
+     * @param buffer Buffer da mensagem de assinatura
+     */
+    protected void encode(ByteBuffer buffer) {
+        if (keys == null) {
+            buffer.putShort(ANY);
+        } else {
+            int position = buffer.position();
+            short count = 0;
+            buffer.putShort(count);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i]) {
+                    buffer.put((byte) i);
+                    count++;
+                }
+            }
+            buffer.putShort(position, count);
+        }
+        if (sources == null) {
+            buffer.putShort(ANY);
+        } else {
+            buffer.putShort((short) sources.length);
+            for (int i = 0; i < sources.length; i++) {
+                buffer.putInt(sources[i]);
+            }
+        }
+    }
+
+    /**
+     * Lê uma assinatura escrita por <code>encode</code>
+     * @param buffer Buffer da mensagem de assinatura, posicionado após o tipo
+     * @return A assinatura ou null se a mensagem está incompleta
+     */
+    protected static Subscription decode(ByteBuffer buffer) {
+        Subscription subscription = new Subscription();
+        if (buffer.remaining() < 2) return null;
+        short count = buffer.getShort();
+        if (count != ANY) {
+            if (count < 0 || buffer.remaining() < count) return null;
+            subscription.keys = new boolean[256];
+            for (int i = 0; i < count; i++) {
+                subscription.keys[buffer.get() & 0xFF] = true;
+            }
+        }
+        if (buffer.remaining() < 2) return null;
+        count = buffer.getShort();
+        if (count != ANY) {
+            if (count < 0 || buffer.remaining() < count * 4) return null;
+            subscription.sources = new int[count];
+            for (int i = 0; i < count; i++) {
+                subscription.sources[i] = buffer.getInt();
+            }
+            Arrays.sort(subscription.sources);
+        }
+        return subscription;
+    }
+
+}
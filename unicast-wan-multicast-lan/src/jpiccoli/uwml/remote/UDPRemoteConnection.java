@@ -1,306 +1,600 @@
-package jpiccoli.uwml.remote;
-
-import java.io.IOException;
-import java.net.SocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
-import java.util.ArrayList;
-
-import jpiccoli.uwml.util.LimitedList;
-
-public class UDPRemoteConnection extends RemoteConnection implements Runnable {
-
-    public static final short ACK_MSG    = 3;
-    
-    /**
-     * Endereo do host remoto
-     */
-    private SocketAddress remoteAddress;
-    
-    /**
-     * Socket atravs do qual sero enviados e recebidos os datagramas
-     */
-    private DatagramChannel datagramChannel;
-    
-    /**
-     * Varivel incremental que gera os cdigos de identificao para as mensagens de controle
-     * enviadas atravs desta UDPRemoteConnection
-     */
-    private long ctrlPacketCount;
-    
-    /**
-     * Lista de mensagens ack aguardando confirmao
-     */
-    private ArrayList<CtrlMessage> waitingAcks;
-    
-    /**
-     * Lista de mensagens de controle recebidas. Para evitar o reprocessamento de uma mensagem
-     * indevidamente retransmitida, esta lista mantm armazenadas as ltimas trinta mensagens de controle
-     * recebidas.
-     */
-    private LimitedList<CtrlMessage> ctrlMessages;
-    
-    /**
-     * Buffer de sada
-     */
-    private ByteBuffer outputBuffer;
-    
-    /**
-     * Buffer de entrada
-     */
-    private ByteBuffer inputBuffer;
-    
-    private boolean stop;
-    private boolean open;
-    
-    private Thread thread;
-
-    /**
-     * Construtor secundrio. Define o tamanho dos buffers de entrada e sada em 1024 bytes.
-     * @param callback Callback que receber os eventos gerados por esta RemoteConnection.
-     * @param remoteAddress Endereo do host remoto com o qual a comunicao ser estabelecida.
-     */
-    public UDPRemoteConnection(RemoteCommunicator callback, SocketAddress remoteAddress) {
-        this(callback, remoteAddress, 1024, 1024);
-    }
-
-    /**
-     * Construtor principal.
-     * @param callback Callback que receber os eventos gerados por esta RemoteConnection.
-     * @param remoteAddress Endereo do host remoto com o qual a comunicao ser estabelecida.
-     * @param inputBufferSize Tamanho do buffer de entrada utilizado
-     * @param outputBufferSize Tamanho do buffer de sada utilizado
-     */
-    public UDPRemoteConnection(RemoteCommunicator callback, SocketAddress remoteAddress, int inputBufferSize, int outputBufferSize) {
-        super(callback, inputBufferSize, outputBufferSize);
-        this.remoteAddress = remoteAddress;
-        waitingAcks = new ArrayList<CtrlMessage>();
-        ctrlMessages = new LimitedList<CtrlMessage>(30);
-        outputBuffer = ByteBuffer.allocateDirect(outputBufferSize + 10);
-        inputBuffer = ByteBuffer.allocateDirect(inputBufferSize + 10);
-    }
-    
-    @Override
-    public synchronized void closeCommunication() {
-        if (!stop) {
-            try {
-                heartBeat.removeConnection(this);
-                open = false;
-                stop = true;
-                datagramChannel.close();
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-        }
-    }
-
-    @Override
-    public synchronized void openCommunication() throws IOException {
-        if (!stop && thread == null) {
-            // TODO Capturar esta exceo
-            datagramChannel = DatagramChannel.open();
-            open = true;
-            stop = false;
-            thread = new Thread(this);
-            thread.setName("UDP Remote Connection Thread");
-            thread.setDaemon(true);
-            thread.start();
-            heartBeat.addConnection(this);
-        }
-    }
-
-    @Override
-    public void sendCtrlMessage(ByteBuffer data) throws IOException {
-        CtrlMessage ack = null;
-        long packetID = 0;
-        // Obtm um identificador para a mensagem de controle e a adiciona  lista
-        // de mensagens que aguardam confirmao. Esta sincronizao  necessria
-        // para que a varivel ctrlPacketCount possa ser acessada e alterada sem
-        // problemas
-        synchronized(this) {
-            if (!open) throw new IOException("Socket is not open");
-            packetID = ctrlPacketCount++;
-            ack = new CtrlMessage(packetID);
-            waitingAcks.add(ack);
-        }
-        int tryCount;
-        data.mark();
-        // Tenta transmitir a mensagem por, no mximo, trs vezes, caso no seja recebida
-        // a confirmao de recebimento
-        for (tryCount = 0; tryCount < 3 && waitingAcks.contains(ack); tryCount++) {
-        	// Envia a mensagem atravs do socket
-            synchronized(this) {
-                data.reset();
-                outputBuffer.clear();
-                outputBuffer.putShort(CTRL_MSG);
-                outputBuffer.putLong(packetID);
-                outputBuffer.put(data);
-                outputBuffer.flip();
-                datagramChannel.send(outputBuffer, remoteAddress);
-            }
-            try {
-                synchronized(ack) {
-                    ack.wait(3000);	// Aguarda pela confirmao por trs segundos
-                }
-            } catch (InterruptedException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-        }
-        if (tryCount > 2) {
-        	// Se o nmero de reenvios foi atingido sem que uma confirmao fosse recebida,
-        	// esta UDPRemoteConnection  finalizada
-            closeCommunication();
-            throw new IOException("Ack not received after 3 tries");
-        }
-    }
-
-    @Override
-    public synchronized void sendHeartBeat() throws IOException {
-        if (!open) throw new IOException("Socket is not open");
-        outputBuffer.clear();
-        outputBuffer.putShort(HEARTBEAT_MSG);
-        outputBuffer.flip();
-        datagramChannel.send(outputBuffer, remoteAddress);
-    }
-
-    @Override
-    public synchronized void sendMessage(ByteBuffer data) throws IOException {
-        if (!open) throw new IOException("Socket is not open");
-        outputBuffer.clear();
-        outputBuffer.putShort(NORMAL_MSG);
-        outputBuffer.put(data);
-        outputBuffer.flip();
-        datagramChannel.send(outputBuffer, remoteAddress);
-    }
-    
-    /**
-     * Envia uma mensagem de confirmao de recebimento ao host remoto
-     * @param ackCode Cdigo que indica a identidade do pacote confirmado
-     */
-    private synchronized void sendAck(long ackCode) {
-        try {
-            if (!open) {
-                outputBuffer.clear();
-                outputBuffer.putShort(ACK_MSG);
-                outputBuffer.putLong(ackCode);
-                outputBuffer.flip();
-                datagramChannel.send(outputBuffer, remoteAddress);
-            }
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-    }
-    
-    public void run() {
-        try {
-            while(!stop) {
-                inputBuffer.clear();
-                datagramChannel.receive(inputBuffer);
-                setActive(true);
-                inputBuffer.flip();
-                if (inputBuffer.remaining() >= 2) {
-                    short msgType = inputBuffer.getShort();
-                    if (msgType == NORMAL_MSG) { // Mensagem da aplicao
-                        callback.packetReceived(this, inputBuffer);
-                    } else if (msgType == CTRL_MSG) {	// Mensagem de controle
-                        long msgCode = inputBuffer.getLong();
-                        CtrlMessage ctrlMessage = getControlMessage(msgCode);
-                        sendAck(msgCode);	// Envia confirmao de recebimento ao host remoto
-                        if (ctrlMessage != null) {
-                        	// Processa a mensagem somente se ela ainda no foi processada anteriormente
-                            if (!ctrlMessage.alreadyProcessed) {
-                                ctrlMessage.alreadyProcessed = true;
-                                callback.ctrlPacketReceived(this, inputBuffer);
-                            }
-                        } else {
-                        	// Se a mensagem no foi localizada na lista de mensagens recebidas,
-                        	// processa o seu contedo e a adiciona na listagem
-                            ctrlMessage = new CtrlMessage(msgCode);
-                            ctrlMessage.alreadyProcessed = true;
-                            ctrlMessages.add(ctrlMessage);
-                            callback.ctrlPacketReceived(this, inputBuffer);
-                        }
-                    } else if (msgType == HEARTBEAT_MSG) {
-                        // Ignore...
-                    } else if (msgType == ACK_MSG) {
-                    	// Remove a mensagem de controle da lista de espera por confirmao
-                    	// e notifica a thread que est bloqueada no mtodo sendCtrlMessage
-                        if (inputBuffer.remaining() == 8) {
-                            CtrlMessage ack = getAck(inputBuffer.getLong());
-                            if (ack != null) {
-                                synchronized(ack) {
-                                    waitingAcks.remove(ack);
-                                    ack.notify();
-                                }
-                            }
-                        }
-                    } else {
-                        throw new IOException("Unknown message received");
-                    }
-                }
-            }
-        } catch (Exception e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } finally {
-            closeCommunication();
-            callback.connectionLost(this);
-        }
-    }
-    
-    /**
-     * Obtm a mensagem de controle armazenada na lista a partir do seu cdigo de
-     * identificao
-     * @param msgCode Cdigo de identificao da mensagem de controle procurada 
-     * @return A mensagem de controle previamente recebida representada pelo cdigo de identificao especificado
-     */
-    private CtrlMessage getControlMessage(long msgCode) {
-        for (int i = 0; i < ctrlMessages.size(); i++) {
-            CtrlMessage ctrlMessage = ctrlMessages.get(i);
-            if (ctrlMessage.msgCode == msgCode) {
-                return ctrlMessage;
-            }
-        }
-        return null;
-    }
-    
-    /**
-     * Obtm a objeto que representa a mensagem ack identificada pelo cdigo <code>ackCode</code>
-     * @param ackCode Cdigo de identificao da mensagem ack desejada
-     * @return A mensagem ack identificada pelo cdigo especificado
-     */
-    private synchronized CtrlMessage getAck(long ackCode) {
-        for (CtrlMessage ack : waitingAcks) {
-            if (ack.msgCode == ackCode) {
-                return ack;
-            }
-        }
-        return null;
-    }
-    
-    /**
-     * Classe utilitria que representa uma mensagem de controle
-     * @author Juliano
-     *
-     */
-    private class CtrlMessage {
-    	/**
-    	 * Cdigo de identificao da mensagem
-    	 */
-        private long msgCode;
-        
-        /**
-         * Flag que indica se esta mensagem de controle j foi processada ou no
-         */
-        private boolean alreadyProcessed;
-        
-        private CtrlMessage(long msgCode) {
-            this.msgCode = msgCode;
-            alreadyProcessed = false;
-        }
-    }
-    
-}
+package jpiccoli.uwml.remote;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import jpiccoli.uwml.util.BufferPool;
+import jpiccoli.uwml.util.FecDecoder;
+import jpiccoli.uwml.util.FecEncoder;
+import jpiccoli.uwml.util.RttEstimator;
+import jpiccoli.uwml.util.SequenceWindow;
+import jpiccoli.uwml.util.TimingWheel;
+
+public class UDPRemoteConnection extends RemoteConnection implements Runnable {
+
+    public static final short ACK_MSG    = 3;
+    
+    /**
+     * Mensagens da correção de erros: datagrama da aplicação numerado, pacote de paridade
+     * e relatório de perdas do receptor. Ver FecEncoder e FecDecoder.
+     */
+    public static final short FEC_DATA_MSG   = 6;
+    public static final short FEC_PARITY_MSG = 7;
+    public static final short FEC_REPORT_MSG = 8;
+    
+    /**
+     * Quantidade máxima de mensagens de controle transmitidas e ainda não confirmadas.
+     * As demais aguardam, na ordem de envio, que a janela avance. Também é a quantidade
+     * de mensagens recebidas fora de ordem que são retidas até que as anteriores cheguem.
+     */
+    public static final int CTRL_WINDOW = 16;
+    
+    /**
+     * Tempo, em milissegundos, que uma mensagem de controle é retransmitida sem
+     * confirmação antes que a conexão seja considerada perdida
+     */
+    public static final long CTRL_GIVE_UP_TIME = 9000;
+    
+    /**
+     * Tempo de espera pela confirmação, em milissegundos, antes que o tempo de ida e volta
+     * seja conhecido, e seus limites. O tempo de espera dobra a cada retransmissão.
+     */
+    public static final long CTRL_INITIAL_TIMEOUT = RTT_INITIAL_TIMEOUT;
+    public static final long CTRL_MIN_TIMEOUT = RTT_MIN_TIMEOUT;
+    public static final long CTRL_MAX_TIMEOUT = RTT_MAX_TIMEOUT;
+    
+    /**
+     * Temporizador compartilhado pelas retransmissões de todas as UDPRemoteConnections
+     */
+    private static RetransmissionTimer retransmissionTimer;
+    
+    static {
+        retransmissionTimer = RetransmissionTimer.getSharedTimer();
+    }
+    
+    /**
+     * Endereço do host remoto
+     */
+    private SocketAddress remoteAddress;
+    
+    /**
+     * Socket através do qual serão enviados e recebidos os datagramas
+     */
+    private DatagramChannel datagramChannel;
+    
+    /**
+     * Variável incremental que gera os códigos de identificação para as mensagens de controle
+     * enviadas através desta UDPRemoteConnection
+     */
+    private long ctrlPacketCount;
+    
+    /**
+     * Código da mensagem de controle mais antiga ainda não confirmada e da próxima a ser
+     * transmitida pela primeira vez
+     */
+    private long oldestUnacked;
+    private long nextToTransmit;
+    
+    /**
+     * Mensagens transmitidas aguardando confirmação, indexadas pelos bits menos
+     * significativos do código
+     */
+    private PendingCtrlMessage[] sendWindow;
+    
+    /**
+     * Mensagens que aguardam espaço na janela para serem transmitidas
+     */
+    private ArrayDeque<PendingCtrlMessage> queuedCtrlMessages;
+    
+    /**
+     * Estimativa do tempo de ida e volta, obtida das confirmações e dos HeartBeats, que
+     * define o tempo de espera antes de cada retransmissão. Ver getLinkQuality().
+     */
+    private RttEstimator rtt;
+    
+    /**
+     * Mensagens de controle recebidas. Cada mensagem é processada uma única vez e na
+     * ordem em que foi enviada, mesmo que seja retransmitida ou chegue antes das anteriores.
+     */
+    private SequenceWindow ctrlMessages;
+    
+    /**
+     * Código de correção de erros solicitado ao host remoto para os datagramas recebidos
+     */
+    private volatile int fecMode;
+    
+    /**
+     * Correção de erros dos datagramas da aplicação enviados, criada quando o host remoto
+     * a solicita em um relatório de perdas
+     */
+    private FecEncoder fecEncoder;
+    
+    /**
+     * Correção de erros dos datagramas da aplicação recebidos, utilizada somente pela
+     * thread de recepção
+     */
+    private volatile FecDecoder fecDecoder;
+    
+    /**
+     * Buffer de saída
+     */
+    private ByteBuffer outputBuffer;
+    
+    /**
+     * Buffer de entrada
+     */
+    private ByteBuffer inputBuffer;
+    
+    private boolean stop;
+    private boolean open;
+    
+    private Thread thread;
+
+    /**
+     * Construtor secundário. Define o tamanho dos buffers de entrada e saída em 1024 bytes.
+     * @param callback Callback que receberá os eventos gerados por esta RemoteConnection.
+     * @param remoteAddress Endereço do host remoto com o qual a comunicação será estabelecida.
+     */
+    public UDPRemoteConnection(RemoteCommunicator callback, SocketAddress remoteAddress) {
+        this(callback, remoteAddress, 1024, 1024);
+    }
+
+    /**
+     * Construtor principal.
+     * @param callback Callback que receberá os eventos gerados por esta RemoteConnection.
+     * @param remoteAddress Endereço do host remoto com o qual a comunicação será estabelecida.
+     * @param inputBufferSize Tamanho do buffer de entrada utilizado
+     * @param outputBufferSize Tamanho do buffer de saída utilizado
+     */
+    public UDPRemoteConnection(RemoteCommunicator callback, SocketAddress remoteAddress, int inputBufferSize, int outputBufferSize) {
+        super(callback, inputBufferSize, outputBufferSize);
+        this.remoteAddress = remoteAddress;
+        sendWindow = new PendingCtrlMessage[CTRL_WINDOW];
+        queuedCtrlMessages = new ArrayDeque<PendingCtrlMessage>();
+        rtt = getLinkQuality().getRtt();
+        ctrlMessages = new SequenceWindow(CTRL_WINDOW);
+        outputBuffer = ByteBuffer.allocateDirect(outputBufferSize + 10);
+        inputBuffer = ByteBuffer.allocateDirect(inputBufferSize + 10);
+    }
+    
+    /**
+     * Retorna a estimativa do tempo de ida e volta ao host remoto, obtida das
+     * confirmações das mensagens de controle e dos HeartBeats
+     * @return A estimativa do tempo de ida e volta
+     */
+    public RttEstimator getRtt() {
+        return rtt;
+    }
+    
+    /**
+     * Habilita a correção de erros dos datagramas da aplicação. O host remoto passa a
+     * numerar os datagramas enviados a esta conexão e a enviar, após cada grupo deles,
+     * pacotes de paridade com os quais os datagramas perdidos são reconstruídos sem
+     * retransmissão. A quantidade de paridade se adapta à taxa de perdas medida por esta
+     * conexão e enviada periodicamente ao host remoto, que também passa a proteger os
+     * datagramas enviados por esta conexão com o mesmo código.
+     * @param mode FecEncoder.XOR, que repara uma perda por grupo, FecEncoder.REED_SOLOMON,
+     * que repara tantas perdas quantos forem os pacotes de paridade, ou FecEncoder.NONE
+     */
+    public void setForwardErrorCorrection(int mode) {
+        fecMode = mode;
+        if (mode == FecEncoder.NONE) {
+            fecDecoder = null;
+        } else {
+            fecDecoder = new FecDecoder(mode);
+        }
+        // O primeiro relatório é enviado imediatamente, sem perdas
+        sendFecReport(mode, 0);
+    }
+    
+    /**
+     * Retorna a correção de erros dos datagramas recebidos, para fins de diagnóstico
+     * @return A correção de erros ou null se não estiver habilitada
+     */
+    public FecDecoder getFecDecoder() {
+        return fecDecoder;
+    }
+    
+    @Override
+    public void closeCommunication() {
+        ArrayList<PendingCtrlMessage> failed = new ArrayList<PendingCtrlMessage>();
+        synchronized(this) {
+            if (stop) return;
+            try {
+                heartBeat.removeConnection(this);
+                open = false;
+                stop = true;
+                datagramChannel.close();
+            } catch (IOException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            }
+            for (int i = 0; i < sendWindow.length; i++) {
+                if (sendWindow[i] != null) failed.add(sendWindow[i]);
+                sendWindow[i] = null;
+            }
+            failed.addAll(queuedCtrlMessages);
+            queuedCtrlMessages.clear();
+        }
+        // Os resultados são concluídos fora do lock, pois as threads que os aguardam
+        // podem enviar outras mensagens
+        for (PendingCtrlMessage pending : failed) {
+            pending.cancel();
+            pending.fail(new IOException("Connection closed"));
+        }
+    }
+
+    @Override
+    public synchronized void openCommunication() throws IOException {
+        if (!stop && thread == null) {
+            // TODO Capturar esta exceção
+            datagramChannel = DatagramChannel.open();
+            open = true;
+            stop = false;
+            thread = new Thread(this);
+            thread.setName("UDP Remote Connection Thread");
+            thread.setDaemon(true);
+            thread.start();
+            heartBeat.addConnection(this);
+            if (fecMode != FecEncoder.NONE) sendFecReport(fecMode, 0);
+        }
+    }
+
+    @Override
+    public void sendCtrlMessage(ByteBuffer data) throws IOException {
+        sendCtrlMessageAsync(data);
+    }
+    
+    /**
+     * Envia a mensagem de controle sem aguardar a confirmação. A mensagem é copiada,
+     * numerada e transmitida assim que houver espaço na janela; sem confirmação, é
+     * retransmitida por até CTRL_GIVE_UP_TIME milissegundos, após o que esta
+     * UDPRemoteConnection é finalizada.
+     * @param data Conteúdo da mensagem a ser transmitida
+     * @return O resultado da entrega da mensagem
+     * @throws IOException Caso a conexão não esteja aberta ou ocorram erros de E/S
+     */
+    @Override
+    public synchronized CtrlFuture sendCtrlMessageAsync(ByteBuffer data) throws IOException {
+        if (!open) throw new IOException("Socket is not open");
+        BufferPool pool = BufferPool.getSharedPool();
+        ByteBuffer datagram = pool.acquire(data.remaining() + 10);
+        datagram.putShort(CTRL_MSG);
+        datagram.putLong(ctrlPacketCount);
+        datagram.put(data);
+        datagram.flip();
+        PendingCtrlMessage pending = new PendingCtrlMessage(ctrlPacketCount++, datagram, pool);
+        if (queuedCtrlMessages.isEmpty() && pending.packetID < oldestUnacked + CTRL_WINDOW) {
+            transmit(pending);
+        } else {
+            queuedCtrlMessages.add(pending);
+        }
+        return pending.future;
+    }
+    
+    /**
+     * Transmite a mensagem pela primeira vez e a inclui na janela
+     * @param pending Mensagem a ser transmitida
+     * @throws IOException Caso ocorram erros de E/S
+     */
+    private void transmit(PendingCtrlMessage pending) throws IOException {
+        sendWindow[(int) pending.packetID & (CTRL_WINDOW - 1)] = pending;
+        nextToTransmit = pending.packetID + 1;
+        send(pending);
+    }
+    
+    /**
+     * Envia a mensagem e agenda a sua retransmissão
+     * @param pending Mensagem a ser enviada
+     * @throws IOException Caso ocorram erros de E/S
+     */
+    private void send(PendingCtrlMessage pending) throws IOException {
+        pending.sentTime = System.nanoTime();
+        if (pending.tries++ == 0) pending.firstSentTime = pending.sentTime;
+        retransmissionTimer.schedule(pending, Math.min(rtt.getTimeout() << (pending.tries - 1), CTRL_MAX_TIMEOUT));
+        pending.datagram.position(0);
+        datagramChannel.send(pending.datagram, remoteAddress);
+        dataSent();
+    }
+    
+    /**
+     * Retira da janela a mensagem confirmada pelo host remoto, avança a janela e
+     * transmite as mensagens que aguardavam espaço nela
+     * @param packetID Código da mensagem confirmada
+     */
+    private void acknowledged(long packetID) {
+        PendingCtrlMessage pending;
+        synchronized(this) {
+            if (packetID < oldestUnacked || packetID >= nextToTransmit) return;
+            int index = (int) packetID & (CTRL_WINDOW - 1);
+            pending = sendWindow[index];
+            if (pending == null || pending.packetID != packetID) return;
+            sendWindow[index] = null;
+            pending.cancel();
+            // A confirmação de uma mensagem retransmitida pode ser de qualquer uma das transmissões
+            if (pending.tries == 1) rtt.sample(System.nanoTime() - pending.sentTime);
+            while (oldestUnacked < nextToTransmit && sendWindow[(int) oldestUnacked & (CTRL_WINDOW - 1)] == null) {
+                oldestUnacked++;
+            }
+            try {
+                while (!queuedCtrlMessages.isEmpty() && queuedCtrlMessages.peek().packetID < oldestUnacked + CTRL_WINDOW) {
+                    transmit(queuedCtrlMessages.poll());
+                }
+            } catch (IOException e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            }
+        }
+        pending.complete();
+    }
+    
+    /**
+     * Retransmite a mensagem cuja confirmação não chegou a tempo ou, após CTRL_GIVE_UP_TIME
+     * milissegundos, finaliza esta UDPRemoteConnection. Executado pela thread do temporizador.
+     * @param pending Mensagem não confirmada
+     */
+    private void ackTimedOut(PendingCtrlMessage pending) {
+        synchronized(this) {
+            int index = (int) pending.packetID & (CTRL_WINDOW - 1);
+            if (sendWindow[index] != pending) return;
+            if (open && System.nanoTime() - pending.firstSentTime < CTRL_GIVE_UP_TIME * 1000000L) {
+                try {
+                    send(pending);
+                } catch (IOException e) {
+                    // TODO Auto-generated catch block
+                    e.printStackTrace();
+                }
+                return;
+            }
+            sendWindow[index] = null;
+        }
+        pending.fail(new IOException("Ack not received after " + pending.tries + " tries"));
+        closeCommunication();
+    }
+
+    @Override
+    public synchronized void sendHeartBeat() throws IOException {
+        if (!open) throw new IOException("Socket is not open");
+        outputBuffer.clear();
+        outputBuffer.putShort(HEARTBEAT_MSG);
+        getLinkQuality().writeHeartBeat(outputBuffer);
+        outputBuffer.flip();
+        datagramChannel.send(outputBuffer, remoteAddress);
+    }
+
+    @Override
+    public void sendMessage(ByteBuffer data) throws IOException {
+        sendMessage(NORMAL_MSG, data);
+    }
+    
+    @Override
+    public void sendAggregatedMessage(ByteBuffer data) throws IOException {
+        sendMessage(AGGREGATED_MSG, data);
+    }
+    
+    @Override
+    public void sendReliableMessage(ByteBuffer data) throws IOException {
+        sendMessage(RELIABLE_MSG, data);
+    }
+    
+    /**
+     * Envia a mensagem especificada em um único datagrama
+     * @param type Tipo da mensagem
+     * @param data Conteúdo da mensagem
+     * @throws IOException Caso ocorram erros de E/S
+     */
+    private synchronized void sendMessage(short type, ByteBuffer data) throws IOException {
+        if (!open) throw new IOException("Socket is not open");
+        long now = System.currentTimeMillis();
+        boolean protect = fecEncoder != null && fecEncoder.accepts(data.remaining() + 2, now);
+        outputBuffer.clear();
+        if (protect) {
+            outputBuffer.putShort(FEC_DATA_MSG);
+            outputBuffer.putInt(fecEncoder.getNextNumber());
+        }
+        int start = outputBuffer.position();
+        outputBuffer.putShort(type);
+        outputBuffer.put(data);
+        outputBuffer.flip();
+        if (protect) {
+            outputBuffer.position(start);
+            fecEncoder.add(outputBuffer, now);
+            outputBuffer.position(0);
+        }
+        datagramChannel.send(outputBuffer, remoteAddress);
+        dataSent();
+        if (protect) {
+            // Os pacotes de paridade do grupo fechado por este datagrama
+            ByteBuffer parity;
+            while ((parity = fecEncoder.pollParity()) != null) {
+                outputBuffer.clear();
+                outputBuffer.putShort(FEC_PARITY_MSG);
+                outputBuffer.put(parity);
+                outputBuffer.flip();
+                datagramChannel.send(outputBuffer, remoteAddress);
+            }
+        }
+    }
+    
+    /**
+     * Envia ao host remoto um relatório de perdas dos datagramas recebidos
+     * @param mode Código de correção de erros solicitado
+     * @param loss Taxa de perdas
+     */
+    private synchronized void sendFecReport(int mode, double loss) {
+        try {
+            if (open) {
+                outputBuffer.clear();
+                outputBuffer.putShort(FEC_REPORT_MSG);
+                FecDecoder.writeReport(outputBuffer, mode, loss);
+                outputBuffer.flip();
+                datagramChannel.send(outputBuffer, remoteAddress);
+            }
+        } catch (IOException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Aplica um relatório de perdas recebido do host remoto
+     * @param mode Código de correção de erros solicitado pelo host remoto
+     * @param loss Taxa de perdas medida pelo host remoto
+     */
+    private synchronized void fecReportReceived(int mode, double loss) {
+        if (mode == FecEncoder.NONE) {
+            fecEncoder = null;
+        } else {
+            if (fecEncoder == null) fecEncoder = new FecEncoder(outputBuffer.capacity());
+            fecEncoder.reportReceived(mode, loss, System.currentTimeMillis());
+        }
+    }
+    
+    /**
+     * Envia uma mensagem de confirmação de recebimento ao host remoto
+     * @param ackCode Código que indica a identidade do pacote confirmado
+     */
+    private synchronized void sendAck(long ackCode) {
+        try {
+            if (open) {
+                outputBuffer.clear();
+                outputBuffer.putShort(ACK_MSG);
+                outputBuffer.putLong(ackCode);
+                outputBuffer.flip();
+                datagramChannel.send(outputBuffer, remoteAddress);
+                dataSent();
+            }
+        } catch (IOException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+    }
+    
+    public void run() {
+        try {
+            while(!stop) {
+                inputBuffer.clear();
+                datagramChannel.receive(inputBuffer);
+                setActive(true);
+                inputBuffer.flip();
+                if (inputBuffer.remaining() >= 2) {
+                    receiveDatagram(inputBuffer.getShort(), inputBuffer);
+                    FecDecoder decoder = fecDecoder;
+                    if (decoder != null) {
+                        // Datagramas reconstruídos a partir dos pacotes de paridade
+                        ByteBuffer recovered;
+                        while ((recovered = decoder.pollRecovered()) != null) {
+                            if (recovered.remaining() >= 2) receiveDatagram(recovered.getShort(), recovered);
+                        }
+                        long now = System.currentTimeMillis();
+                        if (decoder.isReportDue(now)) {
+                            synchronized(this) {
+                                outputBuffer.clear();
+                                outputBuffer.putShort(FEC_REPORT_MSG);
+                                decoder.writeReport(outputBuffer, now);
+                                outputBuffer.flip();
+                                if (open) datagramChannel.send(outputBuffer, remoteAddress);
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        } finally {
+            closeCommunication();
+            callback.connectionLost(this);
+        }
+    }
+    
+    /**
+     * Processa um datagrama recebido
+     * @param msgType Tipo da mensagem
+     * @param inputBuffer Conteúdo da mensagem
+     * @throws IOException Caso o tipo da mensagem seja desconhecido
+     */
+    private void receiveDatagram(short msgType, ByteBuffer inputBuffer) throws IOException {
+        if (msgType == FEC_DATA_MSG) { // Datagrama da aplicação protegido pela correção de erros
+            if (inputBuffer.remaining() < FecEncoder.DATA_HEADER_SIZE + 2) return;
+            int number = inputBuffer.getInt();
+            FecDecoder decoder = fecDecoder;
+            // O datagrama já foi reconstruído a partir dos pacotes de paridade
+            if (decoder != null && !decoder.dataReceived(number, inputBuffer)) return;
+            msgType = inputBuffer.getShort();
+        }
+        if (msgType == NORMAL_MSG) { // Mensagem da aplicação
+            callback.packetReceived(this, inputBuffer);
+        } else if (msgType == AGGREGATED_MSG) { // Mensagens da aplicação agrupadas
+            callback.aggregatedPacketReceived(this, inputBuffer);
+        } else if (msgType == RELIABLE_MSG) { // Mensagem da entrega confiável
+            callback.reliablePacketReceived(this, inputBuffer);
+        } else if (msgType == CTRL_MSG) {	// Mensagem de controle
+            long msgCode = inputBuffer.getLong();
+            int status = ctrlMessages.offer(msgCode, inputBuffer);
+            // Mensagens muito adiantadas não são confirmadas, para que sejam retransmitidas
+            if (status != SequenceWindow.REFUSED) sendAck(msgCode);
+            if (status == SequenceWindow.DELIVER) {
+                callback.ctrlPacketReceived(this, inputBuffer);
+                // Processa as mensagens seguintes que chegaram antes desta
+                ByteBuffer held;
+                while ((held = ctrlMessages.poll()) != null) {
+                    callback.ctrlPacketReceived(this, held);
+                }
+            }
+        } else if (msgType == HEARTBEAT_MSG) {
+            heartBeatReceived(inputBuffer);
+        } else if (msgType == ACK_MSG) {
+        	// Remove a mensagem de controle da janela e conclui o seu resultado
+            if (inputBuffer.remaining() == 8) {
+                acknowledged(inputBuffer.getLong());
+            }
+        } else if (msgType == FEC_PARITY_MSG) {
+            FecDecoder decoder = fecDecoder;
+            if (decoder != null) decoder.parityReceived(inputBuffer);
+        } else if (msgType == FEC_REPORT_MSG) {
+            if (inputBuffer.remaining() == FecDecoder.REPORT_SIZE) {
+                fecReportReceived(inputBuffer.get(inputBuffer.position()), FecDecoder.readLoss(inputBuffer));
+            }
+        } else {
+            throw new IOException("Unknown message received");
+        }
+    }
+    
+    /**
+     * Mensagem de controle transmitida e ainda não confirmada
+     * @author Juliano
+     *
+     */
+    private class PendingCtrlMessage extends TimingWheel.Timeout {
+        private long packetID;
+        private ByteBuffer datagram;
+        private BufferPool pool;
+        private CtrlFuture future;
+        private int tries;
+        private long firstSentTime;
+        private long sentTime;
+        private PendingCtrlMessage(long packetID, ByteBuffer datagram, BufferPool pool) {
+            this.packetID = packetID;
+            this.datagram = datagram;
+            this.pool = pool;
+            future = new CtrlFuture();
+        }
+        protected void expired() {
+            ackTimedOut(this);
+        }
+        private void complete() {
+            pool.release(datagram);
+            future.complete(null);
+        }
+        private void fail(IOException failure) {
+            pool.release(datagram);
+            future.complete(failure);
+        }
+    }
+    
+}
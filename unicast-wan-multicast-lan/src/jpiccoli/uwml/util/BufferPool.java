@@ -0,0 +1,128 @@
+package jpiccoli.uwml.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct buffers in power of two size classes. Buffers are carved
+ * out of slabs, large direct buffers allocated once, and are borrowed for a
+ * single operation instead of being owned by a connection, so idle
+ * connections hold no off-heap memory.
+ * <p>
+ * Every relay IOThread has its own pool; the shared pool serves the other
+ * threads. Buffers larger than the largest class are allocated on demand
+ * and are not kept.
+ */
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 64;
+    public static final int MAX_BUFFER_SIZE = 64 * 1024;
+    public static final int SLAB_SIZE = 256 * 1024;
+    
+    private static BufferPool sharedPool;
+    
+    private ArrayDeque<ByteBuffer>[] freeLists;
+    private long slabBytes;
+    private int borrowed;
+    private long borrowedBytes;
+    private long peakBorrowedBytes;
+    private long misses;
+    private long oversized;
+    
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool() {
+        int classes = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE) + 1;
+        freeLists = new ArrayDeque[classes];
+        for (int i = 0; i < classes; i++) {
+            freeLists[i] = new ArrayDeque<ByteBuffer>();
+        }
+    }
+    
+    public static synchronized BufferPool getSharedPool() {
+        if (sharedPool == null) sharedPool = new BufferPool();
+        return sharedPool;
+    }
+    
+    private static int sizeClass(int size) {
+        if (size <= MIN_BUFFER_SIZE) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+    
+    /**
+     * Borrows a cleared buffer whose limit is size. The capacity may be
+     * larger; the buffer must be given back with release.
+     */
+    public synchronized ByteBuffer acquire(int size) {
+        ByteBuffer buffer;
+        if (size > MAX_BUFFER_SIZE) {
+            oversized++;
+            buffer = ByteBuffer.allocateDirect(size);
+        } else {
+            int sizeClass = sizeClass(size);
+            buffer = freeLists[sizeClass].poll();
+            if (buffer == null) {
+                misses++;
+                refill(sizeClass);
+                buffer = freeLists[sizeClass].poll();
+            }
+            borrowed++;
+            borrowedBytes += buffer.capacity();
+            if (borrowedBytes > peakBorrowedBytes) peakBorrowedBytes = borrowedBytes;
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+    
+    public synchronized void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (capacity > MAX_BUFFER_SIZE || capacity < MIN_BUFFER_SIZE || Integer.bitCount(capacity) != 1) return;
+        borrowed--;
+        borrowedBytes -= capacity;
+        freeLists[sizeClass(capacity)].push(buffer);
+    }
+    
+    private void refill(int sizeClass) {
+        int bufferSize = MIN_BUFFER_SIZE << sizeClass;
+        int count = Math.max(SLAB_SIZE / bufferSize, 1);
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * count);
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+            freeLists[sizeClass].push(slab.slice());
+        }
+        slabBytes += bufferSize * count;
+    }
+    
+    /**
+     * Off-heap memory held by the slabs of this pool
+     */
+    public synchronized long getSlabBytes() {
+        return slabBytes;
+    }
+    
+    public synchronized int getBorrowedBuffers() {
+        return borrowed;
+    }
+    
+    public synchronized long getBorrowedBytes() {
+        return borrowedBytes;
+    }
+    
+    public synchronized long getPeakBorrowedBytes() {
+        return peakBorrowedBytes;
+    }
+    
+    /**
+     * Requests that found no free buffer of their class and allocated a slab
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+    
+    /**
+     * Requests larger than MAX_BUFFER_SIZE, served without pooling
+     */
+    public synchronized long getOversized() {
+        return oversized;
+    }
+    
+}
@@ -0,0 +1,280 @@
+package jpiccoli.uwml.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Receive side of the forward error correction of a UDP connection, see
+ * FecEncoder. Numbered datagrams are copied into a window of the latest
+ * WINDOW_SIZE ones, from which the lost ones are rebuilt when enough parity
+ * packets of their group arrive. Rebuilt datagrams are handed over late,
+ * after the ones that followed them; datagrams that arrive after being
+ * rebuilt are reported as duplicates.
+ * <p>
+ * The decoder also measures the fraction of the numbered datagrams lost
+ * before repair, and produces the reports that tell the sender which code
+ * to use and how much parity to send:
+ * <pre>
+ * mode (byte), loss rate (unsigned short, in 1/65535 units)
+ * </pre>
+ * Not thread safe: used by the thread that receives the datagrams.
+ */
+public class FecDecoder {
+
+    public static final int WINDOW_SIZE = 64;
+
+    /**
+     * Parity groups waiting for their missing datagrams to be rebuilt
+     */
+    public static final int PENDING_GROUPS = 8;
+
+    public static final int REPORT_SIZE = 3;
+
+    /**
+     * Time, in milliseconds, between two reports
+     */
+    public static final long REPORT_INTERVAL = 500;
+
+    private int mode;
+
+    private byte[][] window;
+    private int[] numbers;
+    private int[] lengths;
+    private boolean started;
+    private int highest;
+
+    private ParityGroup[] groups;
+    private int nextGroup;
+
+    private ArrayDeque<ByteBuffer> recovered;
+    private long recoveredCount;
+
+    private long lastReport;
+    private int intervalFirst;
+    private int intervalReceived;
+    private double loss;
+
+    /**
+     * @param mode Code requested from the sender
+     */
+    public FecDecoder(int mode) {
+        this.mode = mode;
+        window = new byte[WINDOW_SIZE][];
+        numbers = new int[WINDOW_SIZE];
+        lengths = new int[WINDOW_SIZE];
+        groups = new ParityGroup[PENDING_GROUPS];
+        recovered = new ArrayDeque<ByteBuffer>();
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public void setMode(int mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Smoothed fraction of the numbered datagrams lost before repair
+     */
+    public double getLoss() {
+        return loss;
+    }
+
+    /**
+     * Number of datagrams rebuilt from parity packets
+     */
+    public long getRecoveredCount() {
+        return recoveredCount;
+    }
+
+    /**
+     * Keeps a copy of a numbered datagram, from its position to its limit
+     * @return False if the datagram was already received or rebuilt
+     */
+    public boolean dataReceived(int number, ByteBuffer datagram) {
+        if (!started) {
+            started = true;
+            highest = number - 1;
+            intervalFirst = number;
+        }
+        int ahead = number - highest;
+        if (ahead <= -WINDOW_SIZE) return true;
+        if (ahead > 0) {
+            highest = number;
+        } else if (isPresent(number)) {
+            return false;
+        }
+        store(number, datagram.duplicate());
+        intervalReceived++;
+        return true;
+    }
+
+    private boolean isPresent(int number) {
+        int index = number & (WINDOW_SIZE - 1);
+        return numbers[index] == number && lengths[index] > 0;
+    }
+
+    private boolean isInWindow(int number) {
+        return highest - number < WINDOW_SIZE && highest - number >= 0;
+    }
+
+    private void store(int number, ByteBuffer datagram) {
+        int index = number & (WINDOW_SIZE - 1);
+        int length = datagram.remaining();
+        byte[] slot = window[index];
+        if (slot == null || slot.length < length + 2) slot = window[index] = new byte[Math.max(length + 2, 64)];
+        slot[0] = (byte) (length >> 8);
+        slot[1] = (byte) length;
+        datagram.get(slot, 2, length);
+        numbers[index] = number;
+        lengths[index] = length + 2;
+    }
+
+    /**
+     * Keeps a parity packet, from its position to its limit, and rebuilds
+     * the datagrams of its group if it has enough parity packets. The
+     * rebuilt datagrams are taken with pollRecovered.
+     */
+    public void parityReceived(ByteBuffer parity) {
+        if (parity.remaining() < FecEncoder.PARITY_HEADER_SIZE + 2) return;
+        int first = parity.getInt();
+        int count = parity.get() & 0xFF;
+        int index = parity.get() & 0xFF;
+        int parityCount = parity.get() & 0xFF;
+        int parityMode = parity.get();
+        if (count == 0 || count > ReedSolomon.MAX_DATA || index >= parityCount || parityCount > ReedSolomon.MAX_PARITY) return;
+        if (!started || count > WINDOW_SIZE) return;
+        // The last datagrams of the group may have been lost: the parity tells they were sent
+        int last = first + count - 1;
+        if (last - highest > 0 && last - highest < WINDOW_SIZE) highest = last;
+        if (!isInWindow(first) || !isInWindow(last)) return;
+        ParityGroup group = null;
+        for (int i = 0; i < groups.length; i++) {
+            if (groups[i] != null && groups[i].first == first) group = groups[i];
+        }
+        if (group == null) {
+            group = new ParityGroup(first, count, parityCount, parityMode);
+            groups[nextGroup] = group;
+            nextGroup = (nextGroup + 1) % groups.length;
+        }
+        if (group.count != count || group.mode != parityMode || index >= group.vectors.length) return;
+        if (group.vectors[index] == null) {
+            byte[] vector = new byte[parity.remaining()];
+            parity.get(vector);
+            group.vectors[index] = vector;
+            group.received++;
+        }
+        if (recover(group)) {
+            for (int i = 0; i < groups.length; i++) {
+                if (groups[i] == group) groups[i] = null;
+            }
+        }
+    }
+
+    /**
+     * @return True if the group is complete or can no longer be repaired
+     */
+    private boolean recover(ParityGroup group) {
+        int[] missing = new int[group.count];
+        int missingCount = 0;
+        for (int j = 0; j < group.count; j++) {
+            if (!isPresent(group.first + j)) missing[missingCount++] = j;
+        }
+        if (missingCount == 0) return true;
+        if (missingCount > group.received) return false;
+        // The first missingCount parity packets received
+        int[] selected = new int[missingCount];
+        for (int p = 0, s = 0; s < missingCount; p++) {
+            if (group.vectors[p] != null) selected[s++] = p;
+        }
+        int[][] matrix = new int[missingCount][missingCount];
+        byte[][] syndromes = new byte[missingCount][];
+        for (int r = 0; r < missingCount; r++) {
+            int p = selected[r];
+            byte[] syndrome = group.vectors[p].clone();
+            for (int j = 0; j < group.count; j++) {
+                int index = (group.first + j) & (WINDOW_SIZE - 1);
+                if (isPresent(group.first + j)) {
+                    ReedSolomon.multiplyAdd(FecEncoder.coefficient(group.mode, p, j), window[index], Math.min(lengths[index], syndrome.length), syndrome);
+                }
+            }
+            syndromes[r] = syndrome;
+            for (int c = 0; c < missingCount; c++) {
+                matrix[r][c] = FecEncoder.coefficient(group.mode, p, missing[c]);
+            }
+        }
+        if (!ReedSolomon.invert(matrix)) return true;
+        int length = syndromes[0].length;
+        for (int c = 0; c < missingCount; c++) {
+            byte[] vector = new byte[length];
+            for (int r = 0; r < missingCount; r++) {
+                ReedSolomon.multiplyAdd(matrix[c][r], syndromes[r], length, vector);
+            }
+            int size = ((vector[0] & 0xFF) << 8) | (vector[1] & 0xFF);
+            if (size + 2 > length) continue;
+            ByteBuffer datagram = ByteBuffer.wrap(vector, 2, size);
+            store(group.first + missing[c], datagram.duplicate());
+            recovered.add(datagram.slice());
+            recoveredCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Takes the next rebuilt datagram
+     * @return The datagram or null if there is none
+     */
+    public ByteBuffer pollRecovered() {
+        return recovered.poll();
+    }
+
+    public boolean isReportDue(long now) {
+        return now - lastReport >= REPORT_INTERVAL;
+    }
+
+    /**
+     * Writes a report and starts a new measurement interval
+     */
+    public void writeReport(ByteBuffer report, long now) {
+        if (started) {
+            int expected = highest + 1 - intervalFirst;
+            if (expected > 0) {
+                double intervalLoss = Math.max(expected - intervalReceived, 0) / (double) expected;
+                loss = lastReport == 0 ? intervalLoss : (loss + intervalLoss) / 2;
+            }
+            intervalFirst = highest + 1;
+            intervalReceived = 0;
+        }
+        lastReport = now;
+        writeReport(report, mode, loss);
+    }
+
+    public static void writeReport(ByteBuffer report, int mode, double loss) {
+        report.put((byte) mode);
+        report.putShort((short) Math.round(loss * 0xFFFF));
+    }
+
+    /**
+     * Reads a report written by writeReport
+     * @return The loss rate reported; the mode is the first byte
+     */
+    public static double readLoss(ByteBuffer report) {
+        return (report.getShort(report.position() + 1) & 0xFFFF) / (double) 0xFFFF;
+    }
+
+    private static class ParityGroup {
+        private int first;
+        private int count;
+        private int mode;
+        private byte[][] vectors;
+        private int received;
+        private ParityGroup(int first, int count, int parityCount, int mode) {
+            this.first = first;
+            this.count = count;
+            this.mode = mode;
+            vectors = new byte[parityCount][];
+        }
+    }
+
+}
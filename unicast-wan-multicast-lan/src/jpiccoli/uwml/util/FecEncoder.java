@@ -0,0 +1,247 @@
+package jpiccoli.uwml.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Send side of the forward error correction of a UDP connection. Application
+ * datagrams are numbered and split in groups; when a group is closed, parity
+ * packets computed from it are queued to be sent right after it, so the
+ * receiver repairs losses without a round trip. With XOR, a group has one
+ * parity packet and repairs a single loss; with Reed-Solomon, it has as many
+ * parity packets as losses it repairs.
+ * <p>
+ * The encoder is driven by the loss reports of the receiver, see FecDecoder:
+ * it numbers datagrams only while reports keep arriving, and sizes the groups
+ * and the number of parity packets to the reported loss rate.
+ * <p>
+ * A datagram is protected as a whole, message type included. Parity packets
+ * cover the length of each datagram followed by its content, padded with
+ * zeros to the longest one of the group:
+ * <pre>
+ * first number (int), group size (byte), parity index (byte),
+ * parity count (byte), mode (byte), parity of (length (short), datagram)
+ * </pre>
+ * Not thread safe: used under the lock of the connection.
+ */
+public class FecEncoder {
+
+    public static final int NONE = 0;
+    public static final int XOR = 1;
+    public static final int REED_SOLOMON = 2;
+
+    /**
+     * Bytes added in front of a protected datagram: its number
+     */
+    public static final int DATA_HEADER_SIZE = 4;
+
+    public static final int PARITY_HEADER_SIZE = 8;
+
+    /**
+     * Largest XOR group, used when loss is low
+     */
+    public static final int MAX_XOR_GROUP = 16;
+
+    public static final int REED_SOLOMON_GROUP = 10;
+
+    /**
+     * Loss rates below this one are not worth any parity
+     */
+    public static final double MIN_LOSS = 0.002;
+
+    /**
+     * Fraction of the groups that may lose more datagrams than they have
+     * parity packets, assuming independent losses
+     */
+    public static final double TARGET_GROUP_LOSS = 0.01;
+
+    /**
+     * Time, in milliseconds, after which a group that is not full is closed
+     * by the next datagram, so slow streams are repaired in time to be played
+     */
+    public static final long MAX_GROUP_DELAY = 60;
+
+    /**
+     * Time, in milliseconds, without reports after which datagrams are no
+     * longer numbered
+     */
+    public static final long REPORT_TIMEOUT = 5000;
+
+    private int mode;
+    private int maxDatagramSize;
+    private long lastReport;
+    private double loss;
+
+    private int groupSize;
+    private int parityCount;
+
+    private int nextNumber;
+    private int groupFirst;
+    private int groupCount;
+    private long groupStart;
+    private int groupLength;
+
+    /**
+     * Datagrams of the open group, each preceded by its length (short)
+     */
+    private byte[][] group;
+    private int[] lengths;
+
+    private ArrayDeque<ByteBuffer> parities;
+
+    /**
+     * @param maxDatagramSize Largest datagram the receiver accepts; larger
+     * ones, once parity overhead is added, are sent unprotected
+     */
+    public FecEncoder(int maxDatagramSize) {
+        this.maxDatagramSize = maxDatagramSize;
+        group = new byte[Math.max(MAX_XOR_GROUP, REED_SOLOMON_GROUP)][];
+        lengths = new int[group.length];
+        parities = new ArrayDeque<ByteBuffer>();
+    }
+
+    /**
+     * Applies a loss report of the receiver. A change of the code or of the
+     * group layout discards the open group, whose datagrams are left without
+     * parity.
+     * @param mode Code requested by the receiver
+     * @param loss Fraction of the datagrams lost
+     */
+    public void reportReceived(int mode, double loss, long now) {
+        int previousMode = this.mode;
+        int previousGroupSize = groupSize;
+        int previousParityCount = parityCount;
+        this.mode = mode;
+        this.loss = loss;
+        lastReport = now;
+        if (loss < MIN_LOSS) {
+            groupSize = 0;
+            parityCount = 0;
+        } else if (mode == REED_SOLOMON) {
+            groupSize = REED_SOLOMON_GROUP;
+            parityCount = 1;
+            while (parityCount < ReedSolomon.MAX_PARITY && lossTail(groupSize + parityCount, loss, parityCount) > TARGET_GROUP_LOSS) {
+                parityCount++;
+            }
+        } else {
+            // The largest group that rarely loses more than one datagram
+            groupSize = MAX_XOR_GROUP;
+            while (groupSize > 2 && lossTail(groupSize + 1, loss, 1) > TARGET_GROUP_LOSS) {
+                groupSize--;
+            }
+            parityCount = 1;
+        }
+        if (mode != previousMode || groupSize != previousGroupSize || parityCount != previousParityCount) {
+            groupCount = 0;
+        }
+    }
+
+    /**
+     * Probability that more than repairable of count packets are lost
+     */
+    private static double lossTail(int count, double loss, int repairable) {
+        double term = Math.pow(1 - loss, count);
+        double sum = term;
+        for (int i = 1; i <= repairable; i++) {
+            term *= (count - i + 1) / (double) i * loss / (1 - loss);
+            sum += term;
+        }
+        return 1 - sum;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public double getLoss() {
+        return loss;
+    }
+
+    public int getGroupSize() {
+        return groupSize;
+    }
+
+    public int getParityCount() {
+        return parityCount;
+    }
+
+    /**
+     * Whether a datagram of the given size is to be numbered and protected
+     */
+    public boolean accepts(int size, long now) {
+        if (mode == NONE || now - lastReport > REPORT_TIMEOUT) return false;
+        return size + 2 + PARITY_HEADER_SIZE + 2 <= maxDatagramSize;
+    }
+
+    /**
+     * Number of the next datagram, to be written in front of it
+     */
+    public int getNextNumber() {
+        return nextNumber;
+    }
+
+    /**
+     * Adds a numbered datagram, from its position to its limit, to the open
+     * group. Closing the group queues its parity packets.
+     */
+    public void add(ByteBuffer datagram, long now) {
+        int number = nextNumber++;
+        if (groupSize == 0) {
+            // A later group must not cover this number
+            groupCount = 0;
+            return;
+        }
+        if (groupCount == 0) {
+            groupFirst = number;
+            groupStart = now;
+            groupLength = 0;
+        }
+        int length = datagram.remaining();
+        byte[] slot = group[groupCount];
+        if (slot == null || slot.length < length + 2) slot = group[groupCount] = new byte[length + 2];
+        slot[0] = (byte) (length >> 8);
+        slot[1] = (byte) length;
+        datagram.duplicate().get(slot, 2, length);
+        lengths[groupCount] = length + 2;
+        groupLength = Math.max(groupLength, length + 2);
+        groupCount++;
+        if (groupCount >= groupSize || now - groupStart >= MAX_GROUP_DELAY) {
+            closeGroup();
+        }
+    }
+
+    private void closeGroup() {
+        for (int p = 0; p < parityCount; p++) {
+            ByteBuffer parity = ByteBuffer.allocate(PARITY_HEADER_SIZE + groupLength);
+            parity.putInt(groupFirst);
+            parity.put((byte) groupCount);
+            parity.put((byte) p);
+            parity.put((byte) parityCount);
+            parity.put((byte) mode);
+            byte[] vector = new byte[groupLength];
+            for (int j = 0; j < groupCount; j++) {
+                ReedSolomon.multiplyAdd(coefficient(mode, p, j), group[j], lengths[j], vector);
+            }
+            parity.put(vector);
+            parity.flip();
+            parities.add(parity);
+        }
+        groupCount = 0;
+    }
+
+    /**
+     * Takes the next parity packet to be sent
+     * @return The packet or null if there is none
+     */
+    public ByteBuffer pollParity() {
+        return parities.poll();
+    }
+
+    /**
+     * Coefficient of data packet index in parity packet parity
+     */
+    static int coefficient(int mode, int parity, int index) {
+        return mode == XOR ? 1 : ReedSolomon.coefficient(parity, index);
+    }
+
+}
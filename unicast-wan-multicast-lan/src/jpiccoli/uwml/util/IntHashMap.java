@@ -0,0 +1,123 @@
+package jpiccoli.uwml.util;
+
+import java.util.Collection;
+
+/**
+ * Open addressing hash map keyed by primitive ints. Lookups neither box the
+ * key nor allocate. Like LimitedList, this class is not synchronized.
+ */
+public class IntHashMap<V> {
+
+    private int[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+    
+    public IntHashMap() {
+        this(16);
+    }
+    
+    public IntHashMap(int initialCapacity) {
+        int capacity = 2;
+        while (capacity < initialCapacity * 2) capacity <<= 1;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+    
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+    
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int index = hash(key) & mask;
+        Object value;
+        while ((value = values[index]) != null) {
+            if (keys[index] == key) return (V) value;
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) throw new NullPointerException();
+        int index = hash(key) & mask;
+        Object current;
+        while ((current = values[index]) != null) {
+            if (keys[index] == key) {
+                values[index] = value;
+                return (V) current;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        if (++size * 2 > values.length) resize(values.length * 2);
+        return null;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int index = hash(key) & mask;
+        Object value;
+        while ((value = values[index]) != null) {
+            if (keys[index] == key) {
+                delete(index);
+                return (V) value;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Adds every value of this map to target
+     */
+    @SuppressWarnings("unchecked")
+    public void values(Collection<? super V> target) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) target.add((V) values[i]);
+        }
+    }
+    
+    /**
+     * Removes the slot at index and shifts back the entries of the same
+     * probe sequence, so no tombstones are left behind.
+     */
+    private void delete(int index) {
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (values[next] != null) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[hole] = null;
+        size--;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        size = 0;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) put(oldKeys[i], (V) oldValues[i]);
+        }
+    }
+    
+}
@@ -0,0 +1,116 @@
+package jpiccoli.uwml.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds with a fixed set of log-linear
+ * buckets: every power of two is split in 8 buckets, so a quantile is
+ * reported within 12.5% of the recorded value. Recording is a few atomic
+ * increments and never allocates; it may be called from any thread.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private AtomicLongArray counts;
+    private AtomicLong count;
+    private AtomicLong total;
+    private AtomicLong max;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        total = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    /**
+     * Copy of the histogram as it is now. Recordings made while copying may
+     * be partially included.
+     */
+    public LatencyHistogram(LatencyHistogram histogram) {
+        this();
+        add(histogram);
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Largest value that falls in the bucket
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos));
+    }
+
+    /**
+     * Adds the recordings of another histogram to this one
+     */
+    public void add(LatencyHistogram histogram) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucketCount = histogram.counts.get(i);
+            if (bucketCount != 0) counts.addAndGet(i, bucketCount);
+        }
+        count.addAndGet(histogram.count.get());
+        total.addAndGet(histogram.total.get());
+        long nanos = histogram.max.get();
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos));
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotal() {
+        return total.get();
+    }
+
+    public long getMean() {
+        long count = this.count.get();
+        return count == 0 ? 0 : total.get() / count;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Smallest bucket bound that at least the given fraction of the
+     * recordings do not exceed, capped by the largest recording
+     * @param quantile Between 0 and 1
+     */
+    public long getValueAtQuantile(double quantile) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+}
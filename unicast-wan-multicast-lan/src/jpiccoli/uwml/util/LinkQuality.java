@@ -0,0 +1,128 @@
+package jpiccoli.uwml.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Round trip time and interarrival jitter of a connection, measured with
+ * the timestamps its heartbeats carry. Every heartbeat carries the time it
+ * was sent, the timestamp of the last heartbeat received from the peer and
+ * how long ago that one arrived, so each side samples the round trip from
+ * the heartbeats of the other without replying to them, as RTCP does with
+ * its sender reports. A heartbeat may also ask the peer to reply at once,
+ * to check that it is still alive:
+ * <pre>
+ * timestamp (int), echoed timestamp (int), echo delay (int), flags (byte)
+ * </pre>
+ * Times are in microseconds of each side's own clock and wrap around every
+ * 71 minutes; the echoed timestamp is 0 until a heartbeat arrives. Empty
+ * heartbeats, sent by older peers, are ignored.
+ * <p>
+ * Jitter is estimated as in RFC 3550, from the spacing of consecutive
+ * heartbeats at the sender and at the receiver. The round trip estimator
+ * may also be fed by other exchanges, such as the ACKs of control messages.
+ */
+public class LinkQuality {
+
+    public static final int HEARTBEAT_SIZE = 13;
+
+    /**
+     * Flag of the heartbeats the peer must reply to
+     */
+    public static final int REPLY_REQUESTED = 1;
+
+    private RttEstimator rtt;
+
+    /**
+     * Timestamp of the last heartbeat received from the peer and when it
+     * arrived, in nanoseconds of this side's clock
+     */
+    private boolean received;
+    private int peerTimestamp;
+    private long receivedTime;
+
+    /**
+     * In nanoseconds
+     */
+    private long jitter;
+
+    private boolean replyRequested;
+
+    public LinkQuality(RttEstimator rtt) {
+        this.rtt = rtt;
+    }
+
+    public RttEstimator getRtt() {
+        return rtt;
+    }
+
+    /**
+     * Smoothed variation of the transit time of the heartbeats, in
+     * nanoseconds, or 0 before the second one
+     */
+    public synchronized long getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Makes the next heartbeat written ask the peer for a reply
+     */
+    public synchronized void requestReply() {
+        replyRequested = true;
+    }
+
+    /**
+     * Writes the payload of a heartbeat about to be sent
+     */
+    public synchronized void writeHeartBeat(ByteBuffer heartBeat) {
+        long now = System.nanoTime();
+        heartBeat.putInt(timestamp(now));
+        if (received) {
+            heartBeat.putInt(peerTimestamp);
+            heartBeat.putInt((int) ((now - receivedTime) / 1000));
+        } else {
+            heartBeat.putInt(0);
+            heartBeat.putInt(0);
+        }
+        heartBeat.put((byte) (replyRequested ? REPLY_REQUESTED : 0));
+        replyRequested = false;
+    }
+
+    /**
+     * Reads the payload of a heartbeat received, from its position
+     * @return True if the peer asked for a heartbeat in reply
+     */
+    public boolean heartBeatReceived(ByteBuffer heartBeat) {
+        if (heartBeat.remaining() < HEARTBEAT_SIZE) return false;
+        long now = System.nanoTime();
+        int timestamp = heartBeat.getInt();
+        int echoed = heartBeat.getInt();
+        int delay = heartBeat.getInt();
+        boolean reply = (heartBeat.get() & REPLY_REQUESTED) != 0;
+        if (echoed != 0) {
+            // Negative when the heartbeat echoed was sent before a clock wrap
+            rtt.sample((timestamp(now) - echoed - delay) * 1000L);
+        }
+        synchronized(this) {
+            if (received) {
+                int sent = timestamp - peerTimestamp;
+                // Reordered heartbeats are older than the last one
+                if (sent <= 0) return reply;
+                long difference = (now - receivedTime) - sent * 1000L;
+                jitter += (Math.abs(difference) - jitter) / 16;
+            }
+            received = true;
+            peerTimestamp = timestamp;
+            receivedTime = now;
+        }
+        return reply;
+    }
+
+    /**
+     * Microseconds of the given time, never 0, which means no timestamp
+     */
+    private static int timestamp(long nanos) {
+        int timestamp = (int) (nanos / 1000);
+        return timestamp == 0 ? 1 : timestamp;
+    }
+
+}
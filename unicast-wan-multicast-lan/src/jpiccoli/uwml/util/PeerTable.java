@@ -0,0 +1,240 @@
+package jpiccoli.uwml.util;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * Open addressing map keyed by the IP address and port of a peer. Keys are
+ * packed into primitives, so an IPv4 lookup neither allocates nor hashes
+ * the InetSocketAddress; an IPv6 lookup only copies the 16 address bytes.
+ * <p>
+ * The table grows without pausing: when it is half full a table twice as
+ * large is created and every put or remove moves a few entries from the old
+ * one, which lookups keep checking until it is empty. Like IntHashMap, this
+ * class is not synchronized.
+ */
+public class PeerTable<V> {
+
+    private static final int MIGRATION_STEP = 64;
+    private static final Object DELETED = new Object();
+    
+    private Table current;
+    private Table previous;
+    private int migrated;
+    private int size;
+    
+    /**
+     * Key of the last address unpacked. Keeps lookups free of allocation.
+     */
+    private long keyHigh;
+    private long keyLow;
+    private int keyTag;
+    
+    public PeerTable() {
+        this(16);
+    }
+    
+    public PeerTable(int initialCapacity) {
+        int capacity = 2;
+        while (capacity < initialCapacity * 2) capacity <<= 1;
+        current = new Table(capacity);
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public V get(SocketAddress address) {
+        if (!unpack(address)) return null;
+        V value = current.get(keyHigh, keyLow, keyTag);
+        if (value == null && previous != null) value = previous.get(keyHigh, keyLow, keyTag);
+        return value;
+    }
+    
+    public V put(SocketAddress address, V value) {
+        if (value == null) throw new NullPointerException();
+        if (!unpack(address)) throw new IllegalArgumentException("Unresolved address: " + address);
+        if (previous != null) migrate();
+        int index = current.find(keyHigh, keyLow, keyTag);
+        if (index >= 0) return current.replace(index, value);
+        V old = null;
+        if (previous != null) {
+            index = previous.find(keyHigh, keyLow, keyTag);
+            if (index >= 0) {
+                old = previous.delete(index);
+                size--;
+            }
+        }
+        current.insert(keyHigh, keyLow, keyTag, value);
+        if (++size * 2 > current.values.length && previous == null) {
+            previous = current;
+            current = new Table(previous.values.length * 2);
+            migrated = 0;
+        }
+        return old;
+    }
+    
+    public V remove(SocketAddress address) {
+        if (!unpack(address)) return null;
+        if (previous != null) migrate();
+        int index = current.find(keyHigh, keyLow, keyTag);
+        if (index >= 0) {
+            size--;
+            return current.remove(index);
+        }
+        if (previous != null) {
+            index = previous.find(keyHigh, keyLow, keyTag);
+            if (index >= 0) {
+                size--;
+                return previous.delete(index);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Moves the next entries of the old table to the current one. A moved
+     * entry is marked as deleted in the old table, so that lookups, which
+     * check both, never find it there once it is removed from the current
+     * one.
+     */
+    private void migrate() {
+        int end = Math.min(migrated + MIGRATION_STEP, previous.values.length);
+        for (; migrated < end; migrated++) {
+            Object value = previous.values[migrated];
+            if (value != null && value != DELETED) {
+                current.insert(previous.high[migrated], previous.low[migrated], previous.tags[migrated], value);
+                previous.delete(migrated);
+            }
+        }
+        if (migrated == previous.values.length) previous = null;
+    }
+    
+    /**
+     * Packs the address into keyHigh, keyLow and keyTag. The tag holds the
+     * port and the address family, so IPv4 and IPv6 keys never collide.
+     * @return False if the address is not resolved
+     */
+    private boolean unpack(SocketAddress socketAddress) {
+        InetSocketAddress address = (InetSocketAddress) socketAddress;
+        InetAddress inetAddress = address.getAddress();
+        if (inetAddress == null) return false;
+        if (inetAddress instanceof Inet4Address) {
+            // The hash code of an IPv4 address is the address itself
+            keyHigh = 0;
+            keyLow = inetAddress.hashCode() & 0xFFFFFFFFL;
+            keyTag = (4 << 16) | address.getPort();
+        } else {
+            byte[] bytes = inetAddress.getAddress();
+            long high = 0;
+            long low = 0;
+            for (int i = 0; i < 8; i++) {
+                high = (high << 8) | (bytes[i] & 0xFF);
+                low = (low << 8) | (bytes[i + 8] & 0xFF);
+            }
+            keyHigh = high;
+            keyLow = low;
+            keyTag = (6 << 16) | address.getPort();
+        }
+        return true;
+    }
+    
+    private static int hash(long high, long low, int tag) {
+        long h = (high * 0x9E3779B97F4A7C15L) ^ low ^ ((long) tag << 40);
+        h *= 0xC2B2AE3D27D4EB4FL;
+        return (int) (h ^ (h >>> 32));
+    }
+    
+    private static class Table {
+        
+        private long[] high;
+        private long[] low;
+        private int[] tags;
+        private Object[] values;
+        private int mask;
+        
+        private Table(int capacity) {
+            high = new long[capacity];
+            low = new long[capacity];
+            tags = new int[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+        
+        private int find(long high, long low, int tag) {
+            int index = hash(high, low, tag) & mask;
+            Object value;
+            while ((value = values[index]) != null) {
+                if (value != DELETED && tags[index] == tag && this.low[index] == low && this.high[index] == high) return index;
+                index = (index + 1) & mask;
+            }
+            return -1;
+        }
+        
+        @SuppressWarnings("unchecked")
+        private <V> V get(long high, long low, int tag) {
+            int index = find(high, low, tag);
+            return index < 0 ? null : (V) values[index];
+        }
+        
+        @SuppressWarnings("unchecked")
+        private <V> V replace(int index, V value) {
+            Object old = values[index];
+            values[index] = value;
+            return (V) old;
+        }
+        
+        /**
+         * Inserts a key known to be absent. Only used on the current table,
+         * which never holds deleted markers.
+         */
+        private void insert(long high, long low, int tag, Object value) {
+            int index = hash(high, low, tag) & mask;
+            while (values[index] != null) index = (index + 1) & mask;
+            this.high[index] = high;
+            this.low[index] = low;
+            tags[index] = tag;
+            values[index] = value;
+        }
+        
+        /**
+         * Removes an entry shifting back the ones that follow it, like
+         * IntHashMap does
+         */
+        @SuppressWarnings("unchecked")
+        private <V> V remove(int index) {
+            V old = (V) values[index];
+            int gap = index;
+            index = (index + 1) & mask;
+            while (values[index] != null) {
+                int home = hash(high[index], low[index], tags[index]) & mask;
+                if (((index - home) & mask) >= ((index - gap) & mask)) {
+                    high[gap] = high[index];
+                    low[gap] = low[index];
+                    tags[gap] = tags[index];
+                    values[gap] = values[index];
+                    gap = index;
+                }
+                index = (index + 1) & mask;
+            }
+            values[gap] = null;
+            return old;
+        }
+        
+        /**
+         * Marks an entry of the table being migrated as deleted. Entries
+         * cannot be shifted back there, since that could move them behind
+         * the migration cursor.
+         */
+        @SuppressWarnings("unchecked")
+        private <V> V delete(int index) {
+            V old = (V) values[index];
+            values[index] = DELETED;
+            return old;
+        }
+        
+    }
+    
+}
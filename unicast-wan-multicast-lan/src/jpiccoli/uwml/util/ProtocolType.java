@@ -1,10 +1,10 @@
-package jpiccoli.uwml.util;
-
-public enum ProtocolType {
-    
-    TCP,
-    UDP,
-    SSL,
-    PROXY
-    
-}
+package jpiccoli.uwml.util;
+
+public enum ProtocolType {
+    
+    TCP,
+    UDP,
+    SSL,
+    PROXY
+    
+}
@@ -0,0 +1,112 @@
+package jpiccoli.uwml.util;
+
+/**
+ * Arithmetic of a systematic Reed-Solomon erasure code over GF(256). Parity
+ * packet p is the sum of every data packet j multiplied by the coefficient
+ * of a Cauchy matrix, so any e parity packets repair any e lost data
+ * packets of their group. The coefficients depend only on p and j, so the
+ * sender may change the number of parity packets between groups.
+ */
+public class ReedSolomon {
+
+    /**
+     * Maximum number of parity packets of a group
+     */
+    public static final int MAX_PARITY = 16;
+
+    /**
+     * Maximum number of data packets of a group
+     */
+    public static final int MAX_DATA = 256 - MAX_PARITY;
+
+    private static final byte[] EXP = new byte[510];
+    private static final int[] LOG = new int[256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0) x ^= 0x11D;
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+    }
+
+    private ReedSolomon() {
+    }
+
+    public static int multiply(int a, int b) {
+        if (a == 0 || b == 0) return 0;
+        return EXP[LOG[a] + LOG[b]] & 0xFF;
+    }
+
+    public static int inverse(int a) {
+        return EXP[255 - LOG[a]] & 0xFF;
+    }
+
+    /**
+     * Coefficient of data packet index in parity packet parity
+     */
+    public static int coefficient(int parity, int index) {
+        return inverse(parity ^ (MAX_PARITY + index));
+    }
+
+    /**
+     * Adds coefficient times the first length bytes of source to
+     * destination
+     */
+    public static void multiplyAdd(int coefficient, byte[] source, int length, byte[] destination) {
+        if (coefficient == 0) return;
+        if (coefficient == 1) {
+            for (int i = 0; i < length; i++) {
+                destination[i] ^= source[i];
+            }
+            return;
+        }
+        int log = LOG[coefficient];
+        for (int i = 0; i < length; i++) {
+            int value = source[i] & 0xFF;
+            if (value != 0) destination[i] ^= EXP[log + LOG[value]];
+        }
+    }
+
+    /**
+     * Inverts a square matrix in place by Gauss-Jordan elimination
+     * @return False if the matrix is singular
+     */
+    public static boolean invert(int[][] matrix) {
+        int size = matrix.length;
+        int[][] result = new int[size][size];
+        for (int i = 0; i < size; i++) {
+            result[i][i] = 1;
+        }
+        for (int column = 0; column < size; column++) {
+            int pivot = column;
+            while (pivot < size && matrix[pivot][column] == 0) pivot++;
+            if (pivot == size) return false;
+            int[] swap = matrix[pivot]; matrix[pivot] = matrix[column]; matrix[column] = swap;
+            swap = result[pivot]; result[pivot] = result[column]; result[column] = swap;
+            int scale = inverse(matrix[column][column]);
+            for (int i = 0; i < size; i++) {
+                matrix[column][i] = multiply(matrix[column][i], scale);
+                result[column][i] = multiply(result[column][i], scale);
+            }
+            for (int row = 0; row < size; row++) {
+                int factor = matrix[row][column];
+                if (row == column || factor == 0) continue;
+                for (int i = 0; i < size; i++) {
+                    matrix[row][i] ^= multiply(factor, matrix[column][i]);
+                    result[row][i] ^= multiply(factor, result[column][i]);
+                }
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            matrix[i] = result[i];
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,75 @@
+package jpiccoli.uwml.util;
+
+/**
+ * Smoothed round trip time and round trip time variance, estimated as in
+ * RFC 6298, and the retransmission timeout derived from them. Samples may
+ * be added and read from different threads.
+ */
+public class RttEstimator {
+
+    private long initialTimeout;
+    private long minTimeout;
+    private long maxTimeout;
+
+    /**
+     * In nanoseconds; zero until the first sample
+     */
+    private long smoothedRtt;
+    private long rttVariance;
+    private long samples;
+
+    /**
+     * @param initialTimeout Timeout, in milliseconds, until the first sample
+     * @param minTimeout Lower bound of the timeout, in milliseconds
+     * @param maxTimeout Upper bound of the timeout, in milliseconds
+     */
+    public RttEstimator(long initialTimeout, long minTimeout, long maxTimeout) {
+        this.initialTimeout = initialTimeout;
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+    }
+
+    /**
+     * Adds a measured round trip time, in nanoseconds. Round trips of
+     * retransmitted messages are ambiguous and must not be sampled.
+     */
+    public synchronized void sample(long rtt) {
+        if (rtt < 0) return;
+        if (samples++ == 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            rttVariance += (Math.abs(smoothedRtt - rtt) - rttVariance) / 4;
+            smoothedRtt += (rtt - smoothedRtt) / 8;
+        }
+    }
+
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    /**
+     * Smoothed round trip time, in nanoseconds, or 0 before the first sample
+     */
+    public synchronized long getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    /**
+     * Round trip time variance, in nanoseconds
+     */
+    public synchronized long getRttVariance() {
+        return rttVariance;
+    }
+
+    /**
+     * Time to wait for an acknowledgement before retransmitting, in
+     * milliseconds
+     */
+    public synchronized long getTimeout() {
+        if (samples == 0) return initialTimeout;
+        long timeout = (smoothedRtt + 4 * rttVariance) / 1000000;
+        return Math.min(Math.max(timeout, minTimeout), maxTimeout);
+    }
+
+}
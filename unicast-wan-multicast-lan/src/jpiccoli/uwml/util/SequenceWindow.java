@@ -0,0 +1,116 @@
+package jpiccoli.uwml.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receive side of a pipelined stream of numbered messages, such as the
+ * control messages of a UDP connection, which the sender numbers from zero.
+ * Every message is handed over once and in order: one that arrives ahead of
+ * a gap is copied and held, if it is less than size messages ahead, until
+ * the gap is filled. Messages further ahead are refused and must not be
+ * acknowledged, so the sender transmits them again.
+ * <p>
+ * Not thread safe: used by the thread that receives the messages or under
+ * the lock of its owner.
+ */
+public class SequenceWindow {
+
+    public static final int DELIVER = 0;
+    public static final int HELD = 1;
+    public static final int DUPLICATE = 2;
+    public static final int REFUSED = 3;
+
+    private long next;
+    private int mask;
+
+    /**
+     * Held messages, by the low bits of their number. Allocated when the
+     * first message arrives out of order.
+     */
+    private ByteBuffer[] held;
+    private int heldCount;
+
+    /**
+     * @param size Number of messages that may be held, rounded up to a power
+     * of two
+     */
+    public SequenceWindow(int size) {
+        mask = (Integer.highestOneBit(Math.max(size - 1, 1)) << 1) - 1;
+    }
+
+    /**
+     * Number of the next message to be handed over
+     */
+    public long getNext() {
+        return next;
+    }
+
+    /**
+     * Classifies a received message. DELIVER means it is the next one and
+     * must be processed now, then followed by the ones returned by poll.
+     * HELD means its content, from the position to the limit, was copied.
+     */
+    public int offer(long number, ByteBuffer data) {
+        if (number < next) return DUPLICATE;
+        if (number == next) {
+            next++;
+            return DELIVER;
+        }
+        if (number - next > mask) return REFUSED;
+        if (held == null) held = new ByteBuffer[mask + 1];
+        int index = (int) number & mask;
+        if (held[index] != null) return DUPLICATE;
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate()).flip();
+        held[index] = copy;
+        heldCount++;
+        return HELD;
+    }
+
+    /**
+     * Takes the next message if it was held
+     * @return The message or null if it has not arrived yet
+     */
+    public ByteBuffer poll() {
+        if (held == null) return null;
+        int index = (int) next & mask;
+        ByteBuffer message = held[index];
+        if (message != null) {
+            held[index] = null;
+            heldCount--;
+            next++;
+        }
+        return message;
+    }
+
+    /**
+     * Whether the message was received ahead of a gap and is held
+     */
+    public boolean isHeld(long number) {
+        if (held == null || number <= next || number - next > mask) return false;
+        return held[(int) number & mask] != null;
+    }
+
+    public int getHeldCount() {
+        return heldCount;
+    }
+
+    /**
+     * Gives up on the missing messages numbered below number. Returns the
+     * next held message below it, skipping the gaps in front of it, or null
+     * once there is none left, after which the next message is number.
+     */
+    public ByteBuffer skip(long number) {
+        while (next < number) {
+            if (heldCount == 0) {
+                next = number;
+                break;
+            }
+            ByteBuffer message = poll();
+            if (message != null) return message;
+            next++;
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,192 @@
+package jpiccoli.uwml.util;
+
+/**
+ * Hashed timing wheel. Timeouts are kept in intrusive linked lists, one per
+ * tick of the wheel, so scheduling and cancelling are O(1) and neither
+ * allocates; timeouts further away than one turn wait for their remaining
+ * rounds. Expiry has the resolution of one tick.
+ * <p>
+ * The wheel is advanced by its owner thread; the other methods may be
+ * called from any thread. Expired timeouts run on the owner thread, outside
+ * the wheel's lock.
+ */
+public class TimingWheel {
+
+    public static final long DEFAULT_TICK_DURATION = 100;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+    
+    private Timeout[] buckets;
+    private int mask;
+    private long tickDuration;
+    private long startTime;
+    private long currentTick;
+    private int size;
+    
+    public TimingWheel() {
+        this(DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+    }
+    
+    /**
+     * @param tickDuration Duration of a tick, in milliseconds
+     * @param wheelSize Number of ticks in a turn, rounded up to a power of two
+     */
+    public TimingWheel(long tickDuration, int wheelSize) {
+        int capacity = Integer.highestOneBit(Math.max(wheelSize - 1, 1)) << 1;
+        buckets = new Timeout[capacity];
+        mask = capacity - 1;
+        this.tickDuration = tickDuration;
+        startTime = System.currentTimeMillis();
+    }
+    
+    public long getTickDuration() {
+        return tickDuration;
+    }
+    
+    public synchronized int size() {
+        return size;
+    }
+    
+    /**
+     * Schedules the timeout to expire after delay milliseconds, cancelling
+     * it first if it is already scheduled.
+     * @return True if the wheel was empty, in which case its owner may have
+     * to be woken up to start advancing it
+     */
+    public boolean schedule(Timeout timeout, long delay) {
+        timeout.cancel();
+        synchronized(this) {
+            return insert(timeout, delay);
+        }
+    }
+    
+    private boolean insert(Timeout timeout, long delay) {
+        long now = System.currentTimeMillis() - startTime;
+        if (size == 0) {
+            // The owner stops advancing an empty wheel, so it may be behind
+            currentTick = Math.max(currentTick, now / tickDuration);
+        }
+        // First tick that is not earlier than the deadline
+        long deadlineTick = (now + delay + tickDuration - 1) / tickDuration;
+        long ticks = Math.max(deadlineTick - currentTick, 1);
+        int index = (int) (currentTick + ticks) & mask;
+        timeout.rounds = (ticks - 1) / buckets.length;
+        timeout.bucket = index;
+        timeout.wheel = this;
+        timeout.owner = this;
+        timeout.generation++;
+        timeout.previous = null;
+        timeout.next = buckets[index];
+        if (timeout.next != null) timeout.next.previous = timeout;
+        buckets[index] = timeout;
+        return size++ == 0;
+    }
+    
+    /**
+     * Cancels the timeout, also if it already expired but was not run yet.
+     * @return False if the timeout was not scheduled in this wheel
+     */
+    public synchronized boolean cancel(Timeout timeout) {
+        timeout.generation++;
+        if (timeout.wheel != this) return false;
+        unlink(timeout);
+        return true;
+    }
+    
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) timeout.next.previous = timeout.previous;
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.wheel = null;
+        size--;
+    }
+    
+    /**
+     * Moves the wheel up to the current time and runs the timeouts that
+     * expired. Called by the owner thread.
+     * @return Milliseconds until the next tick, or 0 if the wheel is empty
+     */
+    public long advance() {
+        long now = System.currentTimeMillis();
+        Timeout expired = null;
+        synchronized(this) {
+            long targetTick = (now - startTime) / tickDuration;
+            while (currentTick < targetTick && size > 0) {
+                currentTick++;
+                Timeout timeout = buckets[(int) currentTick & mask];
+                while (timeout != null) {
+                    Timeout following = timeout.next;
+                    if (timeout.rounds > 0) {
+                        timeout.rounds--;
+                    } else {
+                        unlink(timeout);
+                        timeout.expiredGeneration = timeout.generation;
+                        timeout.nextExpired = expired;
+                        expired = timeout;
+                    }
+                    timeout = following;
+                }
+            }
+        }
+        while (expired != null) {
+            Timeout timeout = expired;
+            expired = timeout.nextExpired;
+            timeout.nextExpired = null;
+            // Scheduled again or cancelled by another thread since it expired
+            if (timeout.generation != timeout.expiredGeneration) continue;
+            try {
+                timeout.expired();
+            } catch (Exception e) {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            }
+        }
+        // Expired timeouts may have scheduled themselves again
+        synchronized(this) {
+            return size == 0 ? 0 : Math.max(startTime + (currentTick + 1) * tickDuration - System.currentTimeMillis(), 1);
+        }
+    }
+    
+    /**
+     * Entry of the wheel. A timeout can be scheduled again once it expired
+     * or was cancelled.
+     */
+    public static abstract class Timeout {
+        
+        private volatile TimingWheel wheel;
+        /**
+         * Last wheel the timeout was scheduled in, kept once it expired or
+         * was cancelled
+         */
+        private volatile TimingWheel owner;
+        /**
+         * Changed under the wheel's lock whenever the timeout is scheduled
+         * or cancelled, so an expired timeout that is not run yet can tell
+         * whether it is still due
+         */
+        private volatile int generation;
+        private int expiredGeneration;
+        private Timeout previous;
+        private Timeout next;
+        /**
+         * Separate from next, since the timeout may be scheduled again
+         * while the expired ones are being run
+         */
+        private Timeout nextExpired;
+        private int bucket;
+        private long rounds;
+        
+        public boolean cancel() {
+            TimingWheel owner = this.owner;
+            return owner != null && owner.cancel(this);
+        }
+        
+        protected abstract void expired();
+        
+    }
+    
+}